@@ -0,0 +1,55 @@
+import java.io.IOException;
+
+/**
+ * One benchmarked operation. The runner calls setup once per data set, then calls run repeatedly
+ * for a fixed time per iteration and divides the elapsed time by the operations run reports.
+ * Cheap operations should be repeated inside run, over a batch of prepared inputs, so the cost of
+ * reading the clock between invocations does not show in the score.
+ */
+public abstract class Benchmark {
+    private final String name;
+    private final boolean usesData;
+
+    /**
+     * @param name The name written to the results, e.g. "record.encode"
+     * @param usesData false if the operation does not depend on the data file, so it runs once
+     *                 instead of once per record count
+     */
+    protected Benchmark(String name, boolean usesData) {
+        this.name = name;
+        this.usesData = usesData;
+    }
+
+    public String getName() { return name; }
+    public boolean usesData() { return usesData; }
+
+    /**
+     * Prepares the state for a data set, not measured
+     * @param data The data set to run against
+     * @throws IOException if the data cannot be read
+     */
+    public void setup(DataSet data) throws IOException {
+    }
+
+    /**
+     * Prepares the state for one iteration, not measured
+     * @throws IOException if the state cannot be prepared
+     */
+    public void setupIteration() throws IOException {
+    }
+
+    /**
+     * Runs the operation
+     * @param blackhole Consumes every result
+     * @return the number of operations performed
+     * @throws IOException if the operation fails
+     */
+    public abstract long run(Blackhole blackhole) throws IOException;
+
+    /**
+     * Releases the state of a data set
+     * @throws IOException if the state cannot be released
+     */
+    public void tearDown() throws IOException {
+    }
+}
@@ -0,0 +1,221 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the store benchmarks against generated data files and writes one JSON object per
+ * benchmark and record count. Each benchmark runs warmup iterations, whose results are thrown
+ * away so the JIT compiler has settled, then measured iterations; each iteration calls the
+ * benchmark for a fixed time and records the average time per operation.
+ *
+ * Build the main module first, then this one against it:
+ *   javac -d out/production/FileStreams src/*.java
+ *   javac -cp out/production/FileStreams -d out/production/FileStreamsBench bench/src/*.java
+ *   java -cp out/production/FileStreams:out/production/FileStreamsBench BenchmarkRunner -records 1000,1000000
+ *
+ * Options:
+ *   -records n,n,...  Record counts of the data files, default 1000,100000,1000000
+ *   -format f         latin1, utf16 or v1, default latin1
+ *   -warmup n         Warmup iterations, default 3
+ *   -iterations n     Measured iterations, default 5
+ *   -time ms          Length of each iteration, default 1000
+ *   -filter regex     Runs only the benchmarks whose name matches
+ *   -dir path         Directory of the generated data files, default bench-data
+ *   -out path         Appends the results to a file instead of printing them
+ */
+public class BenchmarkRunner {
+    // Two-sided 99.9% quantile of the normal distribution, as used for JMH score errors
+    private static final double Z_999 = 3.29;
+
+    private final int warmupIterations;
+    private final int measuredIterations;
+    private final long iterationNanos;
+
+    /**
+     * @param warmupIterations The number of iterations thrown away
+     * @param measuredIterations The number of iterations recorded
+     * @param iterationMillis The length of each iteration
+     */
+    public BenchmarkRunner(int warmupIterations, int measuredIterations, long iterationMillis) {
+        this.warmupIterations = warmupIterations;
+        this.measuredIterations = measuredIterations;
+        this.iterationNanos = iterationMillis * 1000000;
+    }
+
+    /**
+     * Runs a benchmark against a data set
+     * @param benchmark The benchmark to run
+     * @param data The data set passed to its setup
+     * @return the time per operation of each measured iteration in nanoseconds
+     * @throws IOException if the benchmark fails
+     */
+    public double[] run(Benchmark benchmark, DataSet data) throws IOException {
+        Blackhole blackhole = new Blackhole();
+        double[] scores = new double[measuredIterations];
+        benchmark.setup(data);
+        try {
+            for (int i = 0; i < warmupIterations; i++) {
+                iteration(benchmark, blackhole);
+            }
+            for (int i = 0; i < measuredIterations; i++) {
+                scores[i] = iteration(benchmark, blackhole);
+            }
+        } finally {
+            benchmark.tearDown();
+        }
+        return scores;
+    }
+
+    // Calls the benchmark until the iteration time has passed, always at least once
+    private double iteration(Benchmark benchmark, Blackhole blackhole) throws IOException {
+        benchmark.setupIteration();
+        long operations = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            operations += benchmark.run(blackhole);
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < iterationNanos);
+        blackhole.flush();
+        return (double) elapsed / operations;
+    }
+
+    /**
+     * Formats the result of a benchmark as a single line of JSON
+     * @param name The benchmark name
+     * @param records The record count of the data set, or -1 if the benchmark does not use one
+     * @param scores The time per operation of each measured iteration in nanoseconds
+     * @return the JSON object
+     */
+    static String toJson(String name, long records, double[] scores) {
+        double sum = 0;
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        for (double score : scores) {
+            sum += score;
+            min = Math.min(min, score);
+            max = Math.max(max, score);
+        }
+        double mean = sum / scores.length;
+        double squares = 0;
+        for (double score : scores) {
+            squares += (score - mean) * (score - mean);
+        }
+        double error = scores.length > 1
+                ? Z_999 * Math.sqrt(squares / (scores.length - 1)) / Math.sqrt(scores.length) : Double.NaN;
+
+        StringBuilder json = new StringBuilder(256);
+        json.append("{\"benchmark\":\"").append(name).append('"');
+        if (records >= 0) {
+            json.append(",\"records\":").append(records);
+        }
+        json.append(",\"mode\":\"avgt\",\"unit\":\"ns/op\"");
+        json.append(",\"score\":").append(number(mean));
+        json.append(",\"scoreError\":").append(Double.isNaN(error) ? "null" : number(error));
+        json.append(",\"min\":").append(number(min));
+        json.append(",\"max\":").append(number(max));
+        json.append(",\"opsPerSecond\":").append(number(1e9 / mean));
+        json.append(",\"samples\":").append(scores.length);
+        json.append(",\"jdk\":\"").append(System.getProperty("java.version")).append('"');
+        json.append(",\"os\":\"").append(System.getProperty("os.name")).append(' ')
+                .append(System.getProperty("os.arch")).append('"');
+        json.append(",\"cpus\":").append(Runtime.getRuntime().availableProcessors());
+        json.append(",\"timestamp\":\"").append(Instant.now()).append("\"}");
+        return json.toString();
+    }
+
+    private static String number(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    public static void main(String[] args) {
+        long[] recordCounts = { 1000, 100000, 1000000 };
+        RecordFormat format = RecordFormat.V2_LATIN1;
+        int warmup = 3;
+        int iterations = 5;
+        long time = 1000;
+        Pattern filter = null;
+        Path directory = Paths.get("bench-data");
+        Path out = null;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String option = args[i];
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + option);
+                }
+                String value = args[++i];
+                switch (option) {
+                    case "-records":
+                        String[] counts = value.split(",");
+                        recordCounts = new long[counts.length];
+                        for (int j = 0; j < counts.length; j++) {
+                            recordCounts[j] = Long.parseLong(counts[j].trim());
+                            if (recordCounts[j] <= 0) {
+                                throw new IllegalArgumentException("Record counts must be positive");
+                            }
+                        }
+                        break;
+                    case "-format": format = DataGenerator.parseFormat(value); break;
+                    case "-warmup": warmup = Integer.parseInt(value); break;
+                    case "-iterations": iterations = Integer.parseInt(value); break;
+                    case "-time": time = Long.parseLong(value); break;
+                    case "-filter": filter = Pattern.compile(value); break;
+                    case "-dir": directory = Paths.get(value); break;
+                    case "-out": out = Paths.get(value); break;
+                    default: throw new IllegalArgumentException("Unknown option " + option);
+                }
+            }
+            if (iterations < 1 || warmup < 0 || time < 1) {
+                throw new IllegalArgumentException("At least one measured iteration of at least 1 ms is needed");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java BenchmarkRunner [-records n,n,...] [-format latin1|utf16|v1] [-warmup n]"
+                    + " [-iterations n] [-time ms] [-filter regex] [-dir path] [-out results.jsonl]");
+            System.exit(2);
+        }
+
+        List<Benchmark> benchmarks = new ArrayList<>();
+        for (Benchmark benchmark : StoreBenchmarks.all()) {
+            if (filter == null || filter.matcher(benchmark.getName()).find()) {
+                benchmarks.add(benchmark);
+            }
+        }
+
+        BenchmarkRunner runner = new BenchmarkRunner(warmup, iterations, time);
+        try (PrintWriter results = out == null
+                ? new PrintWriter(System.out, true)
+                : new PrintWriter(Files.newBufferedWriter(out, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND), true)) {
+            boolean first = true;
+            for (long records : recordCounts) {
+                try (DataSet data = DataSet.open(directory, records, format, DataGenerator.DEFAULT_SEED)) {
+                    for (Benchmark benchmark : benchmarks) {
+                        // Benchmarks that ignore the data file run against the first data set only
+                        if (!benchmark.usesData() && !first) {
+                            continue;
+                        }
+                        System.err.println("Running " + benchmark.getName()
+                                + (benchmark.usesData() ? " with " + records + " records" : ""));
+                        double[] scores = runner.run(benchmark, data);
+                        results.println(toJson(benchmark.getName(), benchmark.usesData() ? records : -1, scores));
+                    }
+                }
+                first = false;
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Benchmark failed: " + e);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * Consumes the results of benchmarked code so the JIT compiler cannot remove the code computing them.
+ * Values are folded into a field that is published once per iteration, and objects are compared
+ * against a volatile field that never matches, so consuming costs a few nanoseconds.
+ */
+public final class Blackhole {
+    private long accumulator;
+    private volatile long sink;
+    private volatile Object trap;
+
+    public void consume(long value) {
+        accumulator = accumulator * 31 + value;
+    }
+
+    public void consume(double value) {
+        consume(Double.doubleToRawLongBits(value));
+    }
+
+    public void consume(boolean value) {
+        consume(value ? 1 : 0);
+    }
+
+    public void consume(Object value) {
+        if (value == trap) {
+            accumulator++;
+        }
+    }
+
+    /**
+     * Publishes the accumulated value, called by the runner after each iteration
+     */
+    void flush() {
+        sink = accumulator;
+    }
+}
@@ -0,0 +1,131 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates synthetic products files for benchmarks.
+ * Record i always holds the same product for a given seed, its ID is i in base 36, so every ID is
+ * unique and can be computed from the record number. Files are written with batched appends to a
+ * temporary file that is renamed when complete, so an interrupted run never leaves a file that
+ * looks finished.
+ *
+ * Usage: java DataGenerator records [products.dat] [latin1|utf16|v1]
+ * Generated text is ASCII, so files are latin1 unless another format is given.
+ */
+public class DataGenerator {
+    public static final long DEFAULT_SEED = 42;
+    public static final long MAX_RECORDS = 2176782336L; // 36^6 IDs
+
+    private static final int BATCH = 16384;
+
+    private static final String[] ADJECTIVES = {
+            "Red", "Blue", "Green", "Large", "Small", "Heavy", "Light", "Smart", "Classic", "Deluxe",
+            "Compact", "Portable", "Wireless", "Steel", "Wooden", "Vintage", "Modern", "Rugged"};
+    private static final String[] NOUNS = {
+            "Lamp", "Chair", "Table", "Kettle", "Drill", "Speaker", "Monitor", "Backpack", "Bottle",
+            "Jacket", "Camera", "Blender", "Router", "Keyboard", "Tent", "Wrench", "Clock", "Mug"};
+    private static final String[] WORDS = {
+            "durable", "lightweight", "for", "home", "office", "outdoor", "use", "with", "warranty",
+            "easy", "to", "clean", "energy", "efficient", "premium", "quality", "design", "and", "fast"};
+
+    /**
+     * @param record The record number
+     * @return the ID of the record, its number in base 36 padded to six characters
+     */
+    public static String id(long record) {
+        char[] id = new char[ProductStore.ID_LENGTH];
+        for (int i = id.length - 1; i >= 0; i--) {
+            id[i] = Character.toUpperCase(Character.forDigit((int) (record % 36), 36));
+            record /= 36;
+        }
+        return new String(id);
+    }
+
+    /**
+     * Builds the product of a record
+     * @param record The record number
+     * @param seed The seed of the data set
+     * @return the product, the same for every call with the same arguments
+     */
+    public static Product product(long record, long seed) {
+        Random random = new Random(seed * 31 + record);
+        String name = ADJECTIVES[random.nextInt(ADJECTIVES.length)] + " "
+                + NOUNS[random.nextInt(NOUNS.length)] + " " + random.nextInt(10000);
+        StringBuilder description = new StringBuilder();
+        int words = 4 + random.nextInt(8);
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                description.append(' ');
+            }
+            description.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        double cost = Math.round(random.nextDouble() * 100000) / 100.0;
+        return new Product(id(record), name, description.toString(), cost);
+    }
+
+    /**
+     * Writes a products file
+     * @param file The file to create, replaced if it exists
+     * @param records The number of records
+     * @param format The format of the file
+     * @param seed The seed of the data set
+     * @throws IOException if the file cannot be written
+     */
+    public static void generate(Path file, long records, RecordFormat format, long seed) throws IOException {
+        if (records < 0 || records > MAX_RECORDS) {
+            throw new IllegalArgumentException("Between 0 and " + MAX_RECORDS + " records can be generated");
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.deleteIfExists(temp);
+        try (ProductStore store = ProductStore.openReadWrite(temp, format)) {
+            List<Product> batch = new ArrayList<>(BATCH);
+            for (long record = 0; record < records; record++) {
+                batch.add(product(record, seed));
+                if (batch.size() == BATCH) {
+                    store.appendAll(batch);
+                    batch.clear();
+                }
+            }
+            store.appendAll(batch);
+        }
+        Files.deleteIfExists(temp.resolveSibling(temp.getFileName() + ProductStore.LOCK_SUFFIX));
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 3) {
+            System.err.println("Usage: java DataGenerator records [products.dat] [latin1|utf16|v1]");
+            System.exit(2);
+        }
+
+        try {
+            long records = Long.parseLong(args[0]);
+            Path file = args.length > 1 ? Paths.get(args[1]) : ProductStore.defaultPath();
+            RecordFormat format = args.length > 2 ? parseFormat(args[2]) : RecordFormat.V2_LATIN1;
+
+            long start = System.nanoTime();
+            generate(file, records, format, DEFAULT_SEED);
+            System.out.println("Generated " + records + " records in " + format + " in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Error generating file: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @param name latin1, utf16 or v1
+     * @return the matching format
+     */
+    static RecordFormat parseFormat(String name) {
+        if (name.equalsIgnoreCase("latin1")) return RecordFormat.V2_LATIN1;
+        if (name.equalsIgnoreCase("utf16")) return RecordFormat.V2_UTF16;
+        if (name.equalsIgnoreCase("v1")) return RecordFormat.V1;
+        throw new IllegalArgumentException("Unknown format " + name + ", expected latin1, utf16 or v1");
+    }
+}
@@ -0,0 +1,62 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A generated products file opened for benchmarks. Files are kept in the data directory and
+ * reused by later runs with the same record count, format and seed.
+ */
+public class DataSet implements Closeable {
+    private final Path directory;
+    private final Path file;
+    private final long records;
+    private final long seed;
+    private final ProductStore store;
+
+    private DataSet(Path directory, Path file, long records, long seed, ProductStore store) {
+        this.directory = directory;
+        this.file = file;
+        this.records = records;
+        this.seed = seed;
+        this.store = store;
+    }
+
+    /**
+     * Opens a data set, generating its file first if needed
+     * @param directory The directory holding the generated files
+     * @param records The number of records
+     * @param format The format of the file
+     * @param seed The seed of the data set
+     * @return the opened data set
+     * @throws IOException if the file cannot be generated or opened
+     */
+    public static DataSet open(Path directory, long records, RecordFormat format, long seed) throws IOException {
+        Files.createDirectories(directory);
+        String encoding = format.getVersion() == 1 ? "v1" : format.getEncoding() == RecordFormat.ENCODING_LATIN1 ? "latin1" : "utf16";
+        Path file = directory.resolve("products-" + records + "-" + encoding + "-" + seed + ".dat");
+        if (!Files.exists(file)) {
+            System.err.println("Generating " + file);
+            DataGenerator.generate(file, records, format, seed);
+        }
+        return new DataSet(directory, file, records, seed, ProductStore.openReadOnly(file));
+    }
+
+    public Path getDirectory() { return directory; }
+    public Path getFile() { return file; }
+    public long getRecords() { return records; }
+    public ProductStore getStore() { return store; }
+
+    /**
+     * @param record The record number
+     * @return the product stored in the record
+     */
+    public Product product(long record) {
+        return DataGenerator.product(record, seed);
+    }
+
+    @Override
+    public void close() throws IOException {
+        store.close();
+    }
+}
@@ -0,0 +1,417 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The benchmarks of the store: record encoding and decoding, point lookups, full scans,
+ * cost aggregates, bulk appends, the binary codec against Java serialization and the conversions
+ * of Product to text.
+ */
+public class StoreBenchmarks {
+    // Micro benchmarks repeat their operation over a batch of prepared inputs per call
+    private static final int BATCH = 1024;
+    private static final int APPEND_BATCH = 16384;
+    private static final long APPEND_LIMIT = 1 << 20;
+    private static final String SEARCH_TERM = "lamp";
+
+    /**
+     * @return every benchmark, in the order they run
+     */
+    public static List<Benchmark> all() {
+        List<Benchmark> benchmarks = new ArrayList<>();
+
+        for (final RecordFormat format : new RecordFormat[] { RecordFormat.V2_LATIN1, RecordFormat.V2_UTF16 }) {
+            final String suffix = format.getEncoding() == RecordFormat.ENCODING_LATIN1 ? "latin1" : "utf16";
+
+            benchmarks.add(new Benchmark("record.encode." + suffix, false) {
+                private final Product[] products = sampleProducts();
+                private final ByteBuffer buffer = ByteBuffer.allocateDirect(format.getRecordSize());
+
+                @Override
+                public long run(Blackhole blackhole) {
+                    for (Product product : products) {
+                        buffer.clear();
+                        format.encode(product, buffer);
+                        blackhole.consume(buffer.position());
+                    }
+                    return products.length;
+                }
+            });
+
+            benchmarks.add(new Benchmark("record.decode." + suffix, false) {
+                private final ByteBuffer records = encode(format, sampleProducts());
+
+                @Override
+                public long run(Blackhole blackhole) {
+                    for (int i = 0; i < BATCH; i++) {
+                        blackhole.consume(format.decode(records, i * format.getRecordSize()));
+                    }
+                    return BATCH;
+                }
+            });
+        }
+
+        benchmarks.add(new Benchmark("store.readProduct", true) {
+            private ProductStore store;
+            private long[] records;
+
+            @Override
+            public void setup(DataSet data) {
+                store = data.getStore();
+                records = randomRecords(data.getRecords());
+            }
+
+            @Override
+            public long run(Blackhole blackhole) {
+                for (long record : records) {
+                    blackhole.consume(store.readProduct(record));
+                }
+                return records.length;
+            }
+        });
+
+        benchmarks.add(new Benchmark("index.lookupById", true) {
+            private ProductStore store;
+            private IdIndex index;
+            private String[] ids;
+
+            @Override
+            public void setup(DataSet data) throws IOException {
+                store = data.getStore();
+                index = IdIndex.open(store);
+                long[] records = randomRecords(data.getRecords());
+                ids = new String[records.length];
+                for (int i = 0; i < records.length; i++) {
+                    ids[i] = DataGenerator.id(records[i]);
+                }
+            }
+
+            @Override
+            public long run(Blackhole blackhole) {
+                for (String id : ids) {
+                    long record = index.lookup(id);
+                    blackhole.consume(store.readProduct(record));
+                }
+                return ids.length;
+            }
+
+            @Override
+            public void tearDown() throws IOException {
+                index.close();
+            }
+        });
+
+        benchmarks.add(new Benchmark("scan.parallel.nameContains", true) {
+            private final ParallelScanner scanner = new ParallelScanner();
+            private ProductStore store;
+
+            @Override
+            public void setup(DataSet data) {
+                store = data.getStore();
+            }
+
+            @Override
+            public long run(Blackhole blackhole) {
+                long[] matches = scanner.scan(store, new ParallelScanner.Filter() {
+                    @Override
+                    public boolean test(ProductView view) {
+                        return view.nameContains(SEARCH_TERM);
+                    }
+                });
+                blackhole.consume(matches.length);
+                return 1;
+            }
+        });
+
+        benchmarks.add(new Benchmark("scan.sequential.nameContains", true) {
+            private ProductStore store;
+
+            @Override
+            public void setup(DataSet data) {
+                store = data.getStore();
+            }
+
+            @Override
+            public long run(Blackhole blackhole) {
+                ProductView view = new ProductView(store);
+                long records = store.getRecordCount();
+                long matches = 0;
+                for (long record = 0; record < records; record++) {
+                    view.moveTo(record);
+                    if (!view.isDeleted() && view.nameContains(SEARCH_TERM)) {
+                        matches++;
+                    }
+                }
+                blackhole.consume(matches);
+                return 1;
+            }
+        });
+
+        benchmarks.add(new Benchmark("column.costAggregate", true) {
+            private CostColumn column;
+
+            @Override
+            public void setup(DataSet data) throws IOException {
+                column = CostColumn.open(data.getStore());
+            }
+
+            @Override
+            public long run(Blackhole blackhole) {
+                blackhole.consume(column.aggregate(0, Math.nextDown(5.0)).getSum());
+                return 1;
+            }
+
+            @Override
+            public void tearDown() throws IOException {
+                column.close();
+            }
+        });
+
+        benchmarks.add(new Benchmark("export.csv", true) {
+            private StreamingExporter exporter;
+
+            @Override
+            public void setup(DataSet data) {
+                exporter = new StreamingExporter(data.getStore());
+            }
+
+            @Override
+            public long run(Blackhole blackhole) throws IOException {
+                blackhole.consume(exporter.export(StreamingExporter.Format.CSV, new DiscardingWriter()));
+                return 1;
+            }
+        });
+
+        // Appends go to a scratch store beside the data, recreated before it grows past the limit
+        benchmarks.add(new Benchmark("append.batch", false) {
+            private final List<Product> batch = new ArrayList<>(APPEND_BATCH);
+            private Path file;
+            private ProductStore store;
+
+            @Override
+            public void setup(DataSet data) throws IOException {
+                for (int i = 0; i < APPEND_BATCH; i++) {
+                    batch.add(DataGenerator.product(i, DataGenerator.DEFAULT_SEED));
+                }
+                file = data.getDirectory().resolve("append-scratch.dat");
+            }
+
+            @Override
+            public void setupIteration() throws IOException {
+                if (store == null || store.getRecordCount() >= APPEND_LIMIT) {
+                    deleteStore();
+                    store = ProductStore.openReadWrite(file, RecordFormat.V2_LATIN1);
+                }
+            }
+
+            @Override
+            public long run(Blackhole blackhole) throws IOException {
+                blackhole.consume(store.appendAll(batch));
+                return batch.size();
+            }
+
+            @Override
+            public void tearDown() throws IOException {
+                deleteStore();
+            }
+
+            private void deleteStore() throws IOException {
+                if (store != null) {
+                    store.close();
+                    store = null;
+                }
+                Files.deleteIfExists(file);
+                Files.deleteIfExists(file.resolveSibling(file.getFileName() + ProductStore.LOCK_SUFFIX));
+                Files.deleteIfExists(file.resolveSibling(file.getFileName() + ProductStore.MODIFICATIONS_SUFFIX));
+                Files.deleteIfExists(file.resolveSibling(file.getFileName() + WriteAheadLog.SUFFIX));
+            }
+        });
+
+        benchmarks.add(new Benchmark("codec.encode", false) {
+            private final List<Product> products = Arrays.asList(sampleProducts());
+            private final ByteBuffer buffer = ByteBuffer.allocate(ProductCodec.encodedSize(products));
+
+            @Override
+            public long run(Blackhole blackhole) {
+                buffer.clear();
+                ProductCodec.encodeAll(products, buffer);
+                blackhole.consume(buffer.position());
+                return products.size();
+            }
+        });
+
+        benchmarks.add(new Benchmark("codec.decode", false) {
+            private final ByteBuffer buffer = encode(Arrays.asList(sampleProducts()));
+
+            @Override
+            public long run(Blackhole blackhole) {
+                buffer.clear();
+                blackhole.consume(ProductCodec.decodeAll(buffer));
+                return BATCH;
+            }
+        });
+
+        // Java serialization of the same batch, the baseline of the codec
+        benchmarks.add(new Benchmark("serialization.encode", false) {
+            private final ArrayList<Product> products = new ArrayList<>(Arrays.asList(sampleProducts()));
+
+            @Override
+            public long run(Blackhole blackhole) throws IOException {
+                blackhole.consume(serialize(products).length);
+                return products.size();
+            }
+        });
+
+        benchmarks.add(new Benchmark("serialization.decode", false) {
+            private final byte[] bytes = serialize(new ArrayList<>(Arrays.asList(sampleProducts())));
+
+            @Override
+            public long run(Blackhole blackhole) throws IOException {
+                try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    blackhole.consume(in.readObject());
+                } catch (ClassNotFoundException e) {
+                    throw new IOException(e);
+                }
+                return BATCH;
+            }
+        });
+
+        benchmarks.add(new Benchmark("product.toCSV", false) {
+            private final Product[] products = sampleProducts();
+
+            @Override
+            public long run(Blackhole blackhole) {
+                for (Product product : products) {
+                    blackhole.consume(product.toCSV());
+                }
+                return products.length;
+            }
+        });
+
+        benchmarks.add(new Benchmark("product.toJSON", false) {
+            private final Product[] products = sampleProducts();
+
+            @Override
+            public long run(Blackhole blackhole) {
+                for (Product product : products) {
+                    blackhole.consume(product.toJSON());
+                }
+                return products.length;
+            }
+        });
+
+        benchmarks.add(new Benchmark("product.toXML", false) {
+            private final Product[] products = sampleProducts();
+
+            @Override
+            public long run(Blackhole blackhole) {
+                for (Product product : products) {
+                    blackhole.consume(product.toXML());
+                }
+                return products.length;
+            }
+        });
+
+        return benchmarks;
+    }
+
+    /**
+     * @return a batch of generated products
+     */
+    private static Product[] sampleProducts() {
+        Product[] products = new Product[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            products[i] = DataGenerator.product(i, DataGenerator.DEFAULT_SEED);
+        }
+        return products;
+    }
+
+    /**
+     * @param format The format to encode in
+     * @param products The products to encode
+     * @return a buffer holding the encoded records back to back
+     */
+    private static ByteBuffer encode(RecordFormat format, Product[] products) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(format.getRecordSize() * products.length);
+        for (int i = 0; i < products.length; i++) {
+            buffer.position(i * format.getRecordSize());
+            format.encode(products[i], buffer);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * @param products The products to encode
+     * @return a heap buffer holding the products as one ProductCodec batch
+     */
+    private static ByteBuffer encode(List<Product> products) {
+        ByteBuffer buffer = ByteBuffer.allocate(ProductCodec.encodedSize(products));
+        ProductCodec.encodeAll(products, buffer);
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * @param products The products to serialize
+     * @return the list written by an ObjectOutputStream
+     */
+    private static byte[] serialize(ArrayList<Product> products) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(products);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param records The number of records in the store
+     * @return a batch of record numbers spread over the whole store, so lookups are not all cached
+     * @throws IllegalArgumentException if the store is empty, there is nothing to look up
+     */
+    private static long[] randomRecords(long records) {
+        if (records <= 0) {
+            throw new IllegalArgumentException("Lookups need a store with records, this one has none");
+        }
+        Random random = new Random(DataGenerator.DEFAULT_SEED);
+        long[] sample = new long[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            sample[i] = Math.floorMod(random.nextLong(), records);
+        }
+        return sample;
+    }
+
+    /**
+     * Drops everything written to it, so exports measure formatting rather than disk writes
+     */
+    private static class DiscardingWriter extends Writer {
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+        }
+
+        @Override
+        public void write(String s, int offset, int length) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
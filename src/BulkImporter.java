@@ -0,0 +1,338 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Headless bulk loader for supplier catalogs.
+ * Reads CSV (ID,name,description,cost, the layout of Product.toCSV) or JSON lines (one
+ * Product.toJSON object per line), validates every row with the same rules as the Product
+ * Maker form, and appends the valid rows in large batches through ProductStore.appendAll.
+ * Invalid rows and rows whose ID is already stored or appears earlier in the input are skipped and
+ * reported with their line number. IDs are checked against the store's IdFilter, so a new ID costs
+ * a few memory reads and only a possible duplicate is looked up in the IdIndex.
+ *
+ * Usage: java BulkImporter [csv|jsonl] input [products.dat]
+ * The input may be "-" for standard input; without a format it is taken from the file extension.
+ * The ID index and filter are kept up to date, the other sidecar indexes catch up the next time
+ * they are opened.
+ */
+public class BulkImporter {
+    private static final int BATCH_SIZE = 16384;
+    private static final int MAX_REPORTED_ERRORS = 100;
+
+    private final ProductStore store;
+    private final IdFilter idFilter;
+    // IDs of the batch not yet written, which the filter does not know about yet
+    private final Set<String> batchIds = new HashSet<>();
+
+    /**
+     * Outcome of an import
+     */
+    public static class Result {
+        private long imported;
+        private long rejected;
+        private final List<String> errors = new ArrayList<>();
+
+        public long getImported() { return imported; }
+        public long getRejected() { return rejected; }
+
+        /**
+         * @return the first rejected rows as "line N: message"
+         */
+        public List<String> getErrors() { return errors; }
+
+        private void reject(long line, String message) {
+            rejected++;
+            if (errors.size() < MAX_REPORTED_ERRORS) {
+                errors.add("line " + line + ": " + message);
+            }
+        }
+    }
+
+    /**
+     * @param store The store to append to, opened for writing
+     * @param idFilter The ID filter of the store, used to reject duplicate IDs
+     */
+    public BulkImporter(ProductStore store, IdFilter idFilter) {
+        this.store = store;
+        this.idFilter = idFilter;
+    }
+
+    /**
+     * Imports CSV rows. A first line of column names is skipped, fields may be quoted with
+     * double quotes, and a doubled quote inside a quoted field stands for one quote.
+     * @param in The CSV text
+     * @return the number of imported and rejected rows
+     * @throws IOException if the input cannot be read or the store cannot be written
+     */
+    public Result importCsv(Reader in) throws IOException {
+        BufferedReader reader = new BufferedReader(in, 1 << 16);
+        Result result = new Result();
+        List<Product> batch = new ArrayList<>(BATCH_SIZE);
+        long lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.isEmpty() || (lineNumber == 1 && line.trim().equalsIgnoreCase("ID,name,description,cost"))) {
+                continue;
+            }
+            List<String> fields = parseCsvLine(line);
+            if (fields == null || fields.size() != 4) {
+                result.reject(lineNumber, "Expected 4 fields: ID,name,description,cost");
+                continue;
+            }
+            addRow(fields.get(0), fields.get(1), fields.get(2), fields.get(3), lineNumber, batch, result);
+        }
+        flush(batch, result);
+        return result;
+    }
+
+    /**
+     * Imports JSON lines, one flat object per line with the keys ID, name, description and cost
+     * @param in The JSON lines text
+     * @return the number of imported and rejected rows
+     * @throws IOException if the input cannot be read or the store cannot be written
+     */
+    public Result importJsonLines(Reader in) throws IOException {
+        BufferedReader reader = new BufferedReader(in, 1 << 16);
+        Result result = new Result();
+        List<Product> batch = new ArrayList<>(BATCH_SIZE);
+        long lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            Map<String, String> object = parseJsonObject(line);
+            if (object == null) {
+                result.reject(lineNumber, "Not a flat JSON object");
+                continue;
+            }
+            addRow(object.get("ID"), object.get("name"), object.get("description"), object.get("cost"),
+                    lineNumber, batch, result);
+        }
+        flush(batch, result);
+        return result;
+    }
+
+    private void addRow(String id, String name, String description, String cost, long lineNumber,
+                        List<Product> batch, Result result) throws IOException {
+        String error = ProductValidator.validate(id, name, description, cost);
+        if (error != null) {
+            result.reject(lineNumber, error);
+            return;
+        }
+        if (batchIds.contains(id) || idFilter.contains(id)) {
+            result.reject(lineNumber, "A product with ID " + id + " already exists");
+            return;
+        }
+        try {
+            batch.add(new Product(id, name, description, Double.parseDouble(cost)));
+            batchIds.add(id);
+        } catch (IllegalArgumentException e) {
+            result.reject(lineNumber, e.getMessage());
+            return;
+        }
+        if (batch.size() == BATCH_SIZE) {
+            flush(batch, result);
+        }
+    }
+
+    private void flush(List<Product> batch, Result result) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        store.appendAll(batch);
+        result.imported += batch.size();
+        batch.clear();
+        batchIds.clear();
+    }
+
+    // Splits one CSV line, returning null for an unterminated quoted field
+    static List<String> parseCsvLine(String line) {
+        List<String> fields = new ArrayList<>(4);
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"' && field.length() == 0) {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            return null;
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    // Parses an object of string and number values, returning null if the line is anything else
+    static Map<String, String> parseJsonObject(String line) {
+        Map<String, String> object = new HashMap<>();
+        int[] at = {skipSpace(line, 0)};
+        if (at[0] >= line.length() || line.charAt(at[0]) != '{') {
+            return null;
+        }
+        at[0] = skipSpace(line, at[0] + 1);
+        if (at[0] < line.length() && line.charAt(at[0]) == '}') {
+            return skipSpace(line, at[0] + 1) == line.length() ? object : null;
+        }
+        while (true) {
+            String key = parseJsonString(line, at);
+            if (key == null) {
+                return null;
+            }
+            at[0] = skipSpace(line, at[0]);
+            if (at[0] >= line.length() || line.charAt(at[0]) != ':') {
+                return null;
+            }
+            at[0] = skipSpace(line, at[0] + 1);
+            String value;
+            if (at[0] < line.length() && line.charAt(at[0]) == '"') {
+                value = parseJsonString(line, at);
+            } else {
+                int start = at[0];
+                while (at[0] < line.length() && "+-.0123456789eE".indexOf(line.charAt(at[0])) >= 0) {
+                    at[0]++;
+                }
+                value = at[0] > start ? line.substring(start, at[0]) : null;
+            }
+            if (value == null) {
+                return null;
+            }
+            object.put(key, value);
+
+            at[0] = skipSpace(line, at[0]);
+            if (at[0] >= line.length()) {
+                return null;
+            }
+            char c = line.charAt(at[0]);
+            at[0] = skipSpace(line, at[0] + 1);
+            if (c == '}') {
+                return at[0] == line.length() ? object : null;
+            }
+            if (c != ',') {
+                return null;
+            }
+        }
+    }
+
+    // Parses a quoted string starting at at[0] and moves at[0] past it
+    private static String parseJsonString(String line, int[] at) {
+        int i = at[0];
+        if (i >= line.length() || line.charAt(i) != '"') {
+            return null;
+        }
+        StringBuilder value = new StringBuilder();
+        for (i++; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                at[0] = i + 1;
+                return value.toString();
+            }
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            if (++i >= line.length()) {
+                return null;
+            }
+            char escaped = line.charAt(i);
+            switch (escaped) {
+                case 'b': value.append('\b'); break;
+                case 'f': value.append('\f'); break;
+                case 'n': value.append('\n'); break;
+                case 'r': value.append('\r'); break;
+                case 't': value.append('\t'); break;
+                case 'u':
+                    if (i + 4 >= line.length()) {
+                        return null;
+                    }
+                    try {
+                        value.append((char) Integer.parseInt(line.substring(i + 1, i + 5), 16));
+                    } catch (NumberFormatException e) {
+                        return null;
+                    }
+                    i += 4;
+                    break;
+                default: value.append(escaped);
+            }
+        }
+        return null;
+    }
+
+    private static int skipSpace(String line, int i) {
+        while (i < line.length() && Character.isWhitespace(line.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    public static void main(String[] args) {
+        int argIndex = 0;
+        String format = null;
+        if (args.length > 0 && (args[0].equalsIgnoreCase("csv") || args[0].equalsIgnoreCase("jsonl"))) {
+            format = args[0].toLowerCase();
+            argIndex++;
+        }
+        if (args.length - argIndex < 1 || args.length - argIndex > 2) {
+            System.err.println("Usage: java BulkImporter [csv|jsonl] input [products.dat]");
+            System.exit(2);
+        }
+        String input = args[argIndex];
+        Path dataFile = args.length - argIndex > 1 ? Paths.get(args[argIndex + 1]) : ProductStore.defaultPath();
+        if (format == null) {
+            String lower = input.toLowerCase();
+            format = lower.endsWith(".jsonl") || lower.endsWith(".ndjson") || lower.endsWith(".json") ? "jsonl" : "csv";
+        }
+
+        long start = System.nanoTime();
+        try (ProductStore store = ProductStore.openReadWrite(dataFile);
+             IdIndex idIndex = IdIndex.open(store);
+             IdFilter idFilter = IdFilter.open(store, idIndex);
+             Reader reader = input.equals("-")
+                     ? new InputStreamReader(System.in, StandardCharsets.UTF_8)
+                     : Files.newBufferedReader(Paths.get(input), StandardCharsets.UTF_8)) {
+            BulkImporter importer = new BulkImporter(store, idFilter);
+            Result result = format.equals("jsonl") ? importer.importJsonLines(reader) : importer.importCsv(reader);
+
+            for (String error : result.getErrors()) {
+                System.err.println(error);
+            }
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            System.out.println("Imported " + result.getImported() + " products, rejected "
+                    + result.getRejected() + " rows in " + millis + " ms");
+        } catch (IOException e) {
+            System.err.println("Error importing products: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
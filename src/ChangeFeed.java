@@ -0,0 +1,283 @@
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Feed of the records appended to a store, for consumers that mirror the catalog. A consumer
+ * subscribes from a record number and polls for the records appended after it, in record order,
+ * as soon as they are published. Polling is the backpressure: the feed reads records from the
+ * file only when a consumer asks for them and never holds more than one batch, so a slow consumer
+ * simply falls behind and catches up later without any record being dropped or read twice.
+ *
+ * Appends made through the store in this process wake waiting consumers at once. Appends made by a
+ * writer in another process are noticed by checking the store's published record count every
+ * POLL_MILLIS while a consumer waits. Waiting uses a ReentrantLock rather than a monitor, so a
+ * consumer on a virtual thread does not pin its carrier. A subscription can save its position in a
+ * checkpoint file, which is replaced atomically, so a consumer resumes where it left off after a restart.
+ *
+ * Only appends are delivered, in-place updates and deletes are not. Records deleted before a
+ * consumer reads them are skipped. A compaction renumbers the records, so a position is only valid
+ * for the compaction count of the store it was taken at, see ProductStore.getCompactionCount().
+ * Subscriptions and checkpoints carry that count, and once the store was compacted, by this process
+ * or another one, they fail and consumers have to start again from record 0.
+ *
+ * Usage: java ChangeFeed [products.dat] [checkpoint]
+ * Prints every product appended after the checkpoint as CSV, and keeps printing new ones.
+ */
+public class ChangeFeed implements ProductStoreListener, Closeable {
+    public static final long POLL_MILLIS = 2;
+
+    private static final int CHECKPOINT_MAGIC = 0x43484B50; // "CHKP"
+
+    private final ProductStore store;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private volatile boolean closed;
+
+    /**
+     * An appended record
+     */
+    public static final class Change {
+        private final long record;
+        private final Product product;
+
+        private Change(long record, Product product) {
+            this.record = record;
+            this.product = product;
+        }
+
+        public long getRecord() { return record; }
+        public Product getProduct() { return product; }
+    }
+
+    private ChangeFeed(ProductStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Creates the feed of a store and starts listening to its appends
+     * @param store The store whose appends are fed
+     * @return the feed, to be closed before the store
+     */
+    public static ChangeFeed open(ProductStore store) {
+        ChangeFeed feed = new ChangeFeed(store);
+        store.addListener(feed);
+        return feed;
+    }
+
+    /**
+     * Subscribes from a record of the store as it is now
+     * @param fromRecord The first record to deliver, 0 for the whole file
+     * @return the subscription, used by one consumer thread
+     */
+    public Subscription subscribe(long fromRecord) {
+        return new Subscription(fromRecord, store.getCompactionCount(), null);
+    }
+
+    /**
+     * Subscribes from a position taken from an earlier subscription
+     * @param fromRecord The first record to deliver
+     * @param compactions The compaction count of the store the position refers to, see Subscription.getCompactions()
+     * @return the subscription, used by one consumer thread, whose polls fail if the store was compacted since
+     */
+    public Subscription subscribe(long fromRecord, long compactions) {
+        return new Subscription(fromRecord, compactions, null);
+    }
+
+    /**
+     * Subscribes from the position saved in a checkpoint file, or from record 0 if there is none
+     * @param checkpoint The file the position is saved in by Subscription.commit
+     * @return the subscription, used by one consumer thread
+     * @throws IOException if the checkpoint exists but cannot be read, or the store was compacted after it was saved
+     */
+    public Subscription subscribe(Path checkpoint) throws IOException {
+        store.refresh();
+        long compactions = store.getCompactionCount();
+        long position = 0;
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(checkpoint))) {
+            if (in.readInt() != CHECKPOINT_MAGIC) {
+                throw new IOException(checkpoint + " is not a change feed checkpoint");
+            }
+            long saved = in.readLong();
+            position = in.readLong();
+            if (saved != compactions) {
+                throw new IOException(checkpoint + " was saved before the store was compacted,"
+                        + " the feed has to start again from record 0");
+            }
+        } catch (NoSuchFileException e) {
+            // A new consumer starts from the beginning
+        }
+        return new Subscription(position, compactions, checkpoint);
+    }
+
+    @Override
+    public void recordAppended(long record, Product product) {
+        signalChange();
+    }
+
+    @Override
+    public void storeCompacted() {
+        signalChange();
+    }
+
+    /**
+     * Stops listening to the store and wakes every waiting consumer
+     */
+    @Override
+    public void close() {
+        closed = true;
+        store.removeListener(this);
+        signalChange();
+    }
+
+    private void signalChange() {
+        lock.lock();
+        try {
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * One consumer's position in the feed
+     */
+    public final class Subscription {
+        private final Path checkpoint;
+        private final long compactions;
+        private long position;
+
+        private Subscription(long position, long compactions, Path checkpoint) {
+            this.position = position;
+            this.compactions = compactions;
+            this.checkpoint = checkpoint;
+        }
+
+        /**
+         * @return the next record to deliver
+         */
+        public long getPosition() {
+            return position;
+        }
+
+        /**
+         * @return the compaction count of the store the position refers to
+         */
+        public long getCompactions() {
+            return compactions;
+        }
+
+        /**
+         * @return true if the store was compacted since the position was taken, so it is no longer valid
+         */
+        public boolean isCompacted() {
+            return store.getCompactionCount() != compactions;
+        }
+
+        /**
+         * Returns the next records, waiting for new ones if the consumer has caught up
+         * @param max The largest number of records wanted
+         * @param timeout The longest time to wait for a record
+         * @param unit The unit of the timeout
+         * @return the next appended records in order, empty if none was appended in time
+         * @throws IOException if the store cannot be read, was compacted or the feed is closed
+         * @throws InterruptedException if the thread is interrupted while waiting
+         */
+        public List<Change> poll(int max, long timeout, TimeUnit unit) throws IOException, InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (true) {
+                if (closed) {
+                    throw new IOException("The change feed is closed");
+                }
+                store.refresh();
+                if (isCompacted()) {
+                    throw new IOException("The store was compacted, the feed has to start again from record 0");
+                }
+                long available = store.getRecordCount();
+                if (available > position) {
+                    return read(Math.min(available, position + max));
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return new ArrayList<>();
+                }
+                // Appends in this process signal at once, another process's only show in the file
+                lock.lockInterruptibly();
+                try {
+                    if (store.getRecordCount() <= position && !closed && !isCompacted()) {
+                        changed.awaitNanos(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(POLL_MILLIS)));
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        private List<Change> read(long to) {
+            ProductView view = new ProductView(store.snapshot());
+            List<Change> changes = new ArrayList<>((int) (to - position));
+            for (long record = position; record < to; record++) {
+                if (!view.moveTo(record).isDeleted()) {
+                    changes.add(new Change(record, view.toProduct()));
+                }
+            }
+            position = to;
+            return changes;
+        }
+
+        /**
+         * Saves the position in the checkpoint file, to be called once the records polled so far
+         * have been processed
+         * @throws IOException if the file cannot be written
+         * @throws IllegalStateException if the subscription has no checkpoint file
+         */
+        public void commit() throws IOException {
+            if (checkpoint == null) {
+                throw new IllegalStateException("The subscription has no checkpoint file");
+            }
+            // Write a temporary file first so a crash never leaves a half-written checkpoint behind
+            Path temp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(temp))) {
+                out.writeInt(CHECKPOINT_MAGIC);
+                out.writeLong(compactions);
+                out.writeLong(position);
+            }
+            Files.move(temp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    public static void main(String[] args) {
+        Path path = args.length > 0 ? Paths.get(args[0]) : ProductStore.defaultPath();
+        Path checkpoint = args.length > 1 ? Paths.get(args[1]) : null;
+        try (ProductStore store = ProductStore.openReadOnly(path);
+             ChangeFeed feed = ChangeFeed.open(store)) {
+            Subscription subscription = checkpoint != null
+                    ? feed.subscribe(checkpoint) : feed.subscribe(store.getRecordCount());
+            while (true) {
+                List<Change> changes = subscription.poll(1024, 1, TimeUnit.SECONDS);
+                for (Change change : changes) {
+                    System.out.println(change.getProduct().toCSV());
+                }
+                if (checkpoint != null && !changes.isEmpty()) {
+                    subscription.commit();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading changes: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,266 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reclaims the space of deleted records by rewriting the data file without them.
+ * The live records are copied to products.dat.compact while the store stays fully usable; records
+ * updated or deleted during the copy are remembered through a listener. The store's lock is only
+ * taken at the end, to patch those records, copy records appended meanwhile and swap the files,
+ * so writers wait for a fraction of the copy and readers are never blocked.
+ *
+ * Record numbers change, so the open indexes rebuild themselves when the store reports the
+ * compaction. Views and scans that are running keep reading the old file through their mappings,
+ * which stays readable after the rename on POSIX file systems. Stores opened by other processes
+ * have to be reopened to see the compacted file.
+ *
+ * Usage: java Compactor [products.dat]
+ */
+public class Compactor implements Closeable {
+    public static final String SUFFIX = ".compact";
+    public static final double DEFAULT_THRESHOLD = 0.25;
+
+    private static final int BUFFER_RECORDS = 8192;
+
+    private final ProductStore store;
+    private final double threshold;
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Creates a compactor that rewrites the file once a quarter of the records are deleted
+     * @param store The store to compact, opened read-write
+     */
+    public Compactor(ProductStore store) {
+        this(store, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param store The store to compact, opened read-write
+     * @param threshold The fraction of deleted records that triggers a compaction
+     */
+    public Compactor(ProductStore store, double threshold) {
+        this.store = store;
+        this.threshold = threshold;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Compactor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Checks the store periodically on a background thread and compacts it when needed
+     * @param period The time between two checks
+     * @param unit The unit of the period
+     */
+    public void start(long period, TimeUnit unit) {
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compactIfNeeded();
+                } catch (IOException e) {
+                    System.err.println("Error compacting " + store.getPath() + ": " + e.getMessage());
+                }
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * @return the fraction of records that are deleted
+     */
+    public double deletedRatio() {
+        long count = store.getRecordCount();
+        if (count == 0) {
+            return 0;
+        }
+        long deleted = 0;
+        for (long record = 0; record < count; record++) {
+            if (store.isDeleted(record)) {
+                deleted++;
+            }
+        }
+        return (double) deleted / count;
+    }
+
+    /**
+     * Compacts the store if enough records are deleted
+     * @return the number of records removed
+     * @throws IOException if the file cannot be rewritten
+     */
+    public long compactIfNeeded() throws IOException {
+        return deletedRatio() >= threshold ? compact() : 0;
+    }
+
+    /**
+     * Rewrites the data file without its deleted records
+     * @return the number of records removed
+     * @throws IOException if the file cannot be rewritten
+     */
+    public long compact() throws IOException {
+        final Set<Long> changed = new HashSet<>();
+        ProductStoreListener listener = new ProductStoreListener() {
+            @Override
+            public void recordAppended(long record, Product product) {
+            }
+
+            @Override
+            public void recordUpdated(long record, Product before, Product after) {
+                synchronized (changed) {
+                    changed.add(record);
+                }
+            }
+
+            @Override
+            public void recordDeleted(long record, Product before) {
+                synchronized (changed) {
+                    changed.add(record);
+                }
+            }
+        };
+
+        RecordFormat format = store.getFormat();
+        int recordSize = format.getRecordSize();
+        Path target = store.sidecar(SUFFIX);
+        store.addListener(listener);
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            format.writeHeader(out);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_RECORDS * recordSize);
+
+            // Copy the live records without holding the lock, remembering which ones were left out
+            long copied = store.getRecordCount();
+            long[] skipped = new long[16];
+            int skippedCount = 0;
+            long position = format.getHeaderSize();
+            for (long record = 0; record < copied; record++) {
+                if (store.isDeleted(record)) {
+                    if (skippedCount == skipped.length) {
+                        skipped = Arrays.copyOf(skipped, skippedCount * 2);
+                    }
+                    skipped[skippedCount++] = record;
+                    continue;
+                }
+                // A conversion to another format rewrote the file meanwhile, the copy is useless
+                if (!store.copyRecord(record, format, buffer)) {
+                    return 0;
+                }
+                if (!buffer.hasRemaining()) {
+                    position = flush(out, buffer, position);
+                }
+            }
+            position = flush(out, buffer, position);
+
+            ReentrantLock writeLock = store.getWriteLock();
+            writeLock.lock();
+            try {
+                // Publishes the writes still waiting for the log, so the listener hears of all of them
+                store.checkpoint();
+                if (store.getFormat() != format) {
+                    return 0;
+                }
+
+                // Records changed during the copy are copied again, or turned into tombstones
+                // that the next compaction removes
+                synchronized (changed) {
+                    for (long record : changed) {
+                        if (record >= copied || Arrays.binarySearch(skipped, 0, skippedCount, record) >= 0) {
+                            continue;
+                        }
+                        int before = -Arrays.binarySearch(skipped, 0, skippedCount, record) - 1;
+                        long at = format.getHeaderSize() + (record - before) * recordSize;
+                        if (store.isDeleted(record)) {
+                            write(out, format.tombstone(), at);
+                        } else {
+                            store.copyRecord(record, format, buffer);
+                            flush(out, buffer, at);
+                        }
+                    }
+                }
+
+                long count = store.getRecordCount();
+                for (long record = copied; record < count; record++) {
+                    if (store.isDeleted(record)) {
+                        skippedCount++;
+                        continue;
+                    }
+                    store.copyRecord(record, format, buffer);
+                    if (!buffer.hasRemaining()) {
+                        position = flush(out, buffer, position);
+                    }
+                }
+                position = flush(out, buffer, position);
+                format.writeCommitted(out, count - skippedCount);
+                out.force(true);
+
+                store.replaceFile(target, count - skippedCount);
+                return skippedCount;
+            } finally {
+                writeLock.unlock();
+            }
+        } finally {
+            store.removeListener(listener);
+            Files.deleteIfExists(target);
+        }
+    }
+
+    // Writes the records collected in the buffer and empties it
+    private static long flush(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+        buffer.flip();
+        position = write(out, buffer, position);
+        buffer.clear();
+        return position;
+    }
+
+    private static long write(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += out.write(buffer, position);
+        }
+        return position;
+    }
+
+    /**
+     * Stops the background checks, a compaction in progress is finished first
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length > 1) {
+            System.err.println("Usage: java Compactor [products.dat]");
+            System.exit(2);
+        }
+        Path dataFile = args.length > 0 ? Paths.get(args[0]) : ProductStore.defaultPath();
+
+        try (ProductStore store = ProductStore.openReadWrite(dataFile)) {
+            long removed = new Compactor(store).compact();
+            System.out.println("Removed " + removed + " deleted records, " + store.getRecordCount() + " left");
+        } catch (IOException e) {
+            System.err.println("Error compacting file: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,281 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The cost of every record as a contiguous column of doubles, stored next to the data file as
+ * products.dat.costs and kept in sync with appends, updates and deletes. Aggregates over the costs,
+ * such as the total, average, cheapest or the number of products under a price, read 8 bytes per
+ * record from memory instead of decoding each record of the data file.
+ *
+ * The column is held in chunks of a million entries indexed by record number; deleted records hold
+ * NaN, which every aggregate skips. The aggregation loop is vectorized with the incubating Vector API
+ * when the VectorCostAggregator class from the vector module is on the class path and the JVM runs
+ * with --add-modules jdk.incubator.vector; otherwise a scalar loop is used.
+ */
+public class CostColumn extends SidecarIndex {
+    public static final String SUFFIX = ".costs";
+
+    private static final int MAGIC = 0x434F4C43; // "COLC"
+    private static final int VERSION = 1;
+    private static final int CHUNK_SHIFT = 20;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+    private static final Aggregator AGGREGATOR = loadAggregator();
+
+    /**
+     * Accumulates the costs of one chunk that lie in a range. NaN, the cost of deleted records,
+     * is never in range.
+     */
+    public interface Aggregator {
+        /**
+         * @param costs The chunk
+         * @param length The number of entries of the chunk in use
+         * @param min The lowest cost, inclusive
+         * @param max The highest cost, inclusive
+         * @param into The totals so far, updated with the chunk
+         */
+        void aggregate(double[] costs, int length, double min, double max, Aggregate into);
+    }
+
+    /**
+     * Count, total, lowest and highest of the costs in a range
+     */
+    public static final class Aggregate {
+        private long count;
+        private double sum;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+
+        /**
+         * Adds the totals of a part of the column
+         * @param count The number of costs
+         * @param sum Their sum
+         * @param min The lowest, ignored if count is 0
+         * @param max The highest, ignored if count is 0
+         */
+        public void add(long count, double sum, double min, double max) {
+            if (count == 0) {
+                return;
+            }
+            this.count += count;
+            this.sum += sum;
+            this.min = Math.min(this.min, min);
+            this.max = Math.max(this.max, max);
+        }
+
+        public long getCount() { return count; }
+        public double getSum() { return sum; }
+
+        /** @return the lowest cost, NaN if there is none */
+        public double getMin() { return count > 0 ? min : Double.NaN; }
+
+        /** @return the highest cost, NaN if there is none */
+        public double getMax() { return count > 0 ? max : Double.NaN; }
+
+        /** @return the mean cost, NaN if there is none */
+        public double getAverage() { return count > 0 ? sum / count : Double.NaN; }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d sum=%.2f min=%.2f max=%.2f avg=%.2f",
+                    count, sum, getMin(), getMax(), getAverage());
+        }
+    }
+
+    private final List<double[]> chunks = new ArrayList<>();
+    private long size;
+
+    private CostColumn(ProductStore store) {
+        super(store, SUFFIX, MAGIC, VERSION);
+    }
+
+    /**
+     * Opens the cost column of a store, loading, updating or rebuilding the sidecar file as needed,
+     * and registers it for changes made through the store
+     * @param store The store whose costs are kept
+     * @return the opened column
+     * @throws IOException if the column file cannot be read
+     */
+    public static CostColumn open(ProductStore store) throws IOException {
+        CostColumn column = new CostColumn(store);
+        column.load();
+        return column;
+    }
+
+    /**
+     * @return true if aggregates run on the Vector API, false if they use the scalar loop
+     */
+    public static boolean isVectorized() {
+        return !(AGGREGATOR instanceof ScalarAggregator);
+    }
+
+    /**
+     * Aggregates every cost
+     * @return the count, total, lowest, highest and average cost of the products not deleted
+     */
+    public Aggregate aggregate() {
+        return aggregate(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Aggregates the costs in a range, e.g. aggregate(0, Math.nextDown(5.0)).getCount() is the
+     * number of products under $5
+     * @param min The lowest cost, inclusive
+     * @param max The highest cost, inclusive
+     * @return the count, total, lowest, highest and average of the matching costs
+     */
+    public synchronized Aggregate aggregate(double min, double max) {
+        StoreMetrics.SearchEvent event = store.getMetrics().beginSearch("costs");
+        Aggregate aggregate = new Aggregate();
+        for (int c = 0; c < chunks.size(); c++) {
+            int length = (int) Math.min(CHUNK_SIZE, size - ((long) c << CHUNK_SHIFT));
+            AGGREGATOR.aggregate(chunks.get(c), length, min, max, aggregate);
+        }
+        store.getMetrics().endSearch(event, size, size * 8, aggregate.getCount());
+        return aggregate;
+    }
+
+    /**
+     * Finds the records with a cost in a range from the column, without reading the records
+     * @param min The lowest cost, inclusive
+     * @param max The highest cost, inclusive
+     * @return the matching record numbers in ascending order
+     */
+    public synchronized long[] range(double min, double max) {
+        StoreMetrics.SearchEvent event = store.getMetrics().beginSearch("costs");
+        long[] records = new long[16];
+        int found = 0;
+        for (int c = 0; c < chunks.size(); c++) {
+            double[] chunk = chunks.get(c);
+            int length = (int) Math.min(CHUNK_SIZE, size - ((long) c << CHUNK_SHIFT));
+            for (int i = 0; i < length; i++) {
+                if (chunk[i] >= min && chunk[i] <= max) {
+                    if (found == records.length) {
+                        records = Arrays.copyOf(records, found * 2);
+                    }
+                    records[found++] = ((long) c << CHUNK_SHIFT) + i;
+                }
+            }
+        }
+        store.getMetrics().endSearch(event, size, size * 8, found);
+        return Arrays.copyOf(records, found);
+    }
+
+    /**
+     * @param record The record number
+     * @return the cost the column holds for the record, NaN if it is deleted or not covered
+     */
+    public synchronized double get(long record) {
+        if (record < 0 || record >= size) {
+            return Double.NaN;
+        }
+        return chunks.get((int) (record >>> CHUNK_SHIFT))[(int) (record & (CHUNK_SIZE - 1))];
+    }
+
+    @Override
+    protected void indexRecord(long record) {
+        set(record, store.readCost(record));
+    }
+
+    @Override
+    protected void indexProduct(long record, Product product) {
+        set(record, product.getCost());
+    }
+
+    @Override
+    protected void updateEntry(long record, Product before, Product after) {
+        set(record, after.getCost());
+    }
+
+    @Override
+    protected void deleteEntry(long record, Product before) {
+        set(record, Double.NaN);
+    }
+
+    // Deleted records are never indexed, so every gap up to the record is filled with NaN
+    private void set(long record, double cost) {
+        while (size <= record) {
+            int offset = (int) (size & (CHUNK_SIZE - 1));
+            if (offset == 0) {
+                chunks.add(new double[CHUNK_SIZE]);
+            }
+            chunks.get(chunks.size() - 1)[offset] = Double.NaN;
+            size++;
+        }
+        chunks.get((int) (record >>> CHUNK_SHIFT))[(int) (record & (CHUNK_SIZE - 1))] = cost;
+    }
+
+    @Override
+    protected void clear() {
+        chunks.clear();
+        size = 0;
+    }
+
+    @Override
+    protected boolean readEntries(DataInputStream in) throws IOException {
+        long entries = in.readLong();
+        if (entries > indexedRecords) {
+            return false;
+        }
+        // Whole chunks are read as bytes and converted at once, a readDouble per entry is far slower
+        byte[] bytes = new byte[(int) Math.min(entries, CHUNK_SIZE) * 8];
+        while (size < entries) {
+            int length = (int) Math.min(CHUNK_SIZE, entries - size);
+            double[] chunk = new double[CHUNK_SIZE];
+            in.readFully(bytes, 0, length * 8);
+            ByteBuffer.wrap(bytes, 0, length * 8).asDoubleBuffer().get(chunk, 0, length);
+            chunks.add(chunk);
+            size += length;
+        }
+        // Records appended after the deleted tail are filled in by catchUp
+        if (size < indexedRecords) {
+            set(indexedRecords - 1, Double.NaN);
+        }
+        return true;
+    }
+
+    @Override
+    protected void writeEntries(DataOutputStream out) throws IOException {
+        out.writeLong(size);
+        byte[] bytes = new byte[(int) Math.min(size, CHUNK_SIZE) * 8];
+        for (int c = 0; c < chunks.size(); c++) {
+            int length = (int) Math.min(CHUNK_SIZE, size - ((long) c << CHUNK_SHIFT));
+            ByteBuffer.wrap(bytes).asDoubleBuffer().put(chunks.get(c), 0, length);
+            out.write(bytes, 0, length * 8);
+        }
+    }
+
+    // The vector module is optional, any failure to load it falls back to the scalar loop
+    private static Aggregator loadAggregator() {
+        try {
+            return (Aggregator) Class.forName("VectorCostAggregator").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError | ClassCastException e) {
+            return new ScalarAggregator();
+        }
+    }
+
+    private static class ScalarAggregator implements Aggregator {
+        @Override
+        public void aggregate(double[] costs, int length, double min, double max, Aggregate into) {
+            long count = 0;
+            double sum = 0;
+            double low = Double.POSITIVE_INFINITY;
+            double high = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < length; i++) {
+                double cost = costs[i];
+                if (cost >= min && cost <= max) {
+                    count++;
+                    sum += cost;
+                    low = Math.min(low, cost);
+                    high = Math.max(high, cost);
+                }
+            }
+            into.add(count, sum, low, high);
+        }
+    }
+}
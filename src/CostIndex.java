@@ -0,0 +1,318 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sorted secondary index on the cost field, stored next to the data file as products.dat.cost.
+ * Entries are (cost, record) pairs held in primitive arrays and kept in sorted runs: new entries are
+ * inserted into a small sorted run that is merged into the larger runs when it fills up. Range
+ * queries binary-search every run and merge the slices, so they cost O(log n + k); the cheapest and
+ * most expensive products are read from the ends of the runs. Updates and deletes remove the old
+ * entry from whichever run holds it.
+ */
+public class CostIndex extends SidecarIndex {
+    public static final String SUFFIX = ".cost";
+
+    private static final int MAGIC = 0x434F5358; // "COSX"
+    private static final int VERSION = 2;
+    private static final int PENDING_CAPACITY = 4096;
+
+    // Sorted runs, oldest and largest first
+    private final List<Run> runs = new ArrayList<>();
+    private Run pending = new Run(PENDING_CAPACITY);
+
+    private CostIndex(ProductStore store) {
+        super(store, SUFFIX, MAGIC, VERSION);
+    }
+
+    /**
+     * Opens the cost index of a store, loading, updating or rebuilding the sidecar file as needed,
+     * and registers it for appends made through the store
+     * @param store The store to index
+     * @return the opened index
+     * @throws IOException if the index file cannot be read
+     */
+    public static CostIndex open(ProductStore store) throws IOException {
+        CostIndex index = new CostIndex(store);
+        index.load();
+        return index;
+    }
+
+    @Override
+    protected void indexRecord(long record) {
+        add(store.readCost(record), record);
+    }
+
+    @Override
+    protected void indexProduct(long record, Product product) {
+        add(product.getCost(), record);
+    }
+
+    @Override
+    protected void updateEntry(long record, Product before, Product after) {
+        remove(before.getCost(), record);
+        add(after.getCost(), record);
+    }
+
+    @Override
+    protected void deleteEntry(long record, Product before) {
+        remove(before.getCost(), record);
+    }
+
+    private void remove(double cost, long record) {
+        for (Run run : allRuns()) {
+            if (run.remove(cost, record)) {
+                return;
+            }
+        }
+    }
+
+    private void add(double cost, long record) {
+        pending.insert(cost, record);
+        if (pending.size == PENDING_CAPACITY) {
+            Run run = pending;
+            pending = new Run(PENDING_CAPACITY);
+            while (!runs.isEmpty() && runs.get(runs.size() - 1).size <= run.size * 2) {
+                run = Run.merge(runs.remove(runs.size() - 1), run);
+            }
+            runs.add(run);
+        }
+    }
+
+    /**
+     * Finds the records with a cost in a range
+     * @param min The lowest cost, inclusive
+     * @param max The highest cost, inclusive
+     * @return the matching record numbers ordered by cost, equal costs in record order
+     */
+    public synchronized long[] range(double min, double max) {
+        List<Run> all = allRuns();
+        int[] from = new int[all.size()];
+        int[] to = new int[all.size()];
+        int total = 0;
+        for (int r = 0; r < all.size(); r++) {
+            from[r] = all.get(r).lowerBound(min);
+            to[r] = all.get(r).upperBound(max);
+            total += Math.max(0, to[r] - from[r]);
+        }
+        return merge(all, from, to, total);
+    }
+
+    /**
+     * Counts the records with a cost in a range without collecting them
+     * @param min The lowest cost, inclusive
+     * @param max The highest cost, inclusive
+     * @return the number of matching records
+     */
+    public synchronized long count(double min, double max) {
+        long count = 0;
+        for (Run run : allRuns()) {
+            count += Math.max(0, run.upperBound(max) - run.lowerBound(min));
+        }
+        return count;
+    }
+
+    /**
+     * Finds the cheapest products
+     * @param k The number of records wanted
+     * @return up to k record numbers, cheapest first
+     */
+    public synchronized long[] cheapest(int k) {
+        List<Run> all = allRuns();
+        int[] from = new int[all.size()];
+        int[] to = new int[all.size()];
+        long total = 0;
+        for (int r = 0; r < all.size(); r++) {
+            to[r] = all.get(r).size;
+            total += to[r];
+        }
+        return merge(all, from, to, (int) Math.min(k, total));
+    }
+
+    /**
+     * Finds the most expensive products
+     * @param k The number of records wanted
+     * @return up to k record numbers, most expensive first, equal costs in reverse record order
+     */
+    public synchronized long[] mostExpensive(int k) {
+        List<Run> all = allRuns();
+        int[] next = new int[all.size()];
+        long total = 0;
+        for (int r = 0; r < all.size(); r++) {
+            next[r] = all.get(r).size - 1;
+            total += all.get(r).size;
+        }
+
+        long[] result = new long[(int) Math.min(k, total)];
+        for (int i = 0; i < result.length; i++) {
+            int best = -1;
+            for (int r = 0; r < all.size(); r++) {
+                if (next[r] >= 0 && (best < 0 || all.get(r).compare(next[r], all.get(best), next[best]) > 0)) {
+                    best = r;
+                }
+            }
+            result[i] = all.get(best).record[next[best]--];
+        }
+        return result;
+    }
+
+    // Merges the slices [from, to) of the runs in ascending order until count records are taken
+    private static long[] merge(List<Run> runs, int[] from, int[] to, int count) {
+        long[] result = new long[count];
+        int[] next = from.clone();
+        for (int i = 0; i < count; i++) {
+            int best = -1;
+            for (int r = 0; r < runs.size(); r++) {
+                if (next[r] < to[r] && (best < 0 || runs.get(r).compare(next[r], runs.get(best), next[best]) < 0)) {
+                    best = r;
+                }
+            }
+            result[i] = runs.get(best).record[next[best]++];
+        }
+        return result;
+    }
+
+    private List<Run> allRuns() {
+        List<Run> all = new ArrayList<>(runs);
+        all.add(pending);
+        return all;
+    }
+
+    @Override
+    protected void clear() {
+        runs.clear();
+        pending = new Run(PENDING_CAPACITY);
+    }
+
+    @Override
+    protected boolean readEntries(DataInputStream in) throws IOException {
+        // Every indexed record has one entry at most
+        int size = in.readInt();
+        if (size < 0 || size > indexedRecords) {
+            return false;
+        }
+        Run run = new Run(size);
+        for (int i = 0; i < size; i++) {
+            run.cost[i] = in.readDouble();
+            run.record[i] = in.readLong();
+            // Range queries binary search the run, so entries out of order or range mean the file is corrupt
+            if (run.record[i] < 0 || run.record[i] >= indexedRecords || (i > 0 && run.compare(i - 1, run, i) >= 0)) {
+                return false;
+            }
+        }
+        run.size = size;
+        if (size > 0) {
+            runs.add(run);
+        }
+        return true;
+    }
+
+    @Override
+    protected void writeEntries(DataOutputStream out) throws IOException {
+        // Everything is merged into one run so the next open loads a single sorted array
+        Run run = new Run(0);
+        for (Run other : allRuns()) {
+            run = Run.merge(run, other);
+        }
+        runs.clear();
+        pending = new Run(PENDING_CAPACITY);
+        if (run.size > 0) {
+            runs.add(run);
+        }
+
+        out.writeInt(run.size);
+        for (int i = 0; i < run.size; i++) {
+            out.writeDouble(run.cost[i]);
+            out.writeLong(run.record[i]);
+        }
+    }
+
+    /**
+     * Parallel arrays of (cost, record) entries sorted by cost, then record
+     */
+    private static class Run {
+        double[] cost;
+        long[] record;
+        int size;
+
+        Run(int capacity) {
+            cost = new double[capacity];
+            record = new long[capacity];
+        }
+
+        int compare(int i, Run other, int j) {
+            int c = Double.compare(cost[i], other.cost[j]);
+            return c != 0 ? c : Long.compare(record[i], other.record[j]);
+        }
+
+        // Inserts after every entry that sorts before or equal to (c, r)
+        void insert(double c, long r) {
+            int from = 0, to = size;
+            while (from < to) {
+                int mid = (from + to) >>> 1;
+                int cmp = Double.compare(cost[mid], c);
+                if (cmp < 0 || (cmp == 0 && record[mid] <= r)) from = mid + 1; else to = mid;
+            }
+            System.arraycopy(cost, from, cost, from + 1, size - from);
+            System.arraycopy(record, from, record, from + 1, size - from);
+            cost[from] = c;
+            record[from] = r;
+            size++;
+        }
+
+        // Removes the entry (c, r), returning false if the run does not hold it
+        boolean remove(double c, long r) {
+            int from = 0, to = size;
+            while (from < to) {
+                int mid = (from + to) >>> 1;
+                int cmp = Double.compare(cost[mid], c);
+                if (cmp < 0 || (cmp == 0 && record[mid] < r)) from = mid + 1; else to = mid;
+            }
+            if (from == size || Double.compare(cost[from], c) != 0 || record[from] != r) {
+                return false;
+            }
+            System.arraycopy(cost, from + 1, cost, from, size - from - 1);
+            System.arraycopy(record, from + 1, record, from, size - from - 1);
+            size--;
+            return true;
+        }
+
+        // First entry with a cost of at least c
+        int lowerBound(double c) {
+            int from = 0, to = size;
+            while (from < to) {
+                int mid = (from + to) >>> 1;
+                if (Double.compare(cost[mid], c) < 0) from = mid + 1; else to = mid;
+            }
+            return from;
+        }
+
+        // First entry with a cost above c
+        int upperBound(double c) {
+            int from = 0, to = size;
+            while (from < to) {
+                int mid = (from + to) >>> 1;
+                if (Double.compare(cost[mid], c) <= 0) from = mid + 1; else to = mid;
+            }
+            return from;
+        }
+
+        static Run merge(Run a, Run b) {
+            Run run = new Run(a.size + b.size);
+            int i = 0, j = 0, k = 0;
+            while (i < a.size || j < b.size) {
+                if (j == b.size || (i < a.size && a.compare(i, b, j) <= 0)) {
+                    run.cost[k] = a.cost[i];
+                    run.record[k++] = a.record[i++];
+                } else {
+                    run.cost[k] = b.cost[j];
+                    run.record[k++] = b.record[j++];
+                }
+            }
+            run.size = k;
+            return run;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Command line tool that converts a products file to record format v2.
+ * Records are streamed through a fixed-size buffer, so files of any size convert in constant memory.
+ * Record numbers do not change and deleted records stay deleted, so the sidecar indexes of the file stay valid.
+ * The source is opened for writing, so its write-ahead log is replayed first and no other process
+ * writes to it during the conversion.
+ *
+ * Usage: java FormatConverter source [target] [latin1|utf16]
+ * Without a target the source is replaced once the conversion has finished, through the store so
+ * read-only stores pick up the new format. Without an encoding, ISO-8859-1 is used if every record
+ * fits in it and UTF-16 otherwise.
+ */
+public class FormatConverter {
+    private static final int BUFFER_RECORDS = 8192;
+
+    /**
+     * Converts a file
+     * @param source The file to read, in any supported format
+     * @param target The file to write, replaced if it exists
+     * @param format The format to write
+     * @return the number of records converted
+     * @throws IOException if a file cannot be read or written, or another process writes to the source
+     */
+    public static long convert(Path source, Path target, RecordFormat format) throws IOException {
+        try (ProductStore store = ProductStore.openReadWrite(source)) {
+            return convert(store, target, format);
+        }
+    }
+
+    /**
+     * Converts the records of an open store. Called with the store's lock held and its log
+     * checkpointed, so every record is read as it is in the data file.
+     * @param store The store to read
+     * @param target The file to write, replaced if it exists
+     * @param format The format to write
+     * @return the number of records converted
+     * @throws IOException if the target cannot be written
+     */
+    static long convert(ProductStore store, Path target, RecordFormat format) throws IOException {
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            format.writeHeader(out);
+            long position = format.getHeaderSize();
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_RECORDS * format.getRecordSize());
+            long count = store.getRecordCount();
+            for (long record = 0; record < count; record++) {
+                format.encode(store.readId(record), store.readName(record),
+                        store.readDescription(record), store.readCost(record), buffer);
+                // Deleted records keep their tombstone so record numbers do not shift
+                if (store.isDeleted(record)) {
+                    format.markDeleted(buffer, buffer.position() - format.getRecordSize());
+                }
+                if (!buffer.hasRemaining()) {
+                    position = write(out, buffer, position);
+                }
+            }
+            write(out, buffer, position);
+            format.writeCommitted(out, count);
+            out.force(true);
+            return count;
+        }
+    }
+
+    /**
+     * Picks the most compact v2 format able to hold every record of a file
+     * @param source The file to inspect
+     * @return RecordFormat.V2_LATIN1 if every record fits in ISO-8859-1, otherwise RecordFormat.V2_UTF16
+     * @throws IOException if the file cannot be read
+     */
+    public static RecordFormat compactFormat(Path source) throws IOException {
+        try (ProductStore store = ProductStore.openReadOnly(source)) {
+            return compactFormat(store);
+        }
+    }
+
+    private static RecordFormat compactFormat(ProductStore store) {
+        RecordFormat latin1 = RecordFormat.V2_LATIN1;
+        long count = store.getRecordCount();
+        for (long record = 0; record < count; record++) {
+            if (!latin1.canEncode(store.readId(record))
+                    || !latin1.canEncode(store.readName(record))
+                    || !latin1.canEncode(store.readDescription(record))) {
+                return RecordFormat.V2_UTF16;
+            }
+        }
+        return latin1;
+    }
+
+    private static long write(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            position += out.write(buffer, position);
+        }
+        buffer.clear();
+        return position;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 3) {
+            System.err.println("Usage: java FormatConverter source [target] [latin1|utf16]");
+            System.exit(2);
+        }
+
+        Path source = Paths.get(args[0]);
+        Path target = args.length > 1 && !isEncoding(args[1]) ? Paths.get(args[1]) : null;
+        String encoding = isEncoding(args[args.length - 1]) ? args[args.length - 1] : null;
+
+        // Holding the store open keeps other writers out from choosing the format until the file is moved
+        try (ProductStore store = ProductStore.openReadWrite(source)) {
+            RecordFormat format;
+            if (encoding == null) {
+                format = compactFormat(store);
+            } else if (encoding.equalsIgnoreCase("latin1")) {
+                format = RecordFormat.V2_LATIN1;
+            } else {
+                format = RecordFormat.V2_UTF16;
+            }
+
+            if (target == null && store.getFormat() == format) {
+                System.out.println(source + " is already in " + format);
+                return;
+            }
+            // In-place conversion writes a temporary file first so the source survives a failure
+            long count = target != null ? convert(store, target, format) : store.convert(format);
+
+            System.out.println("Converted " + count + " records to " + format
+                    + " (" + Files.size(target != null ? target : source) + " bytes)");
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Error converting file: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static boolean isEncoding(String arg) {
+        return arg.equalsIgnoreCase("latin1") || arg.equalsIgnoreCase("utf16");
+    }
+}
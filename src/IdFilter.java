@@ -0,0 +1,261 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Persistent Bloom filter over the product IDs of a store, stored next to the data file as
+ * products.dat.bloom, used to keep IDs unique. Most new IDs are not in the store, and for those the
+ * filter answers with a few memory reads and no disk access; only when the filter reports a possible
+ * match is the ID looked up in the IdIndex to confirm it.
+ *
+ * The filter is a chain of layers: when the newest layer holds as many IDs as it was sized for, a
+ * layer twice as large with a lower false positive rate is added, so the filter grows with the store
+ * without being rebuilt and the overall false positive rate stays below one percent. IDs of deleted
+ * records stay in the filter, their lookups are answered by the index.
+ */
+public class IdFilter extends SidecarIndex {
+    public static final String SUFFIX = ".bloom";
+
+    private static final int MAGIC = 0x424C4F4D; // "BLOM"
+    private static final int VERSION = 1;
+    private static final long MIN_CAPACITY = 1 << 16;
+    // The false positive rate of the first layer, each later layer has half the rate of the one before
+    private static final double FIRST_ERROR_RATE = 0.005;
+
+    private final IdIndex idIndex;
+    private final List<Layer> layers = new ArrayList<>();
+    private long checks;
+    private long falsePositives;
+
+    private IdFilter(ProductStore store, IdIndex idIndex) {
+        super(store, SUFFIX, MAGIC, VERSION);
+        this.idIndex = idIndex;
+    }
+
+    /**
+     * Opens the filter of a store, loading, updating or rebuilding the sidecar file as needed,
+     * and registers it for appends made through the store
+     * @param store The store whose IDs are filtered
+     * @param idIndex The index of the same store, used to confirm possible matches
+     * @return the opened filter
+     * @throws IOException if the filter file cannot be read
+     */
+    public static IdFilter open(ProductStore store, IdIndex idIndex) throws IOException {
+        IdFilter filter = new IdFilter(store, idIndex);
+        filter.load();
+        return filter;
+    }
+
+    /**
+     * Tests whether a live record holds an ID
+     * @param id The product ID
+     * @return true if the store holds a product with the ID that has not been deleted
+     */
+    public boolean contains(String id) {
+        if (!mightContain(id)) {
+            return false;
+        }
+        if (idIndex.lookup(id) >= 0) {
+            return true;
+        }
+        synchronized (this) {
+            falsePositives++;
+        }
+        return false;
+    }
+
+    /**
+     * Tests the filter only
+     * @param id The product ID
+     * @return false if no record holds the ID, true if one may
+     */
+    public synchronized boolean mightContain(String id) {
+        checks++;
+        long hash = hash(id);
+        for (Layer layer : layers) {
+            if (layer.mightContain(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of IDs tested
+     */
+    public synchronized long getChecks() { return checks; }
+
+    /**
+     * @return the number of tests the filter passed but the index did not confirm
+     */
+    public synchronized long getFalsePositives() { return falsePositives; }
+
+    /**
+     * @return the size of the filter in bytes
+     */
+    public synchronized long getSizeInBytes() {
+        long bytes = 0;
+        for (Layer layer : layers) {
+            bytes += layer.bits.length * 8L;
+        }
+        return bytes;
+    }
+
+    @Override
+    protected void indexRecord(long record) {
+        add(store.readId(record));
+    }
+
+    @Override
+    protected void indexProduct(long record, Product product) {
+        add(product.getID());
+    }
+
+    @Override
+    protected void updateEntry(long record, Product before, Product after) {
+        // Updates cannot change the ID
+    }
+
+    @Override
+    protected void deleteEntry(long record, Product before) {
+        // A Bloom filter cannot remove an entry, the index answers for deleted records
+    }
+
+    private void add(String id) {
+        Layer layer = layers.isEmpty() ? null : layers.get(layers.size() - 1);
+        if (layer == null || layer.count >= layer.capacity) {
+            // A rebuilt filter is sized for the whole store so it starts with a single layer
+            long capacity = layer == null ? Math.max(MIN_CAPACITY, store.getRecordCount()) : layer.capacity * 2;
+            layer = new Layer(capacity, errorRate(layers.size()));
+            layers.add(layer);
+        }
+        layer.add(hash(id));
+    }
+
+    @Override
+    protected void clear() {
+        layers.clear();
+    }
+
+    @Override
+    protected boolean readEntries(DataInputStream in) throws IOException {
+        // Every layer but the last is full, and each indexed record added one ID at most
+        int count = in.readInt();
+        if (count < 0 || count > 1 + indexedRecords / MIN_CAPACITY) {
+            return false;
+        }
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            long capacity = in.readLong();
+            long entries = in.readLong();
+            int hashes = in.readInt();
+            int words = in.readInt();
+            // Layers are sized the way add() sizes them, so the sizes are checked before anything is allocated
+            boolean sized = i == 0
+                    ? capacity >= MIN_CAPACITY && capacity <= Math.max(MIN_CAPACITY, store.getRecordCount())
+                    : capacity == layers.get(i - 1).capacity * 2;
+            total += entries;
+            if (!sized || entries < 0 || entries > capacity || (i < count - 1 && entries != capacity)
+                    || total > indexedRecords || words != words(capacity, errorRate(i))
+                    || hashes != hashes(words, capacity)) {
+                return false;
+            }
+            long[] bits = new long[words];
+            for (int j = 0; j < bits.length; j++) {
+                bits[j] = in.readLong();
+            }
+            layers.add(new Layer(capacity, entries, hashes, bits));
+        }
+        return true;
+    }
+
+    @Override
+    protected void writeEntries(DataOutputStream out) throws IOException {
+        out.writeInt(layers.size());
+        for (Layer layer : layers) {
+            out.writeLong(layer.capacity);
+            out.writeLong(layer.count);
+            out.writeInt(layer.hashes);
+            out.writeInt(layer.bits.length);
+            for (long word : layer.bits) {
+                out.writeLong(word);
+            }
+        }
+    }
+
+    // Mixes the packed ID with the finalizer of MurmurHash3
+    private static long hash(String id) {
+        long h = IdIndex.packHigh(id) * 0x9E3779B97F4A7C15L ^ IdIndex.packLow(id);
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // The false positive rate of a layer
+    private static double errorRate(int layer) {
+        return FIRST_ERROR_RATE / (1L << Math.min(layer, 30));
+    }
+
+    // The optimal size is -n ln p / (ln 2)^2 bits with (m / n) ln 2 hash functions
+    private static int words(long capacity, double errorRate) {
+        long size = (long) Math.ceil(-capacity * Math.log(errorRate) / (Math.log(2) * Math.log(2)));
+        return (int) Math.min(Integer.MAX_VALUE - 8, (size + 63) / 64);
+    }
+
+    private static int hashes(int words, long capacity) {
+        return Math.max(1, (int) Math.round((double) words * 64 / capacity * Math.log(2)));
+    }
+
+    /**
+     * One fixed-size Bloom filter
+     */
+    private static class Layer {
+        final long capacity;
+        final int hashes;
+        final long[] bits;
+        long count;
+
+        Layer(long capacity, double errorRate) {
+            this.capacity = capacity;
+            this.bits = new long[words(capacity, errorRate)];
+            this.hashes = hashes(bits.length, capacity);
+        }
+
+        Layer(long capacity, long count, int hashes, long[] bits) {
+            this.capacity = capacity;
+            this.count = count;
+            this.hashes = hashes;
+            this.bits = bits;
+        }
+
+        // Double hashing: the i-th bit is h1 + i * h2, taken from the two halves of the hash
+        void add(long hash) {
+            long size = bits.length * 64L;
+            long h1 = hash & 0xFFFFFFFFL;
+            long h2 = hash >>> 32 | 1;
+            for (int i = 0; i < hashes; i++) {
+                long bit = (h1 + i * h2) % size;
+                bits[(int) (bit >>> 6)] |= 1L << bit;
+            }
+            count++;
+        }
+
+        boolean mightContain(long hash) {
+            long size = bits.length * 64L;
+            long h1 = hash & 0xFFFFFFFFL;
+            long h2 = hash >>> 32 | 1;
+            for (int i = 0; i < hashes; i++) {
+                long bit = (h1 + i * h2) % size;
+                if ((bits[(int) (bit >>> 6)] & 1L << bit) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
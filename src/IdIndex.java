@@ -0,0 +1,270 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Persistent index from product ID to record number, stored next to the data file as products.dat.idx.
+ * IDs are packed into a long and an int (4 + 2 characters) and kept in sorted runs, so a lookup
+ * is a binary search per run. Appends collect in a small unsorted buffer that is sorted into a run
+ * when it fills up, and runs of similar size are merged, so keeping the index in sync stays cheap
+ * during bulk loads. Entries of deleted records are left in place and filtered out by the lookups.
+ */
+public class IdIndex extends SidecarIndex {
+    public static final String SUFFIX = ".idx";
+
+    private static final int MAGIC = 0x49444958; // "IDIX"
+    private static final int VERSION = 2;
+    private static final int PENDING_CAPACITY = 4096;
+
+    // Sorted runs, oldest and largest first
+    private final List<Run> runs = new ArrayList<>();
+    private final Run pending = new Run(PENDING_CAPACITY);
+
+    private IdIndex(ProductStore store) {
+        super(store, SUFFIX, MAGIC, VERSION);
+    }
+
+    /**
+     * Opens the index of a store, loading, updating or rebuilding the sidecar file as needed,
+     * and registers it for appends made through the store
+     * @param store The store to index
+     * @return the opened index
+     * @throws IOException if the index file cannot be read
+     */
+    public static IdIndex open(ProductStore store) throws IOException {
+        IdIndex index = new IdIndex(store);
+        index.load();
+        return index;
+    }
+
+    @Override
+    protected void indexRecord(long record) {
+        add(store.readId(record), record);
+    }
+
+    @Override
+    protected void indexProduct(long record, Product product) {
+        add(product.getID(), record);
+    }
+
+    @Override
+    protected void updateEntry(long record, Product before, Product after) {
+        // Updates cannot change the ID
+    }
+
+    @Override
+    protected void deleteEntry(long record, Product before) {
+        // Filtered out by lookupAll
+    }
+
+    private void add(String id, long record) {
+        pending.add(packHigh(id), packLow(id), record);
+        if (pending.size == PENDING_CAPACITY) {
+            flushPending();
+        }
+    }
+
+    // Sorts the pending buffer into a run and merges runs of similar size
+    private void flushPending() {
+        Run run = pending.sortedCopy();
+        pending.size = 0;
+        while (!runs.isEmpty() && runs.get(runs.size() - 1).size <= run.size * 2) {
+            run = Run.merge(runs.remove(runs.size() - 1), run);
+        }
+        runs.add(run);
+    }
+
+    /**
+     * Finds the first record with the given ID
+     * @param id The product ID
+     * @return the lowest record number holding the ID, or -1 if there is none
+     */
+    public synchronized long lookup(String id) {
+        long[] records = lookupAll(id);
+        return records.length > 0 ? records[0] : -1;
+    }
+
+    /**
+     * Finds every record with the given ID
+     * @param id The product ID
+     * @return the live record numbers holding the ID in ascending order
+     */
+    public synchronized long[] lookupAll(String id) {
+        if (id.length() != ProductStore.ID_LENGTH) {
+            return new long[0];
+        }
+        long high = packHigh(id);
+        int low = packLow(id);
+
+        long[] found = new long[0];
+        for (Run run : runs) {
+            found = run.collect(high, low, found);
+        }
+        for (int i = 0; i < pending.size; i++) {
+            if (pending.high[i] == high && pending.low[i] == low) {
+                found = Arrays.copyOf(found, found.length + 1);
+                found[found.length - 1] = pending.record[i];
+            }
+        }
+        Arrays.sort(found);
+
+        int live = 0;
+        for (long record : found) {
+            if (!store.isDeleted(record)) {
+                found[live++] = record;
+            }
+        }
+        return live == found.length ? found : Arrays.copyOf(found, live);
+    }
+
+    @Override
+    protected void clear() {
+        runs.clear();
+        pending.size = 0;
+    }
+
+    @Override
+    protected boolean readEntries(DataInputStream in) throws IOException {
+        // Every indexed record has one entry at most
+        int size = in.readInt();
+        if (size < 0 || size > indexedRecords) {
+            return false;
+        }
+        Run run = new Run(size);
+        for (int i = 0; i < size; i++) {
+            long high = in.readLong();
+            int low = in.readInt();
+            long record = in.readLong();
+            // Lookups binary search the run, so entries out of order or range mean the file is corrupt
+            if (record < 0 || record >= indexedRecords || (i > 0 && run.compare(i - 1, high, low, record) >= 0)) {
+                return false;
+            }
+            run.add(high, low, record);
+        }
+        if (size > 0) {
+            runs.add(run);
+        }
+        return true;
+    }
+
+    @Override
+    protected void writeEntries(DataOutputStream out) throws IOException {
+        // Everything is merged into one run so the next open loads a single sorted array
+        if (pending.size > 0) {
+            flushPending();
+        }
+        while (runs.size() > 1) {
+            runs.add(Run.merge(runs.remove(runs.size() - 2), runs.remove(runs.size() - 1)));
+        }
+        Run run = runs.isEmpty() ? new Run(0) : runs.get(0);
+
+        out.writeInt(run.size);
+        for (int i = 0; i < run.size; i++) {
+            out.writeLong(run.high[i]);
+            out.writeInt(run.low[i]);
+            out.writeLong(run.record[i]);
+        }
+    }
+
+    // The first four characters of the ID, unsigned comparison keeps the character order
+    static long packHigh(String id) {
+        return (long) charAt(id, 0) << 48 | (long) charAt(id, 1) << 32 | (long) charAt(id, 2) << 16 | charAt(id, 3);
+    }
+
+    // The last two characters of the ID
+    static int packLow(String id) {
+        return charAt(id, 4) << 16 | charAt(id, 5);
+    }
+
+    // IDs read back from the file have their NUL padding stripped
+    private static char charAt(String id, int i) {
+        return i < id.length() ? id.charAt(i) : '\0';
+    }
+
+    /**
+     * Parallel arrays of (ID, record) entries
+     */
+    private static class Run {
+        long[] high;
+        int[] low;
+        long[] record;
+        int size;
+
+        Run(int capacity) {
+            high = new long[capacity];
+            low = new int[capacity];
+            record = new long[capacity];
+        }
+
+        void add(long h, int l, long r) {
+            high[size] = h;
+            low[size] = l;
+            record[size] = r;
+            size++;
+        }
+
+        int compare(int i, long h, int l, long r) {
+            int c = Long.compareUnsigned(high[i], h);
+            if (c == 0) c = Integer.compareUnsigned(low[i], l);
+            if (c == 0) c = Long.compare(record[i], r);
+            return c;
+        }
+
+        // Appends the records of every entry with the given key to found
+        long[] collect(long h, int l, long[] found) {
+            // First entry not below (h, l, -1)
+            int from = 0, to = size;
+            while (from < to) {
+                int mid = (from + to) >>> 1;
+                if (compare(mid, h, l, -1) < 0) from = mid + 1; else to = mid;
+            }
+            int end = from;
+            while (end < size && high[end] == h && low[end] == l) {
+                end++;
+            }
+            if (end == from) {
+                return found;
+            }
+            long[] result = Arrays.copyOf(found, found.length + end - from);
+            System.arraycopy(record, from, result, found.length, end - from);
+            return result;
+        }
+
+        Run sortedCopy() {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Run.this.compare(a, high[b], low[b], record[b]);
+                }
+            });
+            Run run = new Run(size);
+            for (int i : order) {
+                run.add(high[i], low[i], record[i]);
+            }
+            return run;
+        }
+
+        static Run merge(Run a, Run b) {
+            Run run = new Run(a.size + b.size);
+            int i = 0, j = 0;
+            while (i < a.size && j < b.size) {
+                if (a.compare(i, b.high[j], b.low[j], b.record[j]) <= 0) {
+                    run.add(a.high[i], a.low[i], a.record[i++]);
+                } else {
+                    run.add(b.high[j], b.low[j], b.record[j++]);
+                }
+            }
+            while (i < a.size) run.add(a.high[i], a.low[i], a.record[i++]);
+            while (j < b.size) run.add(b.high[j], b.low[j], b.record[j++]);
+            return run;
+        }
+    }
+}
@@ -0,0 +1,326 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Searches product names for many terms at once. The terms are compiled into an Aho-Corasick
+ * automaton, so every record is read once and each character of its lower-cased name takes one
+ * step of the automaton whatever the number of terms: a batch of hundreds of terms costs about one
+ * scan instead of one scan per term. Each term matches the records whose name contains it ignoring
+ * case, exactly like ProductView.nameContains, and optionally those whose description does.
+ *
+ * The automaton works on characters rather than bytes, the records' text encoding is decoded by
+ * the ProductView. Transitions for ASCII characters are precomputed into a table; other characters
+ * follow the failure links. Records are scanned in parallel chunks like ParallelScanner does.
+ * A compiled search is immutable and can be run by any number of threads at once.
+ */
+public class MultiTermSearch {
+    private static final long MIN_CHUNK_RECORDS = 4096;
+    private static final int CHUNKS_PER_THREAD = 8;
+    private static final int ASCII = 128;
+
+    private final String[] terms;
+    // The distinct term each term is answered by
+    private final int[] slots;
+    private final int slotCount;
+
+    // Automaton states, 0 is the root
+    private final int[] asciiNext;
+    private final char[][] keys;
+    private final int[][] targets;
+    private final int[] fail;
+    // The distinct terms ending at each state, including those reached through failure links
+    private final int[][] outputs;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Compiles a batch of terms, running searches on the common pool
+     * @param terms The search terms, trimmed and lower-cased like a single search's term
+     * @throws IllegalArgumentException if there are no terms or a term is empty
+     */
+    public MultiTermSearch(List<String> terms) {
+        this(terms, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Compiles a batch of terms
+     * @param terms The search terms, trimmed and lower-cased like a single search's term
+     * @param pool The pool running the scan tasks
+     * @throws IllegalArgumentException if there are no terms or a term is empty
+     */
+    public MultiTermSearch(List<String> terms, ForkJoinPool pool) {
+        if (terms.isEmpty()) {
+            throw new IllegalArgumentException("Please enter a search term");
+        }
+        this.pool = pool;
+        this.terms = new String[terms.size()];
+        this.slots = new int[terms.size()];
+
+        // Build the trie of the distinct terms
+        Map<String, Integer> distinct = new HashMap<>();
+        List<TreeMap<Character, Integer>> children = new ArrayList<>();
+        List<int[]> ends = new ArrayList<>();
+        children.add(new TreeMap<Character, Integer>());
+        ends.add(new int[0]);
+        for (int i = 0; i < terms.size(); i++) {
+            String term = terms.get(i) == null ? "" : terms.get(i).trim().toLowerCase();
+            if (term.isEmpty()) {
+                throw new IllegalArgumentException("Search term " + (i + 1) + " is empty");
+            }
+            this.terms[i] = term;
+            Integer slot = distinct.get(term);
+            if (slot == null) {
+                slot = distinct.size();
+                distinct.put(term, slot);
+                int state = 0;
+                for (int c = 0; c < term.length(); c++) {
+                    Integer next = children.get(state).get(term.charAt(c));
+                    if (next == null) {
+                        next = children.size();
+                        children.get(state).put(term.charAt(c), next);
+                        children.add(new TreeMap<Character, Integer>());
+                        ends.add(new int[0]);
+                    }
+                    state = next;
+                }
+                int[] end = ends.get(state);
+                end = Arrays.copyOf(end, end.length + 1);
+                end[end.length - 1] = slot;
+                ends.set(state, end);
+            }
+            slots[i] = slot;
+        }
+        slotCount = distinct.size();
+
+        int states = children.size();
+        keys = new char[states][];
+        targets = new int[states][];
+        for (int state = 0; state < states; state++) {
+            TreeMap<Character, Integer> edges = children.get(state);
+            keys[state] = new char[edges.size()];
+            targets[state] = new int[edges.size()];
+            int e = 0;
+            for (Map.Entry<Character, Integer> edge : edges.entrySet()) {
+                keys[state][e] = edge.getKey();
+                targets[state][e++] = edge.getValue();
+            }
+        }
+
+        // Breadth first, so the failure state of every state is complete before the state itself
+        fail = new int[states];
+        outputs = new int[states][];
+        asciiNext = new int[states * ASCII];
+        outputs[0] = ends.get(0);
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int e = 0; e < keys[0].length; e++) {
+            queue.add(targets[0][e]);
+            if (keys[0][e] < ASCII) {
+                asciiNext[keys[0][e]] = targets[0][e];
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            int[] own = ends.get(state);
+            int[] inherited = outputs[fail[state]];
+            int[] out = Arrays.copyOf(own, own.length + inherited.length);
+            System.arraycopy(inherited, 0, out, own.length, inherited.length);
+            outputs[state] = out;
+
+            System.arraycopy(asciiNext, fail[state] * ASCII, asciiNext, state * ASCII, ASCII);
+            for (int e = 0; e < keys[state].length; e++) {
+                int child = targets[state][e];
+                fail[child] = state == 0 ? 0 : next(fail[state], keys[state][e]);
+                if (keys[state][e] < ASCII) {
+                    asciiNext[state * ASCII + keys[state][e]] = child;
+                }
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * @return the number of terms, including repeated ones
+     */
+    public int getTermCount() {
+        return terms.length;
+    }
+
+    /**
+     * @param i The position of the term in the batch
+     * @return the term as it is matched, trimmed and lower-cased
+     */
+    public String getTerm(int i) {
+        return terms[i];
+    }
+
+    /**
+     * Searches every record of a snapshot in one pass
+     * @param snapshot The records to search
+     * @param includeDescription true to match terms in the description as well as the name
+     * @param progress Notified as chunks complete, may be null
+     * @return the matching record numbers of each term in ascending order, in the order of the terms
+     */
+    public long[][] search(ProductStore.Snapshot snapshot, boolean includeDescription,
+                           ParallelScanner.Progress progress) {
+        long records = snapshot.getRecordCount();
+        StoreMetrics metrics = snapshot.getStore().getMetrics();
+        StoreMetrics.SearchEvent event = metrics.beginSearch("multi");
+        long chunk = Math.max(MIN_CHUNK_RECORDS, records / ((long) pool.getParallelism() * CHUNKS_PER_THREAD));
+        Matches matches = records == 0 ? new Matches()
+                : pool.invoke(new SearchTask(snapshot, 0, records, chunk, includeDescription, progress, new AtomicLong()));
+
+        // Sort the (record, term) pairs into one array per term, record order is kept
+        int[] counts = new int[slotCount];
+        for (int i = 0; i < matches.size; i++) {
+            counts[matches.slots[i]]++;
+        }
+        long[][] bySlot = new long[slotCount][];
+        for (int slot = 0; slot < slotCount; slot++) {
+            bySlot[slot] = new long[counts[slot]];
+        }
+        int[] filled = new int[slotCount];
+        for (int i = 0; i < matches.size; i++) {
+            int slot = matches.slots[i];
+            bySlot[slot][filled[slot]++] = matches.records[i];
+        }
+
+        long[][] results = new long[terms.length][];
+        boolean[] used = new boolean[slotCount];
+        for (int i = 0; i < terms.length; i++) {
+            // A repeated term gets a copy so no two results share an array
+            results[i] = used[slots[i]] ? bySlot[slots[i]].clone() : bySlot[slots[i]];
+            used[slots[i]] = true;
+        }
+        metrics.endSearch(event, records, records * snapshot.getFormat().getRecordSize(), matches.size);
+        return results;
+    }
+
+    // The state reached from a state on a character
+    private int next(int state, char c) {
+        if (c < ASCII) {
+            return asciiNext[state * ASCII + c];
+        }
+        while (true) {
+            int e = Arrays.binarySearch(keys[state], c);
+            if (e >= 0) {
+                return targets[state][e];
+            }
+            if (state == 0) {
+                return 0;
+            }
+            state = fail[state];
+        }
+    }
+
+    /**
+     * Record and term pairs in record order
+     */
+    private static class Matches {
+        long[] records = new long[16];
+        int[] slots = new int[16];
+        int size;
+
+        void add(long record, int slot) {
+            if (size == records.length) {
+                records = Arrays.copyOf(records, size * 2);
+                slots = Arrays.copyOf(slots, size * 2);
+            }
+            records[size] = record;
+            slots[size++] = slot;
+        }
+
+        void addAll(Matches other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.records[i], other.slots[i]);
+            }
+        }
+    }
+
+    private class SearchTask extends RecursiveTask<Matches> {
+        private static final long serialVersionUID = 1L;
+
+        // Tasks are never serialized, the fork-join pool only runs them in this process
+        private final transient ProductStore.Snapshot snapshot;
+        private final long from;
+        private final long to;
+        private final long chunk;
+        private final boolean includeDescription;
+        private final transient ParallelScanner.Progress progress;
+        private final AtomicLong scanned;
+
+        SearchTask(ProductStore.Snapshot snapshot, long from, long to, long chunk, boolean includeDescription,
+                   ParallelScanner.Progress progress, AtomicLong scanned) {
+            this.snapshot = snapshot;
+            this.from = from;
+            this.to = to;
+            this.chunk = chunk;
+            this.includeDescription = includeDescription;
+            this.progress = progress;
+            this.scanned = scanned;
+        }
+
+        @Override
+        protected Matches compute() {
+            if (to - from <= chunk) {
+                return searchChunk();
+            }
+            long middle = from + (to - from) / 2;
+            SearchTask left = new SearchTask(snapshot, from, middle, chunk, includeDescription, progress, scanned);
+            SearchTask right = new SearchTask(snapshot, middle, to, chunk, includeDescription, progress, scanned);
+            left.fork();
+            Matches rightMatches = right.compute();
+            Matches leftMatches = left.join();
+            // The left half covers the lower record numbers, so appending keeps record order
+            leftMatches.addAll(rightMatches);
+            return leftMatches;
+        }
+
+        private Matches searchChunk() {
+            ProductView view = new ProductView(snapshot);
+            Matches matches = new Matches();
+            // The last record each term matched, so a term found twice in a record counts once
+            long[] lastMatch = new long[slotCount];
+            Arrays.fill(lastMatch, -1);
+            for (long record = from; record < to; record++) {
+                if (view.moveTo(record).isDeleted()) {
+                    continue;
+                }
+                match(view, view.name(), record, lastMatch, matches);
+                if (includeDescription) {
+                    match(view, view.description(), record, lastMatch, matches);
+                }
+            }
+            long done = scanned.addAndGet(to - from);
+            if (progress != null) {
+                progress.progress(done, snapshot.getRecordCount());
+            }
+            return matches;
+        }
+
+        // Runs the automaton over the lower-cased field, starting from the root so terms never span fields
+        private void match(ProductView view, CharSequence field, long record, long[] lastMatch, Matches matches) {
+            CharSequence text = view.lowerCasesPerChar(field) ? field : field.toString().toLowerCase();
+            boolean perChar = text == field;
+            int length = text.length();
+            int state = 0;
+            for (int i = 0; i < length; i++) {
+                char c = text.charAt(i);
+                state = next(state, perChar ? Character.toLowerCase(c) : c);
+                for (int slot : outputs[state]) {
+                    if (lastMatch[slot] != record) {
+                        lastMatch[slot] = record;
+                        matches.add(record, slot);
+                    }
+                }
+            }
+        }
+    }
+}
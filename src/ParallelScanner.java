@@ -0,0 +1,238 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Full-file scan engine that splits a range of records into chunks, tests them in parallel on a
+ * ForkJoinPool and merges the matches back in record order. Chunks are whole records, so every
+ * worker reads its own region of the mapped file without coordination, through one ProductView
+ * per chunk so testing a record allocates nothing. Deleted records are skipped and never reach the filter.
+ * A scan reads a snapshot of the store, so records appended while it runs are not seen and the
+ * writer is never held up.
+ *
+ * A streaming scan hands the matches over chunk by chunk instead, in record order, while later
+ * chunks are still being tested, and stops as soon as the receiver asks it to.
+ */
+public class ParallelScanner {
+    private static final long MIN_CHUNK_RECORDS = 4096;
+    private static final int CHUNKS_PER_THREAD = 8;
+    // Streaming scans keep their chunks small so the first matches arrive quickly
+    private static final long MAX_STREAM_CHUNK_RECORDS = 65536;
+    private static final int STREAM_CHUNKS_PER_THREAD = 2;
+
+    /**
+     * Decides whether a record matches
+     */
+    public interface Filter {
+        /**
+         * @param view The record to test, only valid during the call
+         * @return true if the record matches
+         */
+        boolean test(ProductView view);
+    }
+
+    /**
+     * Receives the number of records scanned so far, called from the worker threads
+     */
+    public interface Progress {
+        void progress(long scanned, long total);
+    }
+
+    /**
+     * Receives the matches of a streaming scan, called on the thread that started the scan once for
+     * every chunk, even one without matches, so a scan that finds little can still be stopped early
+     */
+    public interface Matches {
+        /**
+         * @param records The matching record numbers of the next chunk in ascending order, may be empty
+         * @return false to stop the scan
+         */
+        boolean matched(long[] records);
+    }
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates a scanner that runs on the common pool
+     */
+    public ParallelScanner() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a scanner that runs on the given pool
+     * @param pool The pool running the scan tasks
+     */
+    public ParallelScanner(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Scans every record of a store
+     * @param store The store to scan
+     * @param filter The test applied to each record
+     * @return the matching record numbers in ascending order
+     */
+    public long[] scan(ProductStore store, Filter filter) {
+        return scan(store.snapshot(), filter);
+    }
+
+    /**
+     * Scans every record of a snapshot
+     * @param snapshot The records to scan
+     * @param filter The test applied to each record
+     * @return the matching record numbers in ascending order
+     */
+    public long[] scan(ProductStore.Snapshot snapshot, Filter filter) {
+        return scan(snapshot, 0, snapshot.getRecordCount(), filter, null);
+    }
+
+    /**
+     * Scans a range of records
+     * @param store The store to scan
+     * @param from The first record to test
+     * @param to One past the last record to test
+     * @param filter The test applied to each record
+     * @param progress Notified as chunks complete, may be null
+     * @return the matching record numbers in ascending order
+     */
+    public long[] scan(ProductStore store, long from, long to, Filter filter, Progress progress) {
+        return scan(store.snapshot(), from, to, filter, progress);
+    }
+
+    /**
+     * Scans a range of the records of a snapshot
+     * @param snapshot The records to scan
+     * @param from The first record to test
+     * @param to One past the last record to test, records beyond the snapshot are not scanned
+     * @param filter The test applied to each record
+     * @param progress Notified as chunks complete, may be null
+     * @return the matching record numbers in ascending order
+     */
+    public long[] scan(ProductStore.Snapshot snapshot, long from, long to, Filter filter, Progress progress) {
+        to = Math.min(to, snapshot.getRecordCount());
+        if (from >= to) {
+            return new long[0];
+        }
+        StoreMetrics metrics = snapshot.getStore().getMetrics();
+        StoreMetrics.SearchEvent event = metrics.beginSearch("scan");
+        long chunk = Math.max(MIN_CHUNK_RECORDS, (to - from) / ((long) pool.getParallelism() * CHUNKS_PER_THREAD));
+        long[] matches = pool.invoke(new ScanTask(snapshot, from, to, chunk, filter, progress, to - from, new AtomicLong()));
+        metrics.endSearch(event, to - from, (to - from) * snapshot.getFormat().getRecordSize(), matches.length);
+        return matches;
+    }
+
+    /**
+     * Scans a range of the records of a snapshot, handing the matches of each chunk over as soon as
+     * it and every chunk before it are done. Only a few chunks per thread are in flight at once, so
+     * the memory a scan needs does not grow with the number of matches.
+     * @param snapshot The records to scan
+     * @param from The first record to test
+     * @param to One past the last record to test, records beyond the snapshot are not scanned
+     * @param filter The test applied to each record
+     * @param progress Notified as chunks complete, may be null
+     * @param matches Receives the matches in record order
+     * @return the number of matches handed over
+     */
+    public long scan(ProductStore.Snapshot snapshot, long from, long to, Filter filter, Progress progress,
+                     Matches matches) {
+        to = Math.min(to, snapshot.getRecordCount());
+        StoreMetrics metrics = snapshot.getStore().getMetrics();
+        StoreMetrics.SearchEvent event = metrics.beginSearch("scan");
+        long chunk = Math.max(MIN_CHUNK_RECORDS, Math.min(MAX_STREAM_CHUNK_RECORDS,
+                (to - from) / ((long) pool.getParallelism() * CHUNKS_PER_THREAD)));
+        int window = pool.getParallelism() * STREAM_CHUNKS_PER_THREAD;
+        ArrayDeque<ForkJoinTask<long[]>> inFlight = new ArrayDeque<>();
+        AtomicLong scanned = new AtomicLong();
+        long next = from;
+        long found = 0;
+        try {
+            while (next < to || !inFlight.isEmpty()) {
+                while (next < to && inFlight.size() < window) {
+                    long end = Math.min(to, next + chunk);
+                    inFlight.add(pool.submit(new ScanTask(snapshot, next, end, chunk, filter, progress, to - from, scanned)));
+                    next = end;
+                }
+                long[] chunkMatches = inFlight.poll().join();
+                found += chunkMatches.length;
+                if (!matches.matched(chunkMatches)) {
+                    break;
+                }
+            }
+        } finally {
+            for (ForkJoinTask<long[]> task : inFlight) {
+                task.cancel(false);
+            }
+            metrics.endSearch(event, scanned.get(), scanned.get() * snapshot.getFormat().getRecordSize(), found);
+        }
+        return found;
+    }
+
+    private static class ScanTask extends RecursiveTask<long[]> {
+        private static final long serialVersionUID = 1L;
+
+        // Tasks are never serialized, the fork-join pool only runs them in this process
+        private final transient ProductStore.Snapshot snapshot;
+        private final long from;
+        private final long to;
+        private final long chunk;
+        private final transient Filter filter;
+        private final transient Progress progress;
+        private final long total;
+        private final AtomicLong scanned;
+
+        ScanTask(ProductStore.Snapshot snapshot, long from, long to, long chunk, Filter filter,
+                 Progress progress, long total, AtomicLong scanned) {
+            this.snapshot = snapshot;
+            this.from = from;
+            this.to = to;
+            this.chunk = chunk;
+            this.filter = filter;
+            this.progress = progress;
+            this.total = total;
+            this.scanned = scanned;
+        }
+
+        @Override
+        protected long[] compute() {
+            if (to - from <= chunk) {
+                return scanChunk();
+            }
+            long middle = from + (to - from) / 2;
+            ScanTask left = new ScanTask(snapshot, from, middle, chunk, filter, progress, total, scanned);
+            ScanTask right = new ScanTask(snapshot, middle, to, chunk, filter, progress, total, scanned);
+            left.fork();
+            long[] rightMatches = right.compute();
+            long[] leftMatches = left.join();
+
+            // The left half covers the lower record numbers, so concatenating keeps record order
+            if (rightMatches.length == 0) return leftMatches;
+            if (leftMatches.length == 0) return rightMatches;
+            long[] merged = Arrays.copyOf(leftMatches, leftMatches.length + rightMatches.length);
+            System.arraycopy(rightMatches, 0, merged, leftMatches.length, rightMatches.length);
+            return merged;
+        }
+
+        private long[] scanChunk() {
+            ProductView view = new ProductView(snapshot);
+            long[] matches = new long[16];
+            int found = 0;
+            for (long record = from; record < to; record++) {
+                if (!view.moveTo(record).isDeleted() && filter.test(view)) {
+                    if (found == matches.length) {
+                        matches = Arrays.copyOf(matches, found * 2);
+                    }
+                    matches[found++] = record;
+                }
+            }
+            long done = scanned.addAndGet(to - from);
+            if (progress != null) {
+                progress.progress(done, total);
+            }
+            return Arrays.copyOf(matches, found);
+        }
+    }
+}
@@ -0,0 +1,645 @@
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Product store spread over several data files, the partitions, each holding a contiguous range of
+ * product IDs. A manifest file lists the partitions in ID order with the lowest ID each one holds and
+ * the path of its data file, which may be on any disk; relative paths are resolved against the
+ * manifest's directory. Every partition is a ProductStore with its own ID and cost indexes.
+ *
+ * Lookups and appends are routed to the one partition whose range holds the ID. Scans and cost
+ * range queries run on every partition in parallel and their results are merged; ID range queries
+ * only touch the partitions whose ranges overlap. A partition that grows too large is split in two
+ * at an ID, which rewrites only that partition, and the new half can be placed in another directory.
+ * The manifest is replaced atomically after the new files are complete, so a crash during a split
+ * leaves the old partition in use.
+ *
+ * Queries and appends run concurrently; a split waits for them and holds them up while it copies.
+ * Appends reject IDs the store already holds, checked in the ID index of the partition.
+ *
+ * Usage: java PartitionedProductStore manifest create|info|split ID [directory]
+ */
+public class PartitionedProductStore implements Closeable {
+    public static final String DEFAULT_MANIFEST = "products.partitions";
+
+    private static final String MANIFEST_HEADER = "# FileStreams partitions v1";
+    private static final int BATCH_SIZE = 16384;
+
+    // Every file a ProductStore and its indexes keep next to the data file
+    private static final String[] SIDECAR_SUFFIXES = {
+            IdIndex.SUFFIX, IdFilter.SUFFIX, TrigramIndex.SUFFIX, PrefixIndex.SUFFIX, CostIndex.SUFFIX, CostColumn.SUFFIX,
+            Compactor.SUFFIX, ProductStore.MODIFICATIONS_SUFFIX, ProductStore.LOCK_SUFFIX, WriteAheadLog.SUFFIX };
+
+    /**
+     * One data file and the range of IDs it holds
+     */
+    public static final class Partition {
+        private final String lowerBound;
+        private final Path path;
+        private ProductStore store;
+        private IdIndex idIndex;
+        private CostIndex costIndex;
+
+        private Partition(String lowerBound, Path path) {
+            this.lowerBound = lowerBound;
+            this.path = path;
+        }
+
+        /** @return the lowest ID the partition holds, empty for the first partition */
+        public String getLowerBound() { return lowerBound; }
+        public Path getPath() { return path; }
+        public ProductStore getStore() { return store; }
+
+        private void open(boolean writable) throws IOException {
+            store = writable ? ProductStore.openReadWrite(path) : ProductStore.openReadOnly(path);
+            try {
+                idIndex = IdIndex.open(store);
+                costIndex = CostIndex.open(store);
+            } catch (IOException | RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        private void close() throws IOException {
+            try {
+                if (idIndex != null) {
+                    idIndex.close();
+                }
+                if (costIndex != null) {
+                    costIndex.close();
+                }
+            } finally {
+                store.close();
+            }
+        }
+    }
+
+    /**
+     * A query run on one partition
+     */
+    private interface PartitionQuery<T> {
+        T run(Partition partition) throws IOException;
+    }
+
+    private final Path manifest;
+    private final boolean writable;
+    private final ForkJoinPool pool = ForkJoinPool.commonPool();
+    private final ParallelScanner scanner = new ParallelScanner();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // IDs of appends in progress, so two threads cannot both add the same new ID
+    private final Set<String> addingIds = ConcurrentHashMap.newKeySet();
+    private List<Partition> partitions;
+    private int nextFile;
+
+    private PartitionedProductStore(Path manifest, boolean writable, List<Partition> partitions, int nextFile) {
+        this.manifest = manifest;
+        this.writable = writable;
+        this.partitions = partitions;
+        this.nextFile = nextFile;
+    }
+
+    /**
+     * Creates a manifest with a single partition stored next to it, holding every ID
+     * @param manifest The manifest file to create
+     * @return the opened store
+     * @throws IOException if the manifest already exists or the partition cannot be created
+     */
+    public static PartitionedProductStore create(Path manifest) throws IOException {
+        if (Files.exists(manifest)) {
+            throw new FileAlreadyExistsException(manifest.toString());
+        }
+        List<Partition> partitions = new ArrayList<>();
+        partitions.add(new Partition("", manifest.resolveSibling(fileName(manifest, 0))));
+        writeManifest(manifest, partitions, 1);
+        return open(manifest, true);
+    }
+
+    /**
+     * Opens the partitions listed in a manifest
+     * @param manifest The manifest file
+     * @param writable true to open every partition for writing
+     * @return the opened store
+     * @throws IOException if the manifest is invalid or a partition cannot be opened
+     */
+    public static PartitionedProductStore open(Path manifest, boolean writable) throws IOException {
+        List<Partition> partitions = new ArrayList<>();
+        int nextFile = readManifest(manifest, partitions);
+        try {
+            for (Partition partition : partitions) {
+                partition.open(writable);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Partition partition : partitions) {
+                if (partition.store != null) {
+                    partition.close();
+                }
+            }
+            throw e;
+        }
+        return new PartitionedProductStore(manifest, writable, partitions, nextFile);
+    }
+
+    /**
+     * @return the partitions in ID order
+     */
+    public List<Partition> getPartitions() {
+        lock.readLock().lock();
+        try {
+            return Collections.unmodifiableList(new ArrayList<>(partitions));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of records in every partition, deleted ones included
+     */
+    public long getRecordCount() {
+        lock.readLock().lock();
+        try {
+            long count = 0;
+            for (Partition partition : partitions) {
+                count += partition.store.getRecordCount();
+            }
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Appends a product to the partition holding its ID
+     * @param product The product to write
+     * @throws IOException if the record cannot be written or the store is read-only
+     * @throws IllegalArgumentException if a product with the ID exists or is being added
+     */
+    public void append(Product product) throws IOException {
+        String id = product.getID();
+        if (!addingIds.add(id)) {
+            throw new IllegalArgumentException("A product with ID " + id + " is being added");
+        }
+        lock.readLock().lock();
+        try {
+            Partition partition = partitions.get(indexOf(id));
+            checkNewId(partition, id);
+            partition.store.append(product);
+        } finally {
+            lock.readLock().unlock();
+            addingIds.remove(id);
+        }
+    }
+
+    /**
+     * Appends many products, writing the batch of each partition in parallel. Every product is
+     * checked before any partition writes: IDs here, and text never fails in a partition, which
+     * converts itself to UTF-16 if a product does not fit in Latin-1. Only an I/O error can leave
+     * the batch partly written.
+     * @param products The products to write
+     * @throws IOException if a batch cannot be written, in which case other partitions may have written theirs
+     * @throws IllegalArgumentException if an ID is repeated in the list, exists or is being added,
+     *         in which case nothing is written
+     */
+    public void appendAll(List<Product> products) throws IOException {
+        List<String> claimed = new ArrayList<>(products.size());
+        lock.readLock().lock();
+        try {
+            final List<List<Product>> batches = new ArrayList<>();
+            for (int i = 0; i < partitions.size(); i++) {
+                batches.add(new ArrayList<Product>());
+            }
+            Set<String> ids = new HashSet<>();
+            for (Product product : products) {
+                String id = product.getID();
+                if (!ids.add(id)) {
+                    throw new IllegalArgumentException("ID " + id + " appears more than once");
+                }
+                if (!addingIds.add(id)) {
+                    throw new IllegalArgumentException("A product with ID " + id + " is being added");
+                }
+                claimed.add(id);
+                int index = indexOf(id);
+                checkNewId(partitions.get(index), id);
+                batches.get(index).add(product);
+            }
+            fanOut(partitions, new PartitionQuery<Void>() {
+                @Override
+                public Void run(Partition partition) throws IOException {
+                    List<Product> batch = batches.get(partitions.indexOf(partition));
+                    if (!batch.isEmpty()) {
+                        partition.store.appendAll(batch);
+                    }
+                    return null;
+                }
+            });
+        } finally {
+            lock.readLock().unlock();
+            addingIds.removeAll(claimed);
+        }
+    }
+
+    // Rejects an ID the partition already holds, including appends made by another process
+    private static void checkNewId(Partition partition, String id) throws IOException {
+        partition.store.refresh();
+        partition.idIndex.catchUp();
+        if (partition.idIndex.lookup(id) >= 0) {
+            throw new IllegalArgumentException("A product with ID " + id + " already exists");
+        }
+    }
+
+    /**
+     * Finds the products with an ID, reading only the partition holding it
+     * @param id The product ID
+     * @return the products, in the order they were written
+     */
+    public List<Product> lookup(String id) {
+        lock.readLock().lock();
+        try {
+            Partition partition = partitions.get(indexOf(id));
+            partition.store.refresh();
+            partition.idIndex.catchUp();
+            List<Product> products = new ArrayList<>();
+            for (long record : partition.idIndex.lookupAll(id)) {
+                products.add(partition.store.readProduct(record));
+            }
+            return products;
+        } catch (IOException e) {
+            throw new IllegalStateException("Error reading " + id + ": " + e.getMessage(), e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Scans every partition in parallel
+     * @param filter The test applied to each record
+     * @return the matching products, partitions in ID order and each partition in record order
+     * @throws IOException if a partition cannot be read
+     */
+    public List<Product> scan(ParallelScanner.Filter filter) throws IOException {
+        lock.readLock().lock();
+        try {
+            return scan(partitions, filter);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the products with an ID in a range, scanning only the partitions that overlap it
+     * @param fromId The lowest ID, inclusive
+     * @param toId The highest ID, inclusive
+     * @return the matching products ordered by ID, none if fromId is above toId
+     * @throws IOException if a partition cannot be read
+     */
+    public List<Product> rangeById(final String fromId, final String toId) throws IOException {
+        if (fromId.compareTo(toId) > 0) {
+            return new ArrayList<>();
+        }
+        lock.readLock().lock();
+        try {
+            List<Partition> overlapping = partitions.subList(indexOf(fromId), indexOf(toId) + 1);
+            List<Product> products = scan(overlapping, new ParallelScanner.Filter() {
+                @Override
+                public boolean test(ProductView view) {
+                    String id = view.id().toString();
+                    return id.compareTo(fromId) >= 0 && id.compareTo(toId) <= 0;
+                }
+            });
+            // Partitions are already in ID order, so this only orders records within each one
+            Collections.sort(products, new Comparator<Product>() {
+                @Override
+                public int compare(Product a, Product b) {
+                    return a.getID().compareTo(b.getID());
+                }
+            });
+            return products;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the products with a cost in a range through the cost index of every partition
+     * @param min The lowest cost, inclusive
+     * @param max The highest cost, inclusive
+     * @param limit The largest number of products wanted
+     * @return up to limit products ordered by cost
+     * @throws IOException if a partition cannot be read
+     */
+    public List<Product> rangeByCost(final double min, final double max, int limit) throws IOException {
+        lock.readLock().lock();
+        try {
+            List<long[]> results = fanOut(partitions, new PartitionQuery<long[]>() {
+                @Override
+                public long[] run(Partition partition) throws IOException {
+                    partition.store.refresh();
+                    partition.costIndex.catchUp();
+                    return partition.costIndex.range(min, max);
+                }
+            });
+
+            // Each partition's matches are sorted by cost, merge them taking the cheapest head each time
+            int[] next = new int[results.size()];
+            List<Product> products = new ArrayList<>();
+            while (products.size() < limit) {
+                int best = -1;
+                double bestCost = 0;
+                for (int p = 0; p < results.size(); p++) {
+                    if (next[p] < results.get(p).length) {
+                        double cost = partitions.get(p).store.readCost(results.get(p)[next[p]]);
+                        if (best < 0 || cost < bestCost) {
+                            best = p;
+                            bestCost = cost;
+                        }
+                    }
+                }
+                if (best < 0) {
+                    break;
+                }
+                products.add(partitions.get(best).store.readProduct(results.get(best)[next[best]++]));
+            }
+            return products;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Splits the partition holding an ID in two: IDs below it stay in a rewritten copy of the
+     * partition, the ID and those above it move to a new partition. Other partitions are untouched.
+     * @param splitId The lowest ID of the new partition
+     * @param directory The directory of the new partition's file, e.g. on another disk
+     * @throws IOException if the files cannot be written or the store is read-only
+     * @throws IllegalArgumentException if a partition already starts at the ID
+     */
+    public void split(String splitId, Path directory) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (!writable) {
+                throw new IOException("Store is opened read-only");
+            }
+            int index = indexOf(splitId);
+            Partition old = partitions.get(index);
+            if (old.lowerBound.equals(splitId)) {
+                throw new IllegalArgumentException("A partition already starts at " + splitId);
+            }
+
+            Partition low = new Partition(old.lowerBound, old.path.resolveSibling(fileName(manifest, nextFile)));
+            Partition high = new Partition(splitId, directory.resolve(fileName(manifest, nextFile + 1)));
+            List<Partition> updated = new ArrayList<>(partitions);
+            updated.set(index, low);
+            updated.add(index + 1, high);
+            // Both halves are opened before the manifest lists them, so a failure leaves the old
+            // partition in use both on disk and in memory
+            try {
+                copySplit(old.store, splitId, low.path, high.path);
+                low.open(true);
+                high.open(true);
+                writeManifest(manifest, updated, nextFile + 2);
+            } catch (IOException | RuntimeException e) {
+                for (Partition half : new Partition[] { low, high }) {
+                    if (half.store != null) {
+                        half.close();
+                    }
+                    deleteFiles(half.path);
+                }
+                throw e;
+            }
+            nextFile += 2;
+            partitions = updated;
+
+            old.close();
+            deleteFiles(old.path);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Copies the live records of a partition into two new files, on either side of the split ID
+    private static void copySplit(ProductStore source, String splitId, Path lowPath, Path highPath) throws IOException {
+        deleteFiles(lowPath);
+        deleteFiles(highPath);
+        try (ProductStore low = ProductStore.openReadWrite(lowPath, source.getFormat());
+             ProductStore high = ProductStore.openReadWrite(highPath, source.getFormat())) {
+            List<Product> lowBatch = new ArrayList<>(BATCH_SIZE);
+            List<Product> highBatch = new ArrayList<>(BATCH_SIZE);
+            long records = source.getRecordCount();
+            for (long record = 0; record < records; record++) {
+                if (source.isDeleted(record)) {
+                    continue;
+                }
+                Product product = source.readProduct(record);
+                List<Product> batch = product.getID().compareTo(splitId) < 0 ? lowBatch : highBatch;
+                batch.add(product);
+                if (batch.size() == BATCH_SIZE) {
+                    (batch == lowBatch ? low : high).appendAll(batch);
+                    batch.clear();
+                }
+            }
+            low.appendAll(lowBatch);
+            high.appendAll(highBatch);
+        } catch (IOException | RuntimeException e) {
+            deleteFiles(lowPath);
+            deleteFiles(highPath);
+            throw e;
+        }
+    }
+
+    private List<Product> scan(List<Partition> targets, final ParallelScanner.Filter filter) throws IOException {
+        List<List<Product>> results = fanOut(targets, new PartitionQuery<List<Product>>() {
+            @Override
+            public List<Product> run(Partition partition) throws IOException {
+                partition.store.refresh();
+                List<Product> products = new ArrayList<>();
+                for (long record : scanner.scan(partition.store, filter)) {
+                    products.add(partition.store.readProduct(record));
+                }
+                return products;
+            }
+        });
+        List<Product> merged = new ArrayList<>();
+        for (List<Product> products : results) {
+            merged.addAll(products);
+        }
+        return merged;
+    }
+
+    // Runs a query on every partition at once, returning the results in partition order
+    private <T> List<T> fanOut(List<Partition> targets, final PartitionQuery<T> query) throws IOException {
+        List<Future<T>> futures = new ArrayList<>();
+        for (final Partition partition : targets) {
+            futures.add(pool.submit(new Callable<T>() {
+                @Override
+                public T call() throws IOException {
+                    return query.run(partition);
+                }
+            }));
+        }
+        List<T> results = new ArrayList<>();
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the partitions", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+        return results;
+    }
+
+    // The last partition whose lower bound is not above the ID
+    private int indexOf(String id) {
+        int low = 0;
+        int high = partitions.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (partitions.get(middle).lowerBound.compareTo(id) <= 0) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    private static String fileName(Path manifest, int number) {
+        String name = manifest.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return (dot > 0 ? name.substring(0, dot) : name) + "-" + number + ".dat";
+    }
+
+    // Lines are "next <number>" and "shard <tab> <lower bound> <tab> <path>", in ID order
+    private static int readManifest(Path manifest, List<Partition> partitions) throws IOException {
+        List<String> lines = Files.readAllLines(manifest, StandardCharsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).equals(MANIFEST_HEADER)) {
+            throw new IOException(manifest + " is not a partition manifest");
+        }
+        int nextFile = -1;
+        for (int i = 1; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\t", -1);
+            if (fields[0].equals("next") && fields.length == 2) {
+                nextFile = Integer.parseInt(fields[1]);
+            } else if (fields[0].equals("shard") && fields.length == 3) {
+                String lowerBound = fields[1];
+                if (partitions.isEmpty() ? !lowerBound.isEmpty()
+                        : lowerBound.compareTo(partitions.get(partitions.size() - 1).lowerBound) <= 0) {
+                    throw new IOException(manifest + " line " + (i + 1) + ": partitions are out of order");
+                }
+                partitions.add(new Partition(lowerBound, manifest.resolveSibling(fields[2])));
+            } else {
+                throw new IOException(manifest + " line " + (i + 1) + ": unknown entry " + line);
+            }
+        }
+        if (partitions.isEmpty() || nextFile < 0) {
+            throw new IOException(manifest + " lists no partitions");
+        }
+        return nextFile;
+    }
+
+    private static void writeManifest(Path manifest, List<Partition> partitions, int nextFile) throws IOException {
+        Path temp = manifest.resolveSibling(manifest.getFileName() + ".tmp");
+        Path directory = manifest.toAbsolutePath().getParent();
+        try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            out.write(MANIFEST_HEADER + "\n");
+            out.write("next\t" + nextFile + "\n");
+            for (Partition partition : partitions) {
+                // Files next to the manifest are listed by name, so the directory can be moved
+                Path path = partition.path.toAbsolutePath();
+                String listed = path.getParent().equals(directory) ? path.getFileName().toString() : path.toString();
+                out.write("shard\t" + partition.lowerBound + "\t" + listed + "\n");
+            }
+        }
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temp, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void deleteFiles(Path path) throws IOException {
+        Files.deleteIfExists(path);
+        for (String suffix : SIDECAR_SUFFIXES) {
+            Files.deleteIfExists(path.resolveSibling(path.getFileName() + suffix));
+        }
+    }
+
+    /**
+     * Saves the indexes and closes every partition
+     * @throws IOException if a partition cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            IOException failure = null;
+            for (Partition partition : partitions) {
+                try {
+                    partition.close();
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2 || (args[1].equals("split") && args.length < 3)) {
+            System.err.println("Usage: java PartitionedProductStore manifest create|info|split ID [directory]");
+            System.exit(2);
+        }
+
+        Path manifest = Paths.get(args[0]);
+        try (PartitionedProductStore store = args[1].equals("create")
+                ? create(manifest) : open(manifest, args[1].equals("split"))) {
+            if (args[1].equals("split")) {
+                Path directory = args.length > 3 ? Paths.get(args[3]) : manifest.toAbsolutePath().getParent();
+                store.split(args[2], directory);
+            }
+            for (Partition partition : store.getPartitions()) {
+                System.out.println((partition.getLowerBound().isEmpty() ? "(first)" : partition.getLowerBound())
+                        + "\t" + partition.getStore().getRecordCount() + " records\t" + partition.getPath());
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,504 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+
+/**
+ * Autocomplete index over product names, stored next to the data file as products.dat.prefix.
+ * It holds every distinct name once, compared ignoring case, with the number of products that
+ * have it, sorted by the lower-cased name. Names are front coded in blocks of 16: the first name
+ * of a block is stored whole and each following one as the length of the prefix it shares with the
+ * name before it and the rest of its UTF-8 bytes, so names sharing words cost little more than their
+ * differences. A lookup binary-searches the block heads and reads the completions off in order.
+ *
+ * New names collect in a small sorted map and are merged into the coded array once the map grows
+ * past an eighth of it, so appends stay cheap during bulk loads. When many records are indexed at
+ * once, as in a rebuild, their names are collected, sorted and merged in large batches instead of
+ * being looked up one by one. Updates and deletes adjust the counts, a name whose products are all
+ * gone is no longer offered.
+ */
+public class PrefixIndex extends SidecarIndex {
+    public static final String SUFFIX = ".prefix";
+
+    private static final int MAGIC = 0x50524658; // "PRFX"
+    private static final int VERSION = 1;
+    private static final int BLOCK_SIZE = 16;
+    private static final int MIN_PENDING = 65536;
+
+    // Front-coded names in sorted order and the offset of each block's first name
+    private byte[] data = new byte[0];
+    private int[] blocks = new int[0];
+    private int[] counts = new int[0];
+    private int size;
+
+    // Names not yet in the coded array, by lower-cased name
+    private final TreeMap<String, Entry> pending = new TreeMap<>();
+    // Names collected while catching up with many records, null otherwise
+    private List<Entry> bulk;
+
+    private PrefixIndex(ProductStore store) {
+        super(store, SUFFIX, MAGIC, VERSION);
+    }
+
+    /**
+     * Opens the prefix index of a store, loading, updating or rebuilding the sidecar file as needed,
+     * and registers it for changes made through the store
+     * @param store The store whose names are indexed
+     * @return the opened index
+     * @throws IOException if the index file cannot be read
+     */
+    public static PrefixIndex open(ProductStore store) throws IOException {
+        PrefixIndex index = new PrefixIndex(store);
+        index.load();
+        return index;
+    }
+
+    /**
+     * Finds the names starting with a prefix, ignoring case
+     * @param prefix The text typed so far
+     * @param limit The largest number of names wanted
+     * @return up to limit distinct names of products not deleted, in alphabetical order ignoring case
+     */
+    public synchronized List<String> complete(String prefix, int limit) {
+        String key = key(prefix);
+        List<String> names = new ArrayList<>();
+        Iterator<Entry> more = pending.tailMap(key, true).values().iterator();
+        Entry next = nextLive(more);
+
+        Cursor cursor = new Cursor(find(key));
+        while (names.size() < limit) {
+            // The block may start before the prefix, names below it and names no product has are skipped
+            String coded = null;
+            String codedKey = null;
+            for (; cursor.valid(); cursor.advance()) {
+                if (cursor.count() > 0) {
+                    coded = cursor.name();
+                    codedKey = key(coded);
+                    if (codedKey.compareTo(key) >= 0) {
+                        break;
+                    }
+                    coded = null;
+                }
+            }
+            // Both sources are sorted, take the lower of their next names
+            boolean takeCoded = coded != null && (next == null || codedKey.compareTo(next.key) <= 0);
+            String name = takeCoded ? coded : next == null ? null : next.name;
+            String nameKey = takeCoded ? codedKey : next == null ? null : next.key;
+            if (name == null || !nameKey.startsWith(key)) {
+                break;
+            }
+            names.add(name);
+            if (takeCoded) {
+                cursor.advance();
+            } else {
+                next = nextLive(more);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return the number of distinct names, including those no product has any more
+     */
+    public synchronized int getNameCount() {
+        return size + pending.size();
+    }
+
+    /**
+     * @return the memory the names take, in bytes
+     */
+    public synchronized long getSizeInBytes() {
+        return data.length + blocks.length * 4L + counts.length * 4L;
+    }
+
+    private static Entry nextLive(Iterator<Entry> entries) {
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            if (entry.count > 0) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized void catchUp() {
+        if (store.getRecordCount() - indexedRecords <= MIN_PENDING) {
+            super.catchUp();
+            return;
+        }
+        bulk = new ArrayList<>();
+        try {
+            super.catchUp();
+        } finally {
+            flushBulk();
+            bulk = null;
+        }
+    }
+
+    @Override
+    protected void indexRecord(long record) {
+        add(store.readName(record));
+    }
+
+    @Override
+    protected void indexProduct(long record, Product product) {
+        add(product.getName());
+    }
+
+    @Override
+    protected void updateEntry(long record, Product before, Product after) {
+        if (!before.getName().equals(after.getName())) {
+            remove(before.getName());
+            add(after.getName());
+        }
+    }
+
+    @Override
+    protected void deleteEntry(long record, Product before) {
+        remove(before.getName());
+    }
+
+    private void add(String name) {
+        name = name.trim();
+        if (name.isEmpty()) {
+            return;
+        }
+        String key = key(name);
+        if (bulk != null) {
+            bulk.add(new Entry(key, name));
+            // Each batch is at least half the coded array, so merging costs O(1) per name overall
+            if (bulk.size() > Math.max(MIN_PENDING * 16, size / 2)) {
+                flushBulk();
+            }
+            return;
+        }
+        int position = indexOf(key);
+        if (position >= 0) {
+            counts[position]++;
+            return;
+        }
+        Entry entry = pending.get(key);
+        if (entry == null) {
+            pending.put(key, new Entry(key, name));
+            if (pending.size() > Math.max(MIN_PENDING, size / 8)) {
+                mergePending();
+            }
+        } else {
+            entry.count++;
+        }
+    }
+
+    private void remove(String name) {
+        String key = key(name.trim());
+        int position = indexOf(key);
+        if (position >= 0) {
+            counts[position] = Math.max(0, counts[position] - 1);
+            return;
+        }
+        Entry entry = pending.get(key);
+        if (entry != null) {
+            entry.count = Math.max(0, entry.count - 1);
+        }
+    }
+
+    private void mergePending() {
+        List<Entry> entries = new ArrayList<>(pending.values());
+        pending.clear();
+        merge(entries);
+    }
+
+    // Sorts the collected names, together with the pending ones, and merges them in
+    private void flushBulk() {
+        if (bulk.isEmpty()) {
+            return;
+        }
+        bulk.addAll(pending.values());
+        pending.clear();
+        // The sort is stable, so a name keeps the spelling it was first seen with
+        Entry[] sorted = bulk.toArray(new Entry[0]);
+        bulk.clear();
+        Arrays.parallelSort(sorted, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                int c = Long.compareUnsigned(a.head, b.head);
+                return c != 0 ? c : a.key.compareTo(b.key);
+            }
+        });
+        List<Entry> distinct = new ArrayList<>();
+        Entry last = null;
+        for (Entry entry : sorted) {
+            if (last != null && last.key.equals(entry.key)) {
+                last.count += entry.count;
+            } else {
+                distinct.add(entry);
+                last = entry;
+            }
+        }
+        merge(distinct);
+    }
+
+    // Rewrites the coded array with names sorted by key merged in, adding the counts of names it
+    // already holds and leaving out names no product has
+    private void merge(List<Entry> entries) {
+        Builder builder = new Builder(size + entries.size());
+        Cursor cursor = new Cursor(0);
+        Iterator<Entry> more = entries.iterator();
+        Entry next = nextLive(more);
+        while (cursor.valid() || next != null) {
+            if (cursor.valid() && cursor.count() == 0) {
+                cursor.advance();
+                continue;
+            }
+            String coded = cursor.valid() ? cursor.name() : null;
+            int c = coded == null ? 1 : next == null ? -1 : key(coded).compareTo(next.key);
+            if (c <= 0) {
+                builder.add(coded, cursor.count() + (c == 0 ? next.count : 0));
+                cursor.advance();
+                if (c == 0) {
+                    next = nextLive(more);
+                }
+            } else {
+                builder.add(next.name, next.count);
+                next = nextLive(more);
+            }
+        }
+        builder.finish();
+    }
+
+    // The position of a name in the coded array, or -1 if it is not there
+    private int indexOf(String key) {
+        Cursor cursor = new Cursor(find(key));
+        while (cursor.valid()) {
+            int c = key(cursor.name()).compareTo(key);
+            if (c == 0) {
+                return cursor.position;
+            }
+            if (c > 0) {
+                break;
+            }
+            cursor.advance();
+        }
+        return -1;
+    }
+
+    // The first position of the block that may hold the first name not below the key
+    private int find(String key) {
+        int low = 0;
+        int high = blocks.length - 1;
+        int found = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (key(new Cursor(middle * BLOCK_SIZE).name()).compareTo(key) < 0) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found * BLOCK_SIZE;
+    }
+
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    protected void clear() {
+        data = new byte[0];
+        blocks = new int[0];
+        counts = new int[0];
+        size = 0;
+        pending.clear();
+    }
+
+    @Override
+    protected boolean readEntries(DataInputStream in) throws IOException {
+        // Every name came from an indexed record, and takes two length bytes and at most 255 more
+        int names = in.readInt();
+        if (names < 0 || names > indexedRecords) {
+            return false;
+        }
+        int length = in.readInt();
+        if (length < 0 || length > (long) names * 257) {
+            return false;
+        }
+        byte[] coded = new byte[length];
+        in.readFully(coded);
+        int[] offsets = new int[(names + BLOCK_SIZE - 1) / BLOCK_SIZE];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = in.readInt();
+        }
+        int[] nameCounts = new int[names];
+        for (int i = 0; i < names; i++) {
+            nameCounts[i] = in.readInt();
+            if (nameCounts[i] < 0 || nameCounts[i] > indexedRecords) {
+                return false;
+            }
+        }
+        if (!validCoding(names, coded, offsets)) {
+            return false;
+        }
+        size = names;
+        data = coded;
+        blocks = offsets;
+        counts = nameCounts;
+        return true;
+    }
+
+    // Walks the coded names the way Cursor decodes them, so a corrupt file cannot make it read out of bounds
+    private static boolean validCoding(int names, byte[] coded, int[] offsets) {
+        int offset = 0;
+        int previous = 0;
+        for (int i = 0; i < names; i++) {
+            if (i % BLOCK_SIZE == 0) {
+                if (offsets[i / BLOCK_SIZE] != offset) {
+                    return false;
+                }
+                previous = 0;
+            }
+            if (offset + 2 > coded.length) {
+                return false;
+            }
+            int shared = coded[offset++] & 0xFF;
+            int suffix = coded[offset++] & 0xFF;
+            if (shared > previous || suffix > coded.length - offset) {
+                return false;
+            }
+            offset += suffix;
+            previous = shared + suffix;
+        }
+        return offset == coded.length;
+    }
+
+    @Override
+    protected void writeEntries(DataOutputStream out) throws IOException {
+        // Everything is merged into the coded array so the next open loads it as is
+        if (!pending.isEmpty()) {
+            mergePending();
+        }
+        out.writeInt(size);
+        out.writeInt(data.length);
+        out.write(data);
+        for (int block : blocks) {
+            out.writeInt(block);
+        }
+        for (int i = 0; i < size; i++) {
+            out.writeInt(counts[i]);
+        }
+    }
+
+    private static class Entry {
+        final String key;
+        final String name;
+        // The first four characters of the key, which decide most comparisons while sorting
+        final long head;
+        int count = 1;
+
+        Entry(String key, String name) {
+            this.key = key;
+            this.name = name;
+            long head = 0;
+            for (int i = 0; i < 4; i++) {
+                head = head << 16 | (i < key.length() ? key.charAt(i) : 0);
+            }
+            this.head = head;
+        }
+    }
+
+    /**
+     * Reads the coded names in order from a position at the start of a block
+     */
+    private class Cursor {
+        int position;
+        private int offset;
+        private byte[] name = new byte[64];
+        private int length;
+
+        Cursor(int position) {
+            this.position = position;
+            if (position < size) {
+                offset = blocks[position / BLOCK_SIZE];
+                decode();
+            }
+        }
+
+        boolean valid() { return position < size; }
+        int count() { return counts[position]; }
+        String name() { return new String(name, 0, length, StandardCharsets.UTF_8); }
+
+        void advance() {
+            position++;
+            if (position < size) {
+                if (position % BLOCK_SIZE == 0) {
+                    length = 0;
+                }
+                decode();
+            }
+        }
+
+        // Each name is the shared prefix length, the suffix length and the suffix bytes
+        private void decode() {
+            int shared = data[offset++] & 0xFF;
+            int suffix = data[offset++] & 0xFF;
+            if (shared + suffix > name.length) {
+                name = Arrays.copyOf(name, shared + suffix);
+            }
+            System.arraycopy(data, offset, name, shared, suffix);
+            offset += suffix;
+            length = shared + suffix;
+        }
+    }
+
+    /**
+     * Writes names in sorted order into a new coded array
+     */
+    private class Builder {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final List<Integer> blockOffsets = new ArrayList<>();
+        private int[] newCounts;
+        private int newSize;
+        private byte[] previous = new byte[0];
+
+        Builder(int capacity) {
+            newCounts = new int[capacity];
+        }
+
+        void add(String name, int count) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            int shared = 0;
+            if (newSize % BLOCK_SIZE == 0) {
+                blockOffsets.add(out.size());
+            } else {
+                int max = Math.min(255, Math.min(previous.length, bytes.length));
+                while (shared < max && previous[shared] == bytes[shared]) {
+                    shared++;
+                }
+            }
+            // Names are at most 35 characters, so both lengths fit a byte
+            out.write(shared);
+            out.write(bytes.length - shared);
+            out.write(bytes, shared, bytes.length - shared);
+            newCounts[newSize++] = count;
+            previous = bytes;
+        }
+
+        void finish() {
+            data = out.toByteArray();
+            blocks = new int[blockOffsets.size()];
+            for (int i = 0; i < blocks.length; i++) {
+                blocks[i] = blockOffsets.get(i);
+            }
+            counts = Arrays.copyOf(newCounts, newSize);
+            size = newSize;
+        }
+    }
+}
@@ -1,4 +1,5 @@
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Objects;
 
 public class Product implements Serializable {
@@ -41,12 +42,35 @@ public class Product implements Serializable {
         this.cost = 0.0;
     }
 
+    /**
+     * Rebuilds a product from its fields exactly as they are held, for ProductCodec. The name and
+     * description are taken already padded and the ID is not checked, so products made with the
+     * default constructor come back unchanged too.
+     * @param ID The product's ID
+     * @param name The product's name, padded
+     * @param description The product's description, padded
+     * @param cost The product's cost
+     * @return the product
+     */
+    static Product restore(String ID, String name, String description, double cost) {
+        Product product = new Product();
+        product.ID = ID;
+        product.name = name;
+        product.description = description;
+        product.cost = cost;
+        return product;
+    }
+
     // Getters
     public String getID() { return ID; }
     public String getName() { return name.trim(); }
     public String getDescription() { return description.trim(); }
     public double getCost() { return cost; }
 
+    // The fields with their padding, as ProductCodec writes them
+    String getPaddedName() { return name; }
+    String getPaddedDescription() { return description; }
+
     // Setters (except for ID which should be immutable)
     public void setName(String name) { this.name = formatString(name, NAME_LENGTH); }
     public void setDescription(String description) { this.description = formatString(description, DESCRIPTION_LENGTH); }
@@ -61,7 +85,13 @@ public class Product implements Serializable {
     // Formats string to fixed length by padding with spaces
     private String formatString(String str, int length) {
         if (str == null) str = "";
-        return String.format("%-" + length + "s", str.substring(0, Math.min(str.length(), length)));
+        if (str.length() >= length) {
+            return str.substring(0, length);
+        }
+        char[] chars = new char[length];
+        str.getChars(0, str.length(), chars, 0);
+        Arrays.fill(chars, str.length(), length, ' ');
+        return new String(chars);
     }
 
     /**
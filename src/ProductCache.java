@@ -0,0 +1,561 @@
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded cache of records in front of a ProductStore, keyed by record number and, given an
+ * IdIndex, by product ID. Entries are either decoded Products kept on the heap, which the cache
+ * hands out as they are and callers must not modify, or the raw record bytes kept in one direct
+ * buffer outside the heap and decoded on every hit.
+ *
+ * Which entry to drop when the cache is full is decided by a Policy: lru() keeps the most recently
+ * used records, tinyLfu() admits a record into the main part of the cache only if it has been
+ * requested more often than the entry it would replace, which keeps a skewed set of hot records
+ * cached through scans of cold ones. The cache listens to the store and drops records as they are
+ * updated or deleted; for a read-only store it checks the store's modification count instead,
+ * since the writer is another process.
+ */
+public class ProductCache implements ProductStoreListener, Closeable {
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    /** Returned by Policy.add when nothing has to be evicted */
+    public static final long NONE = -1;
+
+    /**
+     * Decides which records stay cached. Keys are record numbers, and every method is called with
+     * the cache's lock held.
+     */
+    public interface Policy {
+        /**
+         * @return the largest number of records the policy keeps
+         */
+        int capacity();
+
+        /**
+         * Called when a cached record is requested
+         * @param key The record number
+         */
+        void recordHit(long key);
+
+        /**
+         * Called when a record that is not cached is requested, before it is added
+         * @param key The record number
+         */
+        void recordMiss(long key);
+
+        /**
+         * Adds a record that was just loaded
+         * @param key The record number
+         * @return the record to evict to stay within capacity, possibly key itself, or NONE
+         */
+        long add(long key);
+
+        /**
+         * Forgets a record the cache dropped
+         * @param key The record number, which may not be known to the policy
+         */
+        void remove(long key);
+
+        /**
+         * Forgets every record
+         */
+        void clear();
+    }
+
+    private final ProductStore store;
+    private final IdIndex idIndex;
+    private final Policy policy;
+    // Change when the store is converted to another format, together with the record bytes
+    private RecordFormat format;
+    private int recordSize;
+
+    // Entries live in numbered slots, either as Products or as record bytes
+    private final Map<Long, Integer> slots = new HashMap<>();
+    private final Map<String, Long> idRecords = new HashMap<>();
+    private final String[] slotIds;
+    private final Product[] products;
+    private ByteBuffer bytes;
+    private final int[] freeSlots;
+    private int freeCount;
+
+    private long modifications;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Creates an on-heap W-TinyLFU cache
+     * @param store The store to cache
+     * @param idIndex The index used by getById, may be null
+     * @param capacity The largest number of records cached
+     */
+    public ProductCache(ProductStore store, IdIndex idIndex, int capacity) {
+        this(store, idIndex, tinyLfu(capacity), false);
+    }
+
+    /**
+     * @param store The store to cache
+     * @param idIndex The index used by getById, may be null
+     * @param policy The eviction policy, see lru() and tinyLfu()
+     * @param offHeap true to keep record bytes in a direct buffer instead of Products on the heap
+     */
+    public ProductCache(ProductStore store, IdIndex idIndex, Policy policy, boolean offHeap) {
+        this.store = store;
+        this.idIndex = idIndex;
+        this.policy = policy;
+        this.format = store.getFormat();
+        this.recordSize = format.getRecordSize();
+
+        // One spare slot holds a new entry until the policy has picked what to evict
+        int slotCount = policy.capacity() + 1;
+        this.slotIds = new String[slotCount];
+        this.products = offHeap ? null : new Product[slotCount];
+        this.bytes = offHeap ? ByteBuffer.allocateDirect(slotCount * recordSize) : null;
+        this.freeSlots = new int[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            freeSlots[freeCount++] = slotCount - 1 - i;
+        }
+        this.modifications = store.getModificationCount();
+        store.addListener(this);
+    }
+
+    /**
+     * Returns a record, reading it from the store if it is not cached
+     * @param record The zero-based record number
+     * @return the product, or null if the record has been deleted
+     */
+    public synchronized Product get(long record) {
+        checkModifications();
+        Integer slot = slots.get(record);
+        if (slot != null) {
+            hits++;
+            policy.recordHit(record);
+            return read(slot);
+        }
+        misses++;
+        policy.recordMiss(record);
+        return store.isDeleted(record) ? null : load(record, null);
+    }
+
+    /**
+     * Returns the first live record with an ID, looking it up in the IdIndex if it is not cached
+     * @param id The product ID
+     * @return the product, or null if no live record has the ID
+     * @throws IllegalStateException if the cache was created without an IdIndex
+     */
+    public synchronized Product getById(String id) {
+        checkModifications();
+        Long cached = idRecords.get(id);
+        if (cached != null) {
+            hits++;
+            policy.recordHit(cached);
+            return read(slots.get(cached));
+        }
+        if (idIndex == null) {
+            throw new IllegalStateException("The cache has no ID index");
+        }
+
+        long record = idIndex.lookup(id);
+        if (record < 0) {
+            misses++;
+            return null;
+        }
+        Integer slot = slots.get(record);
+        if (slot != null) {
+            // Cached by record number already, a hit that only needed the index
+            hits++;
+            policy.recordHit(record);
+            slotIds[slot] = id;
+            idRecords.put(id, record);
+            return read(slot);
+        }
+        misses++;
+        policy.recordMiss(record);
+        return load(record, id);
+    }
+
+    private Product load(long record, String id) {
+        int slot = freeSlots[--freeCount];
+        Product product;
+        if (bytes != null) {
+            bytes.position(slot * recordSize);
+            if (!store.copyRecord(record, format, bytes)) {
+                // Converted to another format, the bytes are reallocated when the listener hears of it
+                freeSlots[freeCount++] = slot;
+                return store.readProduct(record);
+            }
+            product = format.decode(bytes, slot * recordSize);
+        } else {
+            product = store.readProduct(record);
+            products[slot] = product;
+        }
+        slots.put(record, slot);
+        slotIds[slot] = id;
+        if (id != null) {
+            idRecords.put(id, record);
+        }
+
+        long evicted = policy.add(record);
+        if (evicted != NONE) {
+            evictions++;
+            drop(evicted);
+        }
+        return product;
+    }
+
+    private Product read(int slot) {
+        return bytes != null ? format.decode(bytes, slot * recordSize) : products[slot];
+    }
+
+    private void drop(long record) {
+        Integer slot = slots.remove(record);
+        if (slot == null) {
+            return;
+        }
+        if (slotIds[slot] != null) {
+            idRecords.remove(slotIds[slot]);
+            slotIds[slot] = null;
+        }
+        if (products != null) {
+            products[slot] = null;
+        }
+        freeSlots[freeCount++] = slot;
+    }
+
+    // Changes made by a writer in another process are only visible through the modification count
+    private void checkModifications() {
+        if (!store.isWritable() && store.getModificationCount() != modifications) {
+            clear();
+            modifications = store.getModificationCount();
+        }
+    }
+
+    /**
+     * Drops every entry, the statistics are kept
+     */
+    public synchronized void clear() {
+        for (Long record : slots.keySet().toArray(new Long[0])) {
+            drop(record);
+        }
+        policy.clear();
+    }
+
+    @Override
+    public void recordAppended(long record, Product product) {
+        // Appended records are cached when first read, and never change the first record of an ID
+    }
+
+    @Override
+    public synchronized void recordUpdated(long record, Product before, Product after) {
+        policy.remove(record);
+        drop(record);
+    }
+
+    @Override
+    public synchronized void recordDeleted(long record, Product before) {
+        policy.remove(record);
+        drop(record);
+    }
+
+    @Override
+    public synchronized void storeCompacted() {
+        clear();
+        if (bytes != null && store.getFormat() != format) {
+            format = store.getFormat();
+            recordSize = format.getRecordSize();
+            bytes = ByteBuffer.allocateDirect(slotIds.length * recordSize);
+        }
+    }
+
+    public synchronized long getHits() { return hits; }
+    public synchronized long getMisses() { return misses; }
+    public synchronized long getEvictions() { return evictions; }
+    public synchronized int size() { return slots.size(); }
+
+    /**
+     * @return the fraction of requests answered from the cache
+     */
+    public synchronized double getHitRate() {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    /**
+     * Stops listening to the store
+     */
+    @Override
+    public void close() {
+        store.removeListener(this);
+    }
+
+    /**
+     * @param capacity The largest number of records cached
+     * @return a policy evicting the least recently used record
+     */
+    public static Policy lru(int capacity) {
+        return new LruPolicy(capacity);
+    }
+
+    /**
+     * @param capacity The largest number of records cached
+     * @return a W-TinyLFU policy: a small LRU window in front of a segmented LRU main area,
+     *         admitting records into the main area by their estimated request frequency
+     */
+    public static Policy tinyLfu(int capacity) {
+        return new TinyLfuPolicy(capacity);
+    }
+
+    private static class LruPolicy implements Policy {
+        private final int capacity;
+        private final LinkedHashMap<Long, Boolean> order = new LinkedHashMap<>(16, 0.75f, true);
+
+        LruPolicy(int capacity) {
+            this.capacity = Math.max(1, capacity);
+        }
+
+        @Override
+        public int capacity() { return capacity; }
+
+        @Override
+        public void recordHit(long key) {
+            order.get(key);
+        }
+
+        @Override
+        public void recordMiss(long key) {
+        }
+
+        @Override
+        public long add(long key) {
+            order.put(key, Boolean.TRUE);
+            if (order.size() <= capacity) {
+                return NONE;
+            }
+            Iterator<Long> eldest = order.keySet().iterator();
+            long evicted = eldest.next();
+            eldest.remove();
+            return evicted;
+        }
+
+        @Override
+        public void remove(long key) {
+            order.remove(key);
+        }
+
+        @Override
+        public void clear() {
+            order.clear();
+        }
+    }
+
+    private static class TinyLfuPolicy implements Policy {
+        private static final int WINDOW = 0;
+        private static final int PROBATION = 1;
+        private static final int PROTECTED = 2;
+
+        private final int capacity;
+        private final int windowCapacity;
+        private final int mainCapacity;
+        private final int protectedCapacity;
+        private final FrequencySketch sketch;
+        private final Map<Long, Node> nodes = new HashMap<>();
+
+        // Circular lists with a sentinel each, least recently used first
+        private final Node[] queues = {new Node(NONE), new Node(NONE), new Node(NONE)};
+        private final int[] sizes = new int[3];
+
+        TinyLfuPolicy(int capacity) {
+            this.capacity = Math.max(1, capacity);
+            this.windowCapacity = Math.max(1, this.capacity / 100);
+            this.mainCapacity = this.capacity - windowCapacity;
+            this.protectedCapacity = mainCapacity * 4 / 5;
+            this.sketch = new FrequencySketch(this.capacity);
+            clear();
+        }
+
+        @Override
+        public int capacity() { return capacity; }
+
+        @Override
+        public void recordHit(long key) {
+            sketch.increment(key);
+            Node node = nodes.get(key);
+            if (node == null) {
+                return;
+            }
+            if (node.queue == PROBATION) {
+                // A second request promotes the record, demoting the oldest protected one if needed
+                unlink(node);
+                link(PROTECTED, node);
+                if (sizes[PROTECTED] > protectedCapacity) {
+                    Node demoted = queues[PROTECTED].next;
+                    unlink(demoted);
+                    link(PROBATION, demoted);
+                }
+            } else {
+                int queue = node.queue;
+                unlink(node);
+                link(queue, node);
+            }
+        }
+
+        @Override
+        public void recordMiss(long key) {
+            sketch.increment(key);
+        }
+
+        @Override
+        public long add(long key) {
+            Node node = new Node(key);
+            nodes.put(key, node);
+            link(WINDOW, node);
+            if (sizes[WINDOW] <= windowCapacity) {
+                return NONE;
+            }
+
+            // The oldest record of the window competes with the oldest record of the main area
+            Node candidate = queues[WINDOW].next;
+            unlink(candidate);
+            if (sizes[PROBATION] + sizes[PROTECTED] < mainCapacity) {
+                link(PROBATION, candidate);
+                return NONE;
+            }
+            Node victim = sizes[PROBATION] > 0 ? queues[PROBATION].next : queues[PROTECTED].next;
+            if (mainCapacity > 0 && sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                unlink(victim);
+                nodes.remove(victim.key);
+                link(PROBATION, candidate);
+                return victim.key;
+            }
+            nodes.remove(candidate.key);
+            return candidate.key;
+        }
+
+        @Override
+        public void remove(long key) {
+            Node node = nodes.remove(key);
+            if (node != null) {
+                unlink(node);
+            }
+        }
+
+        @Override
+        public void clear() {
+            nodes.clear();
+            for (int i = 0; i < queues.length; i++) {
+                queues[i].next = queues[i];
+                queues[i].previous = queues[i];
+                sizes[i] = 0;
+            }
+            sketch.clear();
+        }
+
+        // Appends at the most recently used end
+        private void link(int queue, Node node) {
+            Node sentinel = queues[queue];
+            node.queue = queue;
+            node.previous = sentinel.previous;
+            node.next = sentinel;
+            sentinel.previous.next = node;
+            sentinel.previous = node;
+            sizes[queue]++;
+        }
+
+        private void unlink(Node node) {
+            node.previous.next = node.next;
+            node.next.previous = node.previous;
+            sizes[node.queue]--;
+        }
+    }
+
+    private static class Node {
+        final long key;
+        int queue;
+        Node previous;
+        Node next;
+
+        Node(long key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters estimating how often each key was requested recently.
+     * Every counter is halved once the number of increments reaches ten times the cache capacity,
+     * so the estimates follow changes in popularity.
+     */
+    private static class FrequencySketch {
+        private static final long[] SEEDS = {
+                0xC3A5C85C97CB3127L, 0xB492B66FBE98F273L, 0x9AE16A3B2F90404FL, 0xCBF29CE484222325L};
+        private static final long HALF_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int capacity) {
+            // One long holds 16 counters, so this gives 16 counters per cached record
+            int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+            this.table = new long[size];
+            this.sampleSize = 10 * capacity;
+        }
+
+        int frequency(long key) {
+            long hash = spread(key);
+            int frequency = 15;
+            for (int i = 0; i < SEEDS.length; i++) {
+                long h = rehash(hash, i);
+                int shift = (int) (h & 15) << 2;
+                frequency = Math.min(frequency, (int) (table[index(h)] >>> shift) & 15);
+            }
+            return frequency;
+        }
+
+        void increment(long key) {
+            long hash = spread(key);
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                long h = rehash(hash, i);
+                int index = index(h);
+                int shift = (int) (h & 15) << 2;
+                if (((table[index] >>> shift) & 15) < 15) {
+                    table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & HALF_MASK;
+                }
+                additions /= 2;
+            }
+        }
+
+        void clear() {
+            Arrays.fill(table, 0);
+            additions = 0;
+        }
+
+        private int index(long h) {
+            return (int) (h >>> 32) & (table.length - 1);
+        }
+
+        // Record numbers are sequential, so they are mixed before picking counters
+        private static long spread(long key) {
+            key ^= key >>> 33;
+            key *= 0xFF51AFD7ED558CCDL;
+            key ^= key >>> 33;
+            key *= 0xC4CEB9FE1A85EC53L;
+            return key ^ (key >>> 33);
+        }
+
+        private static long rehash(long hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[(i + 1) % SEEDS.length];
+            return h ^ (h >>> 29);
+        }
+    }
+}
@@ -0,0 +1,340 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The products of one data file together with the indexes and cache used to query them.
+ * This is the library the Swing windows and the QueryServer are built on: a catalog opened for
+ * writing keeps the ID, trigram and cost indexes up to date as products are added, one opened
+ * read-only picks up the records another process appended before each query. A writable catalog
+ * also keeps product IDs unique, checking each new ID against a Bloom filter of the stored IDs.
+ * The cost column is only opened by the first cost aggregate, or the first cost query of a catalog
+ * without a cost index, so catalogs that never ask for one do not load it.
+ * Every method can be called from any number of threads at once.
+ */
+public class ProductCatalog implements Closeable {
+    private final ProductStore store;
+    private final IdIndex idIndex;
+    private final TrigramIndex trigramIndex;
+    private final PrefixIndex prefixIndex;
+    private final CostIndex costIndex;
+    private final IdFilter idFilter;
+    private final ProductCache cache;
+    // Both guarded by this, the engine is replaced once the cost column is opened
+    private CostColumn costColumn;
+    private QueryEngine engine;
+
+    // IDs being added right now, so two threads cannot both find an ID free and add it
+    private final Set<String> addingIds = ConcurrentHashMap.newKeySet();
+
+    private ProductCatalog(ProductStore store, IdIndex idIndex, TrigramIndex trigramIndex, PrefixIndex prefixIndex,
+                           CostIndex costIndex, IdFilter idFilter, ProductCache cache) {
+        this.store = store;
+        this.idIndex = idIndex;
+        this.trigramIndex = trigramIndex;
+        this.prefixIndex = prefixIndex;
+        this.costIndex = costIndex;
+        this.idFilter = idFilter;
+        this.cache = cache;
+        this.engine = new QueryEngine(store, idIndex, trigramIndex, costIndex, null);
+    }
+
+    /**
+     * Opens a catalog for querying and adding products, creating the file if needed
+     * @param path The data file
+     * @return the opened catalog
+     * @throws IOException if the file or its indexes cannot be opened, or another store is writing it
+     */
+    public static ProductCatalog openReadWrite(Path path) throws IOException {
+        return open(ProductStore.openReadWrite(path));
+    }
+
+    /**
+     * Opens a catalog for querying only
+     * @param path The data file
+     * @return the opened catalog
+     * @throws IOException if the file or its indexes cannot be opened
+     */
+    public static ProductCatalog openReadOnly(Path path) throws IOException {
+        return open(ProductStore.openReadOnly(path));
+    }
+
+    private static ProductCatalog open(ProductStore store) throws IOException {
+        IdIndex idIndex = null;
+        TrigramIndex trigramIndex = null;
+        PrefixIndex prefixIndex = null;
+        CostIndex costIndex = null;
+        IdFilter idFilter = null;
+        try {
+            idIndex = IdIndex.open(store);
+            trigramIndex = TrigramIndex.open(store);
+            prefixIndex = PrefixIndex.open(store);
+            // Only a writer keeps the cost index and ID filter, a reader has no cost queries or adds
+            if (store.isWritable()) {
+                costIndex = CostIndex.open(store);
+                idFilter = IdFilter.open(store, idIndex);
+            }
+            ProductCache cache = new ProductCache(store, idIndex, ProductCache.DEFAULT_CAPACITY);
+            return new ProductCatalog(store, idIndex, trigramIndex, prefixIndex, costIndex, idFilter, cache);
+        } catch (IOException | RuntimeException e) {
+            closeAll(idFilter, idIndex, trigramIndex, prefixIndex, costIndex, store);
+            throw e;
+        }
+    }
+
+    public ProductStore getStore() { return store; }
+    public boolean isWritable() { return store.isWritable(); }
+
+    /**
+     * @return the number of records in the file, including records appended by another process
+     * @throws IOException if the file cannot be read
+     */
+    public long getRecordCount() throws IOException {
+        store.refresh();
+        return store.getRecordCount();
+    }
+
+    /**
+     * Finds the products whose name contains a term, ignoring case
+     * @param term The search term
+     * @param progress Notified while a scan runs, may be null
+     * @return the matching record numbers in ascending order
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if the term is empty
+     */
+    public long[] searchName(String term, ParallelScanner.Progress progress) throws IOException {
+        return trigramIndex.searchName(prepareSearch(term), progress);
+    }
+
+    /**
+     * Finds the products whose name contains a term, ignoring case, handing the matches over in
+     * record order as they are found
+     * @param term The search term
+     * @param progress Notified while a scan runs, may be null
+     * @param matches Receives the matches on the calling thread, can stop the search by returning false
+     * @return the number of matches handed over
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if the term is empty
+     */
+    public long searchName(String term, ParallelScanner.Progress progress, ParallelScanner.Matches matches)
+            throws IOException {
+        return trigramIndex.searchName(prepareSearch(term), progress, matches);
+    }
+
+    /**
+     * Finds the products matching each of many terms in a single pass over the file
+     * @param terms The search terms, matched ignoring case like searchName
+     * @param includeDescription true to match terms in the description as well as the name
+     * @return the matching record numbers of each term in ascending order, in the order of the terms
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if there are no terms or a term is empty
+     */
+    public long[][] searchNames(List<String> terms, boolean includeDescription) throws IOException {
+        MultiTermSearch search = new MultiTermSearch(terms);
+        store.refresh();
+        return search.search(store.snapshot(), includeDescription, null);
+    }
+
+    /**
+     * Runs a query such as "name contains lamp and cost < 20 order by cost limit 50", answered
+     * through whichever index reads the least of the file
+     * @param text The query, see Query for the language
+     * @return the matching records and the plan used to find them
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if the text is not a valid query
+     */
+    public QueryEngine.Result query(String text) throws IOException {
+        Query query = Query.parse(text);
+        store.refresh();
+        idIndex.catchUp();
+        trigramIndex.catchUp();
+        if (costIndex != null) {
+            costIndex.catchUp();
+        } else if (hasCostCondition(query)) {
+            costColumn().catchUp();
+        }
+        QueryEngine engine;
+        synchronized (this) {
+            engine = this.engine;
+        }
+        return engine.execute(engine.plan(query));
+    }
+
+    // True if a condition of the query compares the cost
+    private static boolean hasCostCondition(Query query) {
+        for (Query.Predicate predicate : query.getPredicates()) {
+            if (predicate.getField() == Query.Field.COST) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Suggests product names for the text typed so far
+     * @param prefix The start of a name, matched ignoring case
+     * @param limit The largest number of names wanted
+     * @return up to limit distinct names in alphabetical order
+     * @throws IOException if the file cannot be read
+     */
+    public List<String> complete(String prefix, int limit) throws IOException {
+        store.refresh();
+        prefixIndex.catchUp();
+        return prefixIndex.complete(prefix, limit);
+    }
+
+    // Normalizes a search term and indexes records appended since the catalog was opened
+    private String prepareSearch(String term) throws IOException {
+        String lowerTerm = term == null ? "" : term.trim().toLowerCase();
+        if (lowerTerm.isEmpty()) {
+            throw new IllegalArgumentException("Please enter a search term");
+        }
+        store.refresh();
+        trigramIndex.catchUp();
+        return lowerTerm;
+    }
+
+    /**
+     * Finds the products with an ID
+     * @param id The product ID
+     * @return the record numbers holding the ID, in ascending order
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if the ID does not have the right length
+     */
+    public long[] lookupById(String id) throws IOException {
+        if (id == null || id.length() != ProductStore.ID_LENGTH) {
+            throw new IllegalArgumentException("ID must be exactly " + ProductStore.ID_LENGTH + " characters");
+        }
+        store.refresh();
+        idIndex.catchUp();
+        return idIndex.lookupAll(id);
+    }
+
+    /**
+     * Aggregates the costs in a range from the cost column, without reading the records
+     * @param min The lowest cost, inclusive
+     * @param max The highest cost, inclusive
+     * @return the count, total, lowest, highest and average of the matching costs
+     * @throws IOException if the file cannot be read
+     */
+    public CostColumn.Aggregate aggregateCost(double min, double max) throws IOException {
+        store.refresh();
+        CostColumn column = costColumn();
+        column.catchUp();
+        return column.aggregate(min, max);
+    }
+
+    // Opens the cost column on first use and lets the query engine filter on it from then on
+    private synchronized CostColumn costColumn() throws IOException {
+        if (costColumn == null) {
+            costColumn = CostColumn.open(store);
+            engine = new QueryEngine(store, idIndex, trigramIndex, costIndex, costColumn);
+        }
+        return costColumn;
+    }
+
+    /**
+     * Tests whether a product with an ID exists, through the ID filter when the catalog is writable
+     * @param id The product ID
+     * @return true if a record that has not been deleted holds the ID
+     * @throws IOException if the file cannot be read
+     */
+    public boolean containsId(String id) throws IOException {
+        if (idFilter != null) {
+            return idFilter.contains(id);
+        }
+        return lookupById(id).length > 0;
+    }
+
+    /**
+     * Reads a product, from the cache if it was read recently
+     * @param record The record number returned by a search
+     * @return the product, or null if the record has been deleted
+     */
+    public Product get(long record) {
+        return cache.get(record);
+    }
+
+    /**
+     * Adds a product at the end of the file
+     * @param product The product to add
+     * @return the record number the product was written to, durable once this returns
+     * @throws IOException if the record cannot be written or the catalog is read-only
+     * @throws IllegalArgumentException if a product with the same ID exists or the product has
+     *         characters the file cannot store
+     */
+    public long add(Product product) throws IOException {
+        if (idFilter == null) {
+            throw new IOException("Catalog is opened read-only");
+        }
+        String id = product.getID();
+        if (!addingIds.add(id)) {
+            throw new IllegalArgumentException("A product with ID " + id + " is being added");
+        }
+        try {
+            if (idFilter.contains(id)) {
+                throw new IllegalArgumentException("A product with ID " + id + " already exists");
+            }
+            return store.append(product);
+        } finally {
+            addingIds.remove(id);
+        }
+    }
+
+    /**
+     * Validates the text of a product's fields and adds the product
+     * @param id The product ID
+     * @param name The product name
+     * @param description The product description
+     * @param cost The product cost as entered
+     * @return the record number the product was written to
+     * @throws IOException if the record cannot be written or the catalog is read-only
+     * @throws IllegalArgumentException if a field is invalid, with the message ProductValidator gives,
+     *         or a product with the ID exists
+     */
+    public long add(String id, String name, String description, String cost) throws IOException {
+        String error = ProductValidator.validate(id, name, description, cost);
+        if (error != null) {
+            throw new IllegalArgumentException(error);
+        }
+        return add(new Product(id, name, description, Double.parseDouble(cost)));
+    }
+
+    /**
+     * Saves the indexes and closes the file
+     * @throws IOException if an index or the file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        cache.close();
+        CostColumn column;
+        synchronized (this) {
+            column = costColumn;
+        }
+        // The indexes are saved first so they record every appended product
+        closeAll(idFilter, idIndex, trigramIndex, prefixIndex, costIndex, column, store);
+    }
+
+    // Closes every resource even if one fails, rethrowing the first failure
+    private static void closeAll(Closeable... resources) throws IOException {
+        IOException failure = null;
+        for (Closeable resource : resources) {
+            if (resource == null) {
+                continue;
+            }
+            try {
+                resource.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
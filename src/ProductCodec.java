@@ -0,0 +1,273 @@
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact binary encoding of products for caches, messages between processes and snapshots,
+ * much smaller and faster than Java serialization of Product. Products are written into and read
+ * from buffers supplied by the caller, one at a time or as a batch, and decode to a product equal
+ * to the one encoded.
+ *
+ * An encoded product starts with a version byte, a batch with the version byte with BATCH set and
+ * the number of products, followed by the products without their version byte. The fields follow
+ * in order: ID, name, description, each as its padded length and its text without the trailing
+ * spaces, then the cost as 8 bytes. Lengths are unsigned varints; text whose characters all fit in
+ * one byte is stored as Latin-1, any other text as UTF-16, so every String comes back exactly.
+ * A typical product takes about 80 bytes.
+ *
+ * A field longer than its column in the data file, or text running past the end of the buffer, is
+ * rejected as malformed before anything is allocated for it.
+ * On a BufferOverflowException or a malformed input the buffer's position is left where it was,
+ * so the caller can grow the buffer or skip the input and try again.
+ */
+public final class ProductCodec {
+    public static final int VERSION = 1;
+
+    // Set in the first byte of a batch
+    private static final int BATCH = 0x80;
+    // Set in the text length when the text is UTF-16
+    private static final int WIDE = 1;
+
+    private ProductCodec() {
+    }
+
+    /**
+     * Writes a product at the buffer's position
+     * @param product The product
+     * @param buffer The buffer, its position is moved past the product
+     * @throws BufferOverflowException if the product does not fit in the buffer's remaining bytes
+     */
+    public static void encode(Product product, ByteBuffer buffer) {
+        int start = buffer.position();
+        try {
+            buffer.put((byte) VERSION);
+            putProduct(product, buffer);
+        } catch (BufferOverflowException e) {
+            buffer.position(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Writes a list of products at the buffer's position, all or none of them
+     * @param products The products
+     * @param buffer The buffer, its position is moved past the batch
+     * @throws BufferOverflowException if the batch does not fit in the buffer's remaining bytes
+     */
+    public static void encodeAll(List<Product> products, ByteBuffer buffer) {
+        int start = buffer.position();
+        try {
+            buffer.put((byte) (VERSION | BATCH));
+            putVarint(buffer, products.size());
+            for (Product product : products) {
+                putProduct(product, buffer);
+            }
+        } catch (BufferOverflowException e) {
+            buffer.position(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Reads a product written by encode
+     * @param buffer The buffer, its position is moved past the product
+     * @return the product
+     * @throws IllegalArgumentException if the bytes are not an encoded product of a known version
+     */
+    public static Product decode(ByteBuffer buffer) {
+        int start = buffer.position();
+        try {
+            checkVersion(buffer.get() & 0xFF, false);
+            return getProduct(buffer);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            buffer.position(start);
+            throw e instanceof IllegalArgumentException ? e : new IllegalArgumentException("Truncated product", e);
+        }
+    }
+
+    /**
+     * Reads a batch written by encodeAll
+     * @param buffer The buffer, its position is moved past the batch
+     * @return the products in the order they were written
+     * @throws IllegalArgumentException if the bytes are not an encoded batch of a known version
+     */
+    public static List<Product> decodeAll(ByteBuffer buffer) {
+        int start = buffer.position();
+        try {
+            checkVersion(buffer.get() & 0xFF, true);
+            int count = getVarint(buffer);
+            // Every product takes at least 14 bytes, so a corrupt count cannot allocate a huge list
+            List<Product> products = new ArrayList<>(Math.min(count, buffer.remaining() / 14));
+            for (int i = 0; i < count; i++) {
+                products.add(getProduct(buffer));
+            }
+            return products;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            buffer.position(start);
+            throw e instanceof IllegalArgumentException ? e : new IllegalArgumentException("Truncated batch", e);
+        }
+    }
+
+    /**
+     * @param product The product
+     * @return the number of bytes encode writes for it
+     */
+    public static int encodedSize(Product product) {
+        return 1 + productSize(product);
+    }
+
+    /**
+     * @param products The products
+     * @return the number of bytes encodeAll writes for them
+     */
+    public static int encodedSize(List<Product> products) {
+        int size = 1 + varintSize(products.size());
+        for (Product product : products) {
+            size += productSize(product);
+        }
+        return size;
+    }
+
+    private static void checkVersion(int first, boolean batch) {
+        if ((first & BATCH) != (batch ? BATCH : 0)) {
+            throw new IllegalArgumentException(batch ? "Not a batch of products" : "Not a single product");
+        }
+        if ((first & ~BATCH) != VERSION) {
+            throw new IllegalArgumentException("Unsupported product encoding version " + (first & ~BATCH));
+        }
+    }
+
+    private static void putProduct(Product product, ByteBuffer buffer) {
+        putText(buffer, product.getID());
+        putText(buffer, product.getPaddedName());
+        putText(buffer, product.getPaddedDescription());
+        buffer.putDouble(product.getCost());
+    }
+
+    private static Product getProduct(ByteBuffer buffer) {
+        String id = getText(buffer, ProductStore.ID_LENGTH);
+        String name = getText(buffer, ProductStore.NAME_LENGTH);
+        String description = getText(buffer, ProductStore.DESCRIPTION_LENGTH);
+        return Product.restore(id, name, description, buffer.getDouble());
+    }
+
+    private static int productSize(Product product) {
+        return textSize(product.getID()) + textSize(product.getPaddedName())
+                + textSize(product.getPaddedDescription()) + 8;
+    }
+
+    // The length of the text without its trailing spaces, which decoding puts back
+    private static int trimmedLength(String text) {
+        int end = text.length();
+        while (end > 0 && text.charAt(end - 1) == ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    private static boolean isLatin1(String text, int end) {
+        for (int i = 0; i < end; i++) {
+            if (text.charAt(i) > 0xFF) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void putText(ByteBuffer buffer, String text) {
+        int end = trimmedLength(text);
+        boolean latin1 = isLatin1(text, end);
+        putVarint(buffer, text.length());
+        putVarint(buffer, end << 1 | (latin1 ? 0 : WIDE));
+        if (latin1 && buffer.hasArray()) {
+            // Heap buffers are filled through their array, a put per byte costs a bounds check each
+            if (buffer.remaining() < end) {
+                throw new BufferOverflowException();
+            }
+            byte[] array = buffer.array();
+            int at = buffer.arrayOffset() + buffer.position();
+            for (int i = 0; i < end; i++) {
+                array[at + i] = (byte) text.charAt(i);
+            }
+            buffer.position(buffer.position() + end);
+        } else if (latin1) {
+            for (int i = 0; i < end; i++) {
+                buffer.put((byte) text.charAt(i));
+            }
+        } else {
+            for (int i = 0; i < end; i++) {
+                buffer.putChar(text.charAt(i));
+            }
+        }
+    }
+
+    // Reads a field of at most maxLength characters, checking the lengths before allocating
+    private static String getText(ByteBuffer buffer, int maxLength) {
+        int length = getVarint(buffer);
+        if (length > maxLength) {
+            throw new IllegalArgumentException("Text longer than " + maxLength + " characters");
+        }
+        int header = getVarint(buffer);
+        int end = header >>> 1;
+        if (end > length) {
+            throw new IllegalArgumentException("Text longer than its padded length");
+        }
+        if (end * ((header & WIDE) + 1) > buffer.remaining()) {
+            throw new IllegalArgumentException("Truncated text");
+        }
+        if ((header & WIDE) == 0) {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes, 0, end);
+            Arrays.fill(bytes, end, length, (byte) ' ');
+            return new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+        char[] chars = new char[length];
+        buffer.asCharBuffer().get(chars, 0, end);
+        buffer.position(buffer.position() + end * 2);
+        Arrays.fill(chars, end, length, ' ');
+        return new String(chars);
+    }
+
+    private static int textSize(String text) {
+        int end = trimmedLength(text);
+        int header = end << 1 | (isLatin1(text, end) ? 0 : WIDE);
+        return varintSize(text.length()) + varintSize(header) + (header & WIDE) * end + end;
+    }
+
+    // 7 bits per byte, low bits first, the high bit set on every byte but the last
+    private static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int getVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                if (value < 0) {
+                    break;
+                }
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed length");
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
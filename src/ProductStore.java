@@ -0,0 +1,1048 @@
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed-length record store backed by products.dat.
+ * The file is mapped with FileChannel.map and fields are decoded straight from
+ * the mapped buffers by offset. Files over 2 GB are mapped as several segments,
+ * each holding a whole number of records so a record never straddles two buffers.
+ * Both record formats are readable, see RecordFormat; new files are created in RecordFormat.DEFAULT.
+ * A Latin-1 file is converted to UTF-16 by the first write whose text does not fit in Latin-1.
+ * Records can be rewritten in place and deleted with a tombstone. Every update, delete and
+ * compaction bumps a modification count kept in products.dat.mod, which lets the sidecar indexes
+ * tell whether they missed a change while they were closed. The file also counts the compactions,
+ * so anything that remembers record numbers can tell whether they still mean the same records.
+ *
+ * A file has at most one writer, which holds an exclusive FileLock on products.dat.lock for as long
+ * as it is open, so a second writer fails to open in this or any other process. Readers never lock:
+ * the writer writes the bytes of new records first and then publishes the new record count, in
+ * memory for readers in this process and in the v2 header for other processes, so a reader never
+ * counts a record that is still being written. A Snapshot pins the published count and the mapped
+ * buffers, so a scan sees a stable set of records while appends and compactions carry on.
+ * Version 1 files have no header, their readers count the whole records in the file.
+ *
+ * Writes are made durable through a WriteAheadLog: append, update and delete return once their log
+ * entry is on disk, and concurrent writers share the flushes of the log. A write only reaches the
+ * data file, and with it readers and listeners, once its entry is on disk, so nobody sees a write a
+ * crash could still undo and the data file never holds bytes the log cannot repair; writes are
+ * applied in the order they were made. Batches from appendAll
+ * are forced to the data file directly instead. The log is replayed when the file is next opened
+ * for writing and emptied whenever the data file is forced, at the latest when the store is closed.
+ *
+ * The store does not check that product IDs are unique. Products are added through
+ * ProductCatalog.add, BulkImporter or PartitionedProductStore, which reject duplicate IDs, so append
+ * and appendAll are package-private and only called by those and by tools that write fresh files.
+ *
+ * Searches, appends and fsyncs are counted and timed in the store's StoreMetrics, see getMetrics().
+ */
+public class ProductStore implements Closeable {
+    public static final String DEFAULT_FILE = "products.dat";
+
+    public static final int ID_LENGTH = 6;
+    public static final int NAME_LENGTH = 35;
+    public static final int DESCRIPTION_LENGTH = 75;
+
+    // Batched appends are encoded into these direct buffers and written with one gathering write
+    private static final int BATCH_BUFFER_SIZE = 1 << 20;
+    private static final int BATCH_BUFFERS = 8;
+
+    public static final String MODIFICATIONS_SUFFIX = ".mod";
+    public static final String LOCK_SUFFIX = ".lock";
+
+    /** Longest time an append waits for others to share the flush of the write-ahead log */
+    public static final long DEFAULT_COMMIT_DELAY_MICROS = 1000;
+
+    // The data file is forced and the write-ahead log emptied once the log grows past this size
+    private static final long CHECKPOINT_SIZE = 64 << 20;
+
+    private final Path path;
+    private final boolean writable;
+    private final FileLock writerLock;
+    // The writer's lock, serializing the writes of this store while the FileLock keeps other stores
+    // out. A ReentrantLock rather than a monitor, so writers on virtual threads do not pin their carriers.
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final WriteAheadLog wal;
+    private ByteBuffer[] batchBuffers;
+
+    // Records appended, applied to the data file or not, the writes waiting for their log entries to
+    // reach the disk and the newest of those for each record. Guarded by the writer's lock.
+    private long writtenRecords;
+    private final ArrayDeque<PendingWrite> unsynced = new ArrayDeque<>();
+    private final Map<Long, PendingWrite> pendingRecords = new HashMap<>();
+    private final List<ProductStoreListener> listeners = new CopyOnWriteArrayList<>();
+    private final StoreMetrics metrics;
+
+    // Guards replacing the mapping, kept apart from the writer's lock so readers never wait for a write
+    private final Object mapLock = new Object();
+
+    // Readers load this once per access, so the channel, format, buffers and counts they use always belong together
+    private volatile Mapping mapping;
+    private volatile long modificationCount;
+    private volatile long compactionCount;
+
+    private ProductStore(Path path, FileChannel channel, FileLock writerLock, WriteAheadLog wal,
+                         RecordFormat format, StoreMetrics metrics) throws IOException {
+        this.path = path;
+        this.writable = writerLock != null;
+        this.writerLock = writerLock;
+        this.wal = wal;
+        this.mapping = new Mapping(channel, format, new MappedByteBuffer[0], 0, committedRecords(channel, format));
+        this.writtenRecords = mapping.recordCount;
+        this.metrics = metrics;
+        readModificationCount();
+        metrics.register();
+    }
+
+    /**
+     * Opens a store for reading only
+     * @param path The data file
+     * @return the opened store
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    public static ProductStore openReadOnly(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new ProductStore(path, channel, null, null, RecordFormat.read(channel), new StoreMetrics(path));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a store for reading and appending, creating the file in the default format if needed
+     * @param path The data file
+     * @return the opened store
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    public static ProductStore openReadWrite(Path path) throws IOException {
+        return openReadWrite(path, RecordFormat.DEFAULT);
+    }
+
+    /**
+     * Opens a store for reading and appending, replaying the write-ahead log left by a writer that
+     * did not close cleanly
+     * @param path The data file
+     * @param newFileFormat The format used if the file is created, existing files keep their format
+     * @return the opened store
+     * @throws IOException if the file cannot be opened or mapped, or another store is writing it
+     */
+    public static ProductStore openReadWrite(Path path, RecordFormat newFileFormat) throws IOException {
+        FileLock lock = lockWriter(path);
+        StoreMetrics metrics = new StoreMetrics(path);
+        FileChannel channel = null;
+        WriteAheadLog wal = null;
+        try {
+            channel = FileChannel.open(path,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            RecordFormat format;
+            if (channel.size() == 0) {
+                format = newFileFormat;
+                format.writeHeader(channel);
+            } else {
+                format = RecordFormat.read(channel);
+            }
+            wal = WriteAheadLog.open(path.resolveSibling(path.getFileName() + WriteAheadLog.SUFFIX),
+                    channel, format, TimeUnit.MICROSECONDS.toNanos(DEFAULT_COMMIT_DELAY_MICROS), metrics);
+            recoverTail(channel, format, wal.getRecoveredRecords());
+
+            ProductStore store = new ProductStore(path, channel, lock, wal, format, metrics);
+            if (wal.hasRecoveredModifications()) {
+                store.modified();
+            }
+            store.checkpoint();
+            return store;
+        } catch (IOException e) {
+            if (wal != null) {
+                wal.close();
+            }
+            if (channel != null) {
+                channel.close();
+            }
+            lock.channel().close();
+            metrics.close();
+            throw e;
+        }
+    }
+
+    // Only one store may write a file at a time, in this process or any other
+    private static FileLock lockWriter(Path path) throws IOException {
+        FileChannel lockChannel = FileChannel.open(path.resolveSibling(path.getFileName() + LOCK_SUFFIX),
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        FileLock lock = null;
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Held by another store in this process
+        } finally {
+            if (lock == null) {
+                lockChannel.close();
+            }
+        }
+        if (lock == null) {
+            throw new IOException(path + " is already open for writing");
+        }
+        return lock;
+    }
+
+    // Publishes the records replayed from the log, drops records a previous writer wrote but never
+    // published, and records the count in older v2 headers
+    private static void recoverTail(FileChannel channel, RecordFormat format, long replayed) throws IOException {
+        if (format.getHeaderSize() == 0) {
+            return;
+        }
+        long stored = (channel.size() - format.getHeaderSize()) / format.getRecordSize();
+        long committed = format.readCommitted(channel);
+        if (committed < 0) {
+            format.writeHeader(channel, stored);
+            return;
+        }
+        if (replayed > committed) {
+            committed = replayed;
+            format.writeCommitted(channel, committed);
+        }
+        if (committed < stored) {
+            channel.truncate(format.getHeaderSize() + committed * format.getRecordSize());
+        }
+    }
+
+    /**
+     * @return the default data file in the working directory
+     */
+    public static Path defaultPath() {
+        return Paths.get(DEFAULT_FILE);
+    }
+
+    public Path getPath() { return path; }
+    public RecordFormat getFormat() { return mapping.format; }
+    public long getRecordCount() { return mapping.recordCount; }
+    public long getModificationCount() { return modificationCount; }
+    public long getCompactionCount() { return compactionCount; }
+    public boolean isWritable() { return writable; }
+
+    /**
+     * @return the writer's lock, held by anything that has to keep writes out while it works on the file
+     */
+    ReentrantLock getWriteLock() { return writeLock; }
+    public StoreMetrics getMetrics() { return metrics; }
+
+    /**
+     * Sets how long a write waits for others to share the flush of the write-ahead log.
+     * Longer delays group more writes per flush, at the cost of latency for each of them.
+     * @param delay The longest wait, 0 to flush as soon as possible
+     * @param unit The unit of the delay
+     */
+    public void setCommitDelay(long delay, TimeUnit unit) {
+        if (wal != null) {
+            wal.setCommitDelay(delay, unit);
+        }
+    }
+
+    /**
+     * Forces the data file to disk and empties the write-ahead log
+     * @throws IOException if the file cannot be forced
+     */
+    public void checkpoint() throws IOException {
+        writeLock.lock();
+        try {
+            if (wal == null) {
+                return;
+            }
+            applyPending();
+            force();
+            wal.reset();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the path of a file stored next to the data file, e.g. products.dat.idx
+     * @param suffix The suffix appended to the data file name
+     * @return the sidecar path
+     */
+    public Path sidecar(String suffix) {
+        return path.resolveSibling(path.getFileName() + suffix);
+    }
+
+    public void addListener(ProductStoreListener listener) { listeners.add(listener); }
+    public void removeListener(ProductStoreListener listener) { listeners.remove(listener); }
+
+    /**
+     * Picks up records committed by the writer since the store was opened, and the new file once the
+     * writer has compacted it. A writable store is the only writer of its file, so it is always up to
+     * date and this does nothing.
+     * @throws IOException if the file cannot be read
+     */
+    public void refresh() throws IOException {
+        if (writable) {
+            return;
+        }
+        long compactions = compactionCount;
+        readModificationCount();
+        if (compactionCount == compactions) {
+            synchronized (mapLock) {
+                mapping = mapping.withRecordCount(committedRecords(mapping.channel, mapping.format));
+            }
+            return;
+        }
+
+        // The compacted or converted file was moved over the old one, which this store still holds open
+        FileChannel replacement = FileChannel.open(path, StandardOpenOption.READ);
+        FileChannel old;
+        try {
+            RecordFormat format = RecordFormat.read(replacement);
+            synchronized (mapLock) {
+                old = mapping.channel;
+                mapping = new Mapping(replacement, format, new MappedByteBuffer[0], 0,
+                        committedRecords(replacement, format));
+            }
+        } catch (IOException | RuntimeException e) {
+            replacement.close();
+            throw e;
+        }
+        // Buffers mapped from the old channel stay valid for the snapshots holding them
+        old.close();
+        for (ProductStoreListener listener : listeners) {
+            listener.storeCompacted();
+        }
+    }
+
+    /**
+     * Takes a snapshot of the records committed so far
+     * @return a snapshot that keeps its records readable until it is discarded
+     */
+    public Snapshot snapshot() {
+        synchronized (mapLock) {
+            Mapping current = remap();
+            return new Snapshot(current, modificationCount);
+        }
+    }
+
+    // The committed count, or the whole records in the file if the format does not record it
+    private static long committedRecords(FileChannel channel, RecordFormat format) throws IOException {
+        long stored = Math.max(0, channel.size() - format.getHeaderSize()) / format.getRecordSize();
+        long committed = format.readCommitted(channel);
+        return committed < 0 ? stored : Math.min(stored, committed);
+    }
+
+    private void readModificationCount() throws IOException {
+        Path modifications = sidecar(MODIFICATIONS_SUFFIX);
+        if (Files.exists(modifications)) {
+            try (DataInputStream in = new DataInputStream(Files.newInputStream(modifications))) {
+                modificationCount = in.readLong();
+                // Files written before compactions were counted end here
+                compactionCount = in.available() >= 8 ? in.readLong() : 0;
+            } catch (EOFException e) {
+                modificationCount = 0;
+            }
+        }
+    }
+
+    /**
+     * Reads the ID field of a record
+     * @param record The zero-based record number
+     * @return the ID without its padding
+     */
+    public String readId(long record) {
+        Mapping current = mappingFor(record);
+        return readField(current, record, current.format.getIdOffset(), ID_LENGTH);
+    }
+
+    /**
+     * Reads the name field of a record
+     * @param record The zero-based record number
+     * @return the name without its padding
+     */
+    public String readName(long record) {
+        Mapping current = mappingFor(record);
+        return readField(current, record, current.format.getNameOffset(), NAME_LENGTH);
+    }
+
+    /**
+     * Reads the description field of a record
+     * @param record The zero-based record number
+     * @return the description without its padding
+     */
+    public String readDescription(long record) {
+        Mapping current = mappingFor(record);
+        return readField(current, record, current.format.getDescriptionOffset(), DESCRIPTION_LENGTH);
+    }
+
+    /**
+     * Reads the cost field of a record
+     * @param record The zero-based record number
+     * @return the cost
+     */
+    public double readCost(long record) {
+        Mapping current = mappingFor(record);
+        return current.segment(record).getDouble(current.offset(record) + current.format.getCostOffset());
+    }
+
+    /**
+     * @param record The zero-based record number
+     * @return true if the record has been deleted
+     */
+    public boolean isDeleted(long record) {
+        Mapping current = mappingFor(record);
+        return current.format.isDeleted(current.segment(record), current.offset(record));
+    }
+
+    /**
+     * Decodes a whole record
+     * @param record The zero-based record number
+     * @return the product stored in the record
+     */
+    public Product readProduct(long record) {
+        return new Product(readId(record), readName(record), readDescription(record), readCost(record));
+    }
+
+    /**
+     * Appends a product at the end of the store without checking its ID, see the class comment
+     * @param product The product to write
+     * @return the record number the product was written to, durable once this returns
+     * @throws IOException if the record cannot be written
+     */
+    long append(final Product product) throws IOException {
+        long start = System.nanoTime();
+        final long record;
+        long entry;
+        writeLock.lock();
+        try {
+            if (!writable) {
+                throw new IOException("Store is opened read-only");
+            }
+            ByteBuffer bytes = encode(product);
+
+            // Overwrites a torn trailing record left behind by an interrupted write
+            record = writtenRecords;
+            entry = wal.log(WriteAheadLog.APPEND, record, bytes);
+            writtenRecords = record + 1;
+
+            addPending(new PendingWrite(entry, record, bytes, product) {
+                @Override
+                void published() throws IOException {
+                    publish(record + 1);
+                    for (ProductStoreListener listener : listeners) {
+                        listener.recordAppended(record, product);
+                    }
+                }
+            });
+            checkpointIfFull();
+        } finally {
+            writeLock.unlock();
+        }
+        // Waiting outside the lock lets concurrent writes share one flush of the log
+        sync(entry);
+        metrics.recordAppend(System.nanoTime() - start);
+        return record;
+    }
+
+    /**
+     * Appends many products at once. The records are encoded into large direct buffers that are
+     * written with gathering writes, so a batch costs a handful of system calls instead of one per record.
+     * The batch bypasses the write-ahead log: the records are forced before their count is published
+     * and again after, so a crash never publishes a partly written batch. IDs are not checked,
+     * see the class comment.
+     * @param products The products to write, in order
+     * @return the record number the first product was written to, durable once this returns
+     * @throws IOException if the records cannot be written
+     */
+    long appendAll(List<Product> products) throws IOException {
+        writeLock.lock();
+        try {
+            if (!writable) {
+                throw new IOException("Store is opened read-only");
+            }
+            for (Product product : products) {
+                promoteFor(product);
+            }
+            RecordFormat format = mapping.format;
+            int recordSize = format.getRecordSize();
+            if (batchBuffers == null) {
+                batchBuffers = new ByteBuffer[BATCH_BUFFERS];
+                for (int i = 0; i < BATCH_BUFFERS; i++) {
+                    batchBuffers[i] = ByteBuffer.allocateDirect(BATCH_BUFFER_SIZE / recordSize * recordSize);
+                }
+            }
+
+            // Single writes before the batch reach the data file first, the batch is written after them
+            applyPending();
+            StoreMetrics.BatchWriteEvent event = metrics.beginBatchWrite("appendAll");
+            long first = writtenRecords;
+            FileChannel channel = mapping.channel;
+            long position = format.getHeaderSize() + first * recordSize;
+            int next = 0;
+            while (next < products.size()) {
+                // Fill as many buffers as the remaining products need
+                int used = 0;
+                long bytes = 0;
+                while (used < BATCH_BUFFERS && next < products.size()) {
+                    ByteBuffer buffer = batchBuffers[used++];
+                    buffer.clear();
+                    while (buffer.remaining() >= recordSize && next < products.size()) {
+                        format.encode(products.get(next++), buffer);
+                    }
+                    buffer.flip();
+                    bytes += buffer.remaining();
+                }
+
+                channel.position(position);
+                long written = 0;
+                while (written < bytes) {
+                    written += channel.write(batchBuffers, 0, used);
+                }
+                position += bytes;
+            }
+            long fsync = force();
+            writtenRecords = first + products.size();
+            publish(writtenRecords);
+            fsync += force();
+            metrics.endBatchWrite(event, products.size(), (long) products.size() * recordSize, fsync);
+
+            for (ProductStoreListener listener : listeners) {
+                for (int i = 0; i < products.size(); i++) {
+                    listener.recordAppended(first + i, products.get(i));
+                }
+            }
+            return first;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Rewrites a record in place. The ID of a product never changes, so it has to match the stored one.
+     * @param record The zero-based record number
+     * @param product The new content of the record
+     * @throws IOException if the record cannot be written
+     * @throws IllegalArgumentException if the record is deleted or the ID differs
+     */
+    public void update(final long record, final Product product) throws IOException {
+        long entry;
+        writeLock.lock();
+        try {
+            final Product before = readLive(record);
+            if (!before.getID().equals(product.getID())) {
+                throw new IllegalArgumentException("The ID of record " + record + " is " + before.getID()
+                        + " and cannot be changed");
+            }
+            ByteBuffer bytes = encode(product);
+            entry = wal.log(WriteAheadLog.UPDATE, record, bytes);
+
+            addPending(new PendingWrite(entry, record, bytes, product) {
+                @Override
+                void published() throws IOException {
+                    modified();
+                    for (ProductStoreListener listener : listeners) {
+                        listener.recordUpdated(record, before, product);
+                    }
+                }
+            });
+            checkpointIfFull();
+        } finally {
+            writeLock.unlock();
+        }
+        sync(entry);
+    }
+
+    /**
+     * Deletes a record by writing a tombstone over it. The space is reclaimed by the Compactor.
+     * @param record The zero-based record number
+     * @throws IOException if the tombstone cannot be written
+     * @throws IllegalArgumentException if the record is already deleted
+     */
+    public void delete(final long record) throws IOException {
+        long entry;
+        writeLock.lock();
+        try {
+            final Product before = readLive(record);
+            ByteBuffer tombstone = mapping.format.tombstone();
+            entry = wal.log(WriteAheadLog.DELETE, record, tombstone);
+
+            addPending(new PendingWrite(entry, record, tombstone, null) {
+                @Override
+                void published() throws IOException {
+                    modified();
+                    for (ProductStoreListener listener : listeners) {
+                        listener.recordDeleted(record, before);
+                    }
+                }
+            });
+            checkpointIfFull();
+        } finally {
+            writeLock.unlock();
+        }
+        sync(entry);
+    }
+
+    // Called with the writer's lock held, converts the file first if its format cannot store the product
+    private ByteBuffer encode(Product product) throws IOException {
+        promoteFor(product);
+        RecordFormat format = mapping.format;
+        ByteBuffer bytes = ByteBuffer.allocate(format.getRecordSize());
+        format.encode(product, bytes);
+        bytes.flip();
+        return bytes;
+    }
+
+    // Called with the writer's lock held. Latin-1 files stay at one byte per character until a
+    // product needs more, then they are converted to UTF-16 once.
+    private void promoteFor(Product product) throws IOException {
+        if (mapping.format == RecordFormat.V2_LATIN1 && !RecordFormat.V2_LATIN1.canEncode(product)) {
+            convert(RecordFormat.V2_UTF16);
+        }
+    }
+
+    // Called with the writer's lock held
+    private void addPending(PendingWrite write) {
+        unsynced.add(write);
+        pendingRecords.put(write.record, write);
+    }
+
+    // Waits for a log entry to reach the disk, then applies it and every write before it
+    private void sync(long entry) throws IOException {
+        wal.sync(entry);
+        writeLock.lock();
+        try {
+            applySynced(entry);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Called with the writer's lock held, waits for every logged write to be durable and applies it
+    private void applyPending() throws IOException {
+        if (!unsynced.isEmpty()) {
+            long last = unsynced.peekLast().entry;
+            wal.sync(last);
+            applySynced(last);
+        }
+    }
+
+    // Called with the writer's lock held. A write stays queued until its bytes are in the data file,
+    // so a failed write is tried again by the next sync.
+    private void applySynced(long entry) throws IOException {
+        RecordFormat format = mapping.format;
+        while (!unsynced.isEmpty() && unsynced.peek().entry <= entry) {
+            PendingWrite write = unsynced.peek();
+            write(write.bytes.duplicate(), format.getHeaderSize() + write.record * format.getRecordSize());
+            unsynced.poll();
+            if (pendingRecords.get(write.record) == write) {
+                pendingRecords.remove(write.record);
+            }
+            write.published();
+        }
+    }
+
+    // Called with the writer's lock held, sees the writes still waiting for the log
+    private Product readLive(long record) throws IOException {
+        if (!writable) {
+            throw new IOException("Store is opened read-only");
+        }
+        PendingWrite pending = pendingRecords.get(record);
+        if (pending != null ? pending.product == null : isDeleted(record)) {
+            throw new IllegalArgumentException("Record " + record + " has been deleted");
+        }
+        return pending != null ? pending.product : readProduct(record);
+    }
+
+    // Forces the data file and records the time it took
+    private long force() throws IOException {
+        long start = System.nanoTime();
+        mapping.channel.force(false);
+        long nanos = System.nanoTime() - start;
+        metrics.recordFsync(nanos);
+        return nanos;
+    }
+
+    private void checkpointIfFull() throws IOException {
+        if (wal.size() > CHECKPOINT_SIZE) {
+            checkpoint();
+        }
+    }
+
+    // Makes records visible to readers once all of their bytes are written
+    private void publish(long count) throws IOException {
+        synchronized (mapLock) {
+            mapping.format.writeCommitted(mapping.channel, count);
+            mapping = mapping.withRecordCount(count);
+        }
+    }
+
+    private void write(ByteBuffer buffer, long position) throws IOException {
+        FileChannel channel = mapping.channel;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    // Bumps the modification count so closed indexes know they have to be rebuilt
+    private void modified() throws IOException {
+        modificationCount++;
+        ByteBuffer count = ByteBuffer.allocate(16);
+        count.putLong(0, modificationCount);
+        count.putLong(8, compactionCount);
+        try (FileChannel out = FileChannel.open(sidecar(MODIFICATIONS_SUFFIX),
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            while (count.hasRemaining()) {
+                out.write(count, count.position());
+            }
+        }
+    }
+
+    /**
+     * Copies the raw bytes of a record, if the file is still in the format the caller expects
+     * @param record The zero-based record number
+     * @param format The format the caller decodes the bytes with
+     * @param out The buffer to copy format.getRecordSize() bytes into
+     * @return false if the file has been converted to another format, nothing is copied then
+     */
+    boolean copyRecord(long record, RecordFormat format, ByteBuffer out) {
+        Mapping current = mappingFor(record);
+        if (current.format != format) {
+            return false;
+        }
+        out.put(out.position(), current.segment(record), current.offset(record), format.getRecordSize());
+        out.position(out.position() + format.getRecordSize());
+        return true;
+    }
+
+    /**
+     * Replaces the data file with a compacted copy. Called by the Compactor while it holds the store's lock.
+     * Snapshots taken before the swap stay readable but refer to the old record numbers. Listeners
+     * hear of the compaction before any other write can reach the new file.
+     * @param compacted The new data file with its committed count written, moved over the current one
+     * @param records The number of records in the new file
+     * @throws IOException if the file cannot be replaced
+     */
+    void replaceFile(Path compacted, long records) throws IOException {
+        writeLock.lock();
+        try {
+            // The log refers to the old record numbers, so it is emptied into the old file first
+            checkpoint();
+            swapFile(compacted, mapping.format, records);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Converts the data file to another record format in place. The records are copied to a new
+     * file which is then moved over the current one, like a compaction that keeps every record.
+     * Snapshots taken before the conversion stay readable in the old format.
+     * @param target The format to convert to
+     * @return the number of records converted, 0 if the file already has the format
+     * @throws IOException if the file cannot be converted
+     * @throws IllegalArgumentException if a record has characters the target format cannot store
+     */
+    long convert(RecordFormat target) throws IOException {
+        writeLock.lock();
+        try {
+            if (!writable) {
+                throw new IOException("Store is opened read-only");
+            }
+            if (mapping.format == target) {
+                return 0;
+            }
+            // Every acknowledged write reaches the file before it is copied
+            checkpoint();
+            Path converted = sidecar(".converting");
+            long records;
+            try {
+                records = FormatConverter.convert(this, converted, target);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(converted);
+                throw e;
+            }
+            swapFile(converted, target, records);
+            wal.reset(target.getRecordSize());
+            return records;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Called with the writer lock held and the log empty, moves a new data file over the current one
+    private void swapFile(Path replacementFile, RecordFormat format, long records) throws IOException {
+        Files.move(replacementFile, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        FileChannel replacement = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel old;
+        synchronized (mapLock) {
+            old = mapping.channel;
+            mapping = new Mapping(replacement, format, new MappedByteBuffer[0], 0, records);
+            writtenRecords = records;
+            // Bumped with the swap, so no snapshot pairs the new file with the old counts
+            compactionCount++;
+            modified();
+        }
+        // Readers only use the channel to map under mapLock and writers hold this lock, so the old
+        // channel is idle now. Buffers mapped from it stay valid after it is closed.
+        old.close();
+
+        for (ProductStoreListener listener : listeners) {
+            listener.storeCompacted();
+        }
+    }
+
+    /**
+     * Appends a field of a record to a builder without creating a String
+     * @param record The zero-based record number
+     * @param field The field to append
+     * @param trim true to drop leading and trailing whitespace the way String.trim() does
+     * @param out The builder to append to
+     */
+    void appendField(long record, TextField field, boolean trim, StringBuilder out) {
+        Mapping current = mappingFor(record);
+        RecordFormat format = current.format;
+        ByteBuffer segment = current.segment(record);
+        int start = current.offset(record) + field.offset(format);
+
+        // NUL padding is whitespace to trim(), so it only needs stripping explicitly when not trimming
+        int end = field.length;
+        while (end > 0 && (trim ? format.getChar(segment, start, end - 1) <= ' '
+                : format.getChar(segment, start, end - 1) == '\0')) {
+            end--;
+        }
+        int begin = 0;
+        while (trim && begin < end && format.getChar(segment, start, begin) <= ' ') {
+            begin++;
+        }
+        for (int i = begin; i < end; i++) {
+            out.append(format.getChar(segment, start, i));
+        }
+    }
+
+    private String readField(Mapping current, long record, int fieldOffset, int length) {
+        RecordFormat format = current.format;
+        ByteBuffer segment = current.segment(record);
+        int start = current.offset(record) + fieldOffset;
+
+        // Strip the trailing NUL padding
+        int end = length;
+        while (end > 0 && format.getChar(segment, start, end - 1) == '\0') {
+            end--;
+        }
+        char[] chars = new char[end];
+        for (int i = 0; i < end; i++) {
+            chars[i] = format.getChar(segment, start, i);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Returns the mapping holding a record, mapping newly appended records on demand. Callers
+     * locate the record with the returned mapping, whose format may change with every call.
+     * @param record The zero-based record number
+     * @return the mapping
+     */
+    Mapping mappingFor(long record) {
+        Mapping current = mapping;
+        if (record >= current.mappedRecords && record < current.recordCount) {
+            synchronized (mapLock) {
+                current = remap();
+            }
+        }
+        // Checked against the mapping actually used, a compaction may have shrunk the store meanwhile
+        if (record < 0 || record >= current.recordCount) {
+            throw new IndexOutOfBoundsException("Record " + record + " of " + current.recordCount);
+        }
+        return current;
+    }
+
+    // Called with mapLock held, maps every published record and returns the mapping
+    private Mapping remap() {
+        Mapping current = mapping;
+        long records = current.recordCount;
+        if (records <= current.mappedRecords) {
+            return current;
+        }
+        try {
+            long segmentSize = (long) current.recordsPerSegment * current.format.getRecordSize();
+            long length = records * current.format.getRecordSize();
+            int segmentCount = (int) ((length + segmentSize - 1) / segmentSize);
+            MappedByteBuffer[] mapped = Arrays.copyOf(current.segments, segmentCount);
+
+            // Full segments never change, only the last partial one and any new ones are mapped again
+            int first = (int) (current.mappedRecords / current.recordsPerSegment);
+            for (int i = first; i < segmentCount; i++) {
+                long start = i * segmentSize;
+                mapped[i] = current.channel.map(FileChannel.MapMode.READ_ONLY,
+                        current.format.getHeaderSize() + start, Math.min(segmentSize, length - start));
+            }
+            mapping = new Mapping(current.channel, current.format, mapped, records, records);
+            return mapping;
+        } catch (IOException e) {
+            throw new IllegalStateException("Error mapping " + path + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Forces the data file, empties the write-ahead log and closes the underlying files
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (wal != null) {
+                checkpoint();
+            }
+        } finally {
+            if (wal != null) {
+                wal.close();
+            }
+            mapping.channel.close();
+            if (writerLock != null) {
+                writerLock.channel().close();
+            }
+            metrics.close();
+        }
+    }
+
+    /**
+     * A write whose log entry may not be on disk yet, applied to the data file and published once it is
+     */
+    private abstract class PendingWrite {
+        final long entry;
+        final long record;
+        final ByteBuffer bytes;
+        // The product written, null for a delete
+        final Product product;
+
+        PendingWrite(long entry, long record, ByteBuffer bytes, Product product) {
+            this.entry = entry;
+            this.record = record;
+            this.bytes = bytes;
+            this.product = product;
+        }
+
+        // Called once the bytes are in the data file
+        abstract void published() throws IOException;
+    }
+
+    /**
+     * The text fields appendField can copy
+     */
+    enum TextField {
+        ID(ID_LENGTH), NAME(NAME_LENGTH), DESCRIPTION(DESCRIPTION_LENGTH);
+
+        final int length;
+
+        TextField(int length) {
+            this.length = length;
+        }
+
+        int offset(RecordFormat format) {
+            switch (this) {
+                case ID: return format.getIdOffset();
+                case NAME: return format.getNameOffset();
+                default: return format.getDescriptionOffset();
+            }
+        }
+    }
+
+    /**
+     * The file, its format and what is mapped of it, replaced as a whole whenever any part changes
+     */
+    static final class Mapping {
+        final FileChannel channel;
+        final RecordFormat format;
+        // Segments hold whole records and stay below the 2 GB a buffer can address
+        final int recordsPerSegment;
+        final MappedByteBuffer[] segments;
+        final long mappedRecords;
+        final long recordCount;
+
+        Mapping(FileChannel channel, RecordFormat format, MappedByteBuffer[] segments,
+                long mappedRecords, long recordCount) {
+            this.channel = channel;
+            this.format = format;
+            this.recordsPerSegment = Integer.MAX_VALUE / format.getRecordSize();
+            this.segments = segments;
+            this.mappedRecords = mappedRecords;
+            this.recordCount = recordCount;
+        }
+
+        Mapping withRecordCount(long count) {
+            return new Mapping(channel, format, segments, Math.min(mappedRecords, count), count);
+        }
+
+        /**
+         * @param record A mapped record
+         * @return the segment buffer holding the record
+         */
+        ByteBuffer segment(long record) {
+            return segments[(int) (record / recordsPerSegment)];
+        }
+
+        /**
+         * @param record A mapped record
+         * @return the byte offset of the record within its segment
+         */
+        int offset(long record) {
+            return (int) (record % recordsPerSegment) * format.getRecordSize();
+        }
+    }
+
+    /**
+     * The records committed when the snapshot was taken. The snapshot keeps the mapped buffers of
+     * those records, so they stay readable through appends, compactions and conversions. Updates and
+     * deletes are made in place and are visible through it; isCurrent() tells whether any happened since.
+     */
+    public final class Snapshot {
+        private final Mapping mapping;
+        private final long modificationCount;
+
+        private Snapshot(Mapping mapping, long modificationCount) {
+            this.mapping = mapping;
+            this.modificationCount = modificationCount;
+        }
+
+        public ProductStore getStore() { return ProductStore.this; }
+        public long getRecordCount() { return mapping.recordCount; }
+        public long getModificationCount() { return modificationCount; }
+
+        /**
+         * @return the format of the records in the snapshot, which a later conversion does not change
+         */
+        public RecordFormat getFormat() { return mapping.format; }
+
+        /**
+         * @return false if records were updated, deleted or compacted since the snapshot was taken
+         */
+        public boolean isCurrent() {
+            return modificationCount == ProductStore.this.modificationCount;
+        }
+
+        ByteBuffer segmentFor(long record) {
+            if (record < 0 || record >= mapping.recordCount) {
+                throw new IndexOutOfBoundsException("Record " + record + " of " + mapping.recordCount);
+            }
+            return mapping.segment(record);
+        }
+
+        int offsetOf(long record) {
+            return mapping.offset(record);
+        }
+    }
+}
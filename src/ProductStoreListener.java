@@ -0,0 +1,36 @@
+/**
+ * Receives changes made through a ProductStore.
+ * Secondary indexes register themselves as listeners so they stay in sync with the data file.
+ */
+public interface ProductStoreListener {
+
+    /**
+     * Called after a record has been appended
+     * @param record The record number the product was written to
+     * @param product The product that was written
+     */
+    void recordAppended(long record, Product product);
+
+    /**
+     * Called after a record has been rewritten in place
+     * @param record The record number
+     * @param before The product the record held before
+     * @param after The product the record holds now
+     */
+    default void recordUpdated(long record, Product before, Product after) {
+    }
+
+    /**
+     * Called after a record has been marked as deleted
+     * @param record The record number
+     * @param before The product the record held before
+     */
+    default void recordDeleted(long record, Product before) {
+    }
+
+    /**
+     * Called after the data file has been replaced by a compacted copy, every record number may have changed
+     */
+    default void storeCompacted() {
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * Validation rules for the fields of a new product.
+ * Shared by the Product Maker form and the bulk importer so both accept exactly the same records.
+ */
+public class ProductValidator {
+
+    private ProductValidator() {
+    }
+
+    /**
+     * Validates the raw text of a product's fields
+     * @param id The product ID
+     * @param name The product name
+     * @param description The product description
+     * @param cost The product cost as entered
+     * @return a message describing the first problem found, or null if the fields are valid
+     */
+    public static String validate(String id, String name, String description, String cost) {
+        if (id == null || name == null || description == null || cost == null ||
+                id.trim().isEmpty() ||
+                name.trim().isEmpty() ||
+                description.trim().isEmpty() ||
+                cost.trim().isEmpty()) {
+            return "All fields are required!";
+        }
+
+        if (id.length() != ProductStore.ID_LENGTH) {
+            return "ID must be exactly " + ProductStore.ID_LENGTH + " characters!";
+        }
+
+        if (name.length() > ProductStore.NAME_LENGTH) {
+            return "Name cannot exceed " + ProductStore.NAME_LENGTH + " characters!";
+        }
+
+        if (description.length() > ProductStore.DESCRIPTION_LENGTH) {
+            return "Description cannot exceed " + ProductStore.DESCRIPTION_LENGTH + " characters!";
+        }
+
+        try {
+            if (Double.parseDouble(cost) < 0) {
+                return "Cost cannot be negative!";
+            }
+        } catch (NumberFormatException e) {
+            return "Invalid cost format!";
+        }
+
+        return null;
+    }
+}
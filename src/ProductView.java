@@ -0,0 +1,221 @@
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Flyweight view of one record in a ProductStore.
+ * The view points at a record's offset in the mapped file and exposes its fields as CharSequences
+ * that decode characters on access, so moving the view and testing fields allocates nothing.
+ * A Product is only built when toProduct() is called. A view is reused across records and is
+ * not thread-safe, every scanning thread uses its own. A view over a snapshot reads the records
+ * of the snapshot, a view over the store reads whatever is committed when it moves, in the
+ * format the file has then.
+ */
+public class ProductView {
+    private final ProductStore store;
+    private final ProductStore.Snapshot snapshot;
+    private RecordFormat format;
+    private final boolean simpleLowerCase;
+    private final Field id;
+    private final Field name;
+    private final Field description;
+
+    private ByteBuffer segment;
+    private int offset;
+    private long record = -1;
+
+    /**
+     * @param store The store whose records are viewed
+     */
+    public ProductView(ProductStore store) {
+        this(store, null);
+    }
+
+    /**
+     * @param snapshot The snapshot whose records are viewed
+     */
+    public ProductView(ProductStore.Snapshot snapshot) {
+        this(snapshot.getStore(), snapshot);
+    }
+
+    private ProductView(ProductStore store, ProductStore.Snapshot snapshot) {
+        this.store = store;
+        this.snapshot = snapshot;
+        this.id = new Field(ProductStore.ID_LENGTH);
+        this.name = new Field(ProductStore.NAME_LENGTH);
+        this.description = new Field(ProductStore.DESCRIPTION_LENGTH);
+        setFormat(snapshot != null ? snapshot.getFormat() : store.getFormat());
+
+        // These locales lower-case some letters differently from Character.toLowerCase
+        String language = Locale.getDefault().getLanguage();
+        this.simpleLowerCase = !language.equals("tr") && !language.equals("az") && !language.equals("lt");
+    }
+
+    /**
+     * Points the view at another record
+     * @param record The zero-based record number
+     * @return this view
+     */
+    public ProductView moveTo(long record) {
+        if (snapshot != null) {
+            this.segment = snapshot.segmentFor(record);
+            this.offset = snapshot.offsetOf(record);
+        } else {
+            ProductStore.Mapping mapping = store.mappingFor(record);
+            this.segment = mapping.segment(record);
+            this.offset = mapping.offset(record);
+            if (mapping.format != format) {
+                setFormat(mapping.format);
+            }
+        }
+        this.record = record;
+        id.length = -1;
+        name.length = -1;
+        description.length = -1;
+        return this;
+    }
+
+    public long getRecord() { return record; }
+
+    private void setFormat(RecordFormat format) {
+        this.format = format;
+        id.fieldOffset = format.getIdOffset();
+        name.fieldOffset = format.getNameOffset();
+        description.fieldOffset = format.getDescriptionOffset();
+    }
+
+    /**
+     * @return true if the current record has been deleted
+     */
+    public boolean isDeleted() {
+        return format.isDeleted(segment, offset);
+    }
+
+    /**
+     * @return the ID without its padding, valid until the view moves
+     */
+    public CharSequence id() { return id; }
+
+    /**
+     * @return the name without its padding, valid until the view moves
+     */
+    public CharSequence name() { return name; }
+
+    /**
+     * @return the description without its padding, valid until the view moves
+     */
+    public CharSequence description() { return description; }
+
+    public double cost() {
+        return segment.getDouble(offset + format.getCostOffset());
+    }
+
+    /**
+     * Tests the name like name.toLowerCase().contains(lowerTerm) without creating Strings
+     * @param lowerTerm The lower-cased search term
+     * @return true if the name contains the term
+     */
+    public boolean nameContains(String lowerTerm) {
+        return containsIgnoreCase(name, lowerTerm);
+    }
+
+    /**
+     * Tests the description like description.toLowerCase().contains(lowerTerm) without creating Strings
+     * @param lowerTerm The lower-cased search term
+     * @return true if the description contains the term
+     */
+    public boolean descriptionContains(String lowerTerm) {
+        return containsIgnoreCase(description, lowerTerm);
+    }
+
+    /**
+     * Decodes the record into a Product
+     * @return a new Product holding the record's fields
+     */
+    public Product toProduct() {
+        return new Product(id.toString(), name.toString(), description.toString(), cost());
+    }
+
+    /**
+     * Tests whether lower-casing a field one character at a time with Character.toLowerCase gives
+     * the same text as String.toLowerCase, which it does unless the field has surrogates, capital
+     * sigma or dotted capital I, or the default locale lower-cases differently
+     * @param field A field of the current record
+     * @return true if the field can be lower-cased per character
+     */
+    public boolean lowerCasesPerChar(CharSequence field) {
+        if (!simpleLowerCase) {
+            return false;
+        }
+        int length = field.length();
+        for (int i = 0; i < length; i++) {
+            char c = field.charAt(i);
+            if (Character.isSurrogate(c) || c == '\u03A3' || c == '\u0130') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean containsIgnoreCase(Field field, String lowerTerm) {
+        int length = field.length();
+        int termLength = lowerTerm.length();
+        if (!lowerCasesPerChar(field)) {
+            return field.toString().toLowerCase().contains(lowerTerm);
+        }
+        for (int start = 0; start + termLength <= length; start++) {
+            int i = 0;
+            while (i < termLength && Character.toLowerCase(field.charAt(start + i)) == lowerTerm.charAt(i)) {
+                i++;
+            }
+            if (i == termLength) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A fixed-length field of the current record, with its trailing NUL padding hidden
+     */
+    private class Field implements CharSequence {
+        private final int capacity;
+        // Set with the format
+        private int fieldOffset;
+        private int length = -1;
+
+        Field(int capacity) {
+            this.capacity = capacity;
+        }
+
+        @Override
+        public int length() {
+            if (length < 0) {
+                int end = capacity;
+                while (end > 0 && format.getChar(segment, offset + fieldOffset, end - 1) == '\0') {
+                    end--;
+                }
+                length = end;
+            }
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return format.getChar(segment, offset + fieldOffset, index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            char[] chars = new char[length()];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = charAt(i);
+            }
+            return new String(chars);
+        }
+    }
+}
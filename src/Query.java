@@ -0,0 +1,346 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A product query: conditions that all have to hold, an optional order and an optional limit.
+ * Queries are written in a small language, keywords and field names ignoring case:
+ *
+ *   name contains lamp and description contains "solid oak" and cost < 20 order by cost desc limit 50
+ *
+ *   query     := [where] [condition (and condition)*] [order by field [asc | desc]] [limit n]
+ *   condition := id = value
+ *              | name contains value | name = value
+ *              | description contains value | description = value
+ *              | cost (= | < | <= | > | >=) number
+ *   field     := id | name | description | cost
+ *
+ * Values are single words or text in single or double quotes, a quote inside is written twice.
+ * Text conditions ignore case like a name search, IDs are compared exactly. An empty query matches
+ * every product. QueryEngine decides how a query is answered.
+ */
+public final class Query {
+    public static final int NO_LIMIT = -1;
+
+    public enum Field { ID, NAME, DESCRIPTION, COST }
+
+    public enum Operator {
+        CONTAINS("contains"), EQUALS("="), LESS("<"), LESS_OR_EQUAL("<="), GREATER(">"), GREATER_OR_EQUAL(">=");
+
+        private final String symbol;
+
+        Operator(String symbol) {
+            this.symbol = symbol;
+        }
+
+        public String getSymbol() { return symbol; }
+    }
+
+    /**
+     * One condition on a field of a record
+     */
+    public static final class Predicate {
+        private final Field field;
+        private final Operator operator;
+        private final String text;
+        private final double number;
+
+        /**
+         * @param field The field tested
+         * @param operator The comparison
+         * @param value The value compared with, a number for the cost
+         * @throws IllegalArgumentException if the field cannot be compared this way or the value is invalid
+         */
+        public Predicate(Field field, Operator operator, String value) {
+            String name = field.name().toLowerCase(Locale.ROOT);
+            boolean text = field != Field.COST;
+            if (text && operator != Operator.EQUALS && (operator != Operator.CONTAINS || field == Field.ID)) {
+                throw new IllegalArgumentException("Cannot use " + operator.getSymbol() + " on " + name);
+            }
+            if (!text && operator == Operator.CONTAINS) {
+                throw new IllegalArgumentException("Cannot use contains on cost");
+            }
+            String trimmed = value == null ? "" : value.trim();
+            if (trimmed.isEmpty()) {
+                throw new IllegalArgumentException("Please enter a value for " + name);
+            }
+            this.field = field;
+            this.operator = operator;
+            if (text) {
+                // IDs are exact, names and descriptions are matched lower-cased like a search term
+                this.text = field == Field.ID ? trimmed : trimmed.toLowerCase();
+                this.number = Double.NaN;
+            } else {
+                try {
+                    this.number = Double.parseDouble(trimmed);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Cost must be a number: " + trimmed);
+                }
+                this.text = null;
+            }
+        }
+
+        public Field getField() { return field; }
+        public Operator getOperator() { return operator; }
+
+        /** @return the value of a text condition, lower-cased unless it is an ID */
+        public String getText() { return text; }
+
+        /** @return the value of a cost condition */
+        public double getNumber() { return number; }
+
+        /**
+         * Tests the record a view points at, reading only the bytes of the tested field
+         * @param view The record, not deleted
+         * @return true if the condition holds
+         */
+        public boolean test(ProductView view) {
+            switch (field) {
+                case COST:
+                    double cost = view.cost();
+                    switch (operator) {
+                        case LESS: return cost < number;
+                        case LESS_OR_EQUAL: return cost <= number;
+                        case GREATER: return cost > number;
+                        case GREATER_OR_EQUAL: return cost >= number;
+                        default: return cost == number;
+                    }
+                case ID:
+                    return contentEquals(view.id(), text);
+                case NAME:
+                    return (operator == Operator.CONTAINS || view.name().length() == text.length())
+                            && view.nameContains(text);
+                default:
+                    return (operator == Operator.CONTAINS || view.description().length() == text.length())
+                            && view.descriptionContains(text);
+            }
+        }
+
+        private static boolean contentEquals(CharSequence field, String value) {
+            if (field.length() != value.length()) {
+                return false;
+            }
+            for (int i = 0; i < value.length(); i++) {
+                if (field.charAt(i) != value.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            String name = field.name().toLowerCase(Locale.ROOT) + " " + operator.getSymbol() + " ";
+            if (text == null) {
+                return name + (number == Math.rint(number) && !Double.isInfinite(number)
+                        ? String.valueOf((long) number) : String.valueOf(number));
+            }
+            return name + "'" + text.replace("'", "''") + "'";
+        }
+    }
+
+    private final List<Predicate> predicates;
+    private final Field orderBy;
+    private final boolean descending;
+    private final int limit;
+
+    /**
+     * @param predicates The conditions, all of which have to hold
+     * @param orderBy The field the results are sorted by, null for record order
+     * @param descending true to sort from the highest value
+     * @param limit The largest number of results, NO_LIMIT for all
+     */
+    public Query(List<Predicate> predicates, Field orderBy, boolean descending, int limit) {
+        if (limit < 0 && limit != NO_LIMIT) {
+            throw new IllegalArgumentException("Limit cannot be negative");
+        }
+        this.predicates = Collections.unmodifiableList(new ArrayList<>(predicates));
+        this.orderBy = orderBy;
+        this.descending = descending;
+        this.limit = limit;
+    }
+
+    public List<Predicate> getPredicates() { return predicates; }
+    public Field getOrderBy() { return orderBy; }
+    public boolean isDescending() { return descending; }
+    public int getLimit() { return limit; }
+
+    /**
+     * Parses a query
+     * @param text The query in the query language
+     * @return the query
+     * @throws IllegalArgumentException if the text is not a valid query
+     */
+    public static Query parse(String text) {
+        Parser parser = new Parser(text == null ? "" : text);
+        return parser.parse();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        for (Predicate predicate : predicates) {
+            s.append(s.length() > 0 ? " and " : "").append(predicate);
+        }
+        if (orderBy != null) {
+            s.append(s.length() > 0 ? " " : "").append("order by ").append(orderBy.name().toLowerCase(Locale.ROOT))
+                    .append(descending ? " desc" : "");
+        }
+        if (limit != NO_LIMIT) {
+            s.append(s.length() > 0 ? " " : "").append("limit ").append(limit);
+        }
+        return s.toString();
+    }
+
+    /**
+     * Recursive descent over the tokens of a query
+     */
+    private static class Parser {
+        private final List<String> tokens = new ArrayList<>();
+        // Whether each token was quoted, so a quoted "and" is a value rather than a keyword
+        private final List<Boolean> quoted = new ArrayList<>();
+        private int next;
+
+        Parser(String text) {
+            int i = 0;
+            while (i < text.length()) {
+                char c = text.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '\'' || c == '"') {
+                    StringBuilder value = new StringBuilder();
+                    int end = i + 1;
+                    while (true) {
+                        if (end >= text.length()) {
+                            throw new IllegalArgumentException("Missing closing quote " + c);
+                        }
+                        if (text.charAt(end) == c) {
+                            // A doubled quote stands for the quote itself
+                            if (end + 1 < text.length() && text.charAt(end + 1) == c) {
+                                value.append(c);
+                                end += 2;
+                                continue;
+                            }
+                            break;
+                        }
+                        value.append(text.charAt(end++));
+                    }
+                    add(value.toString(), true);
+                    i = end + 1;
+                } else if (c == '<' || c == '>' || c == '=') {
+                    int end = i + 1 < text.length() && text.charAt(i + 1) == '=' && c != '=' ? i + 2 : i + 1;
+                    add(text.substring(i, end), false);
+                    i = end;
+                } else {
+                    int end = i;
+                    while (end < text.length() && !Character.isWhitespace(text.charAt(end))
+                            && "<>='\"".indexOf(text.charAt(end)) < 0) {
+                        end++;
+                    }
+                    add(text.substring(i, end), false);
+                    i = end;
+                }
+            }
+        }
+
+        private void add(String token, boolean isQuoted) {
+            tokens.add(token);
+            quoted.add(isQuoted);
+        }
+
+        Query parse() {
+            List<Predicate> predicates = new ArrayList<>();
+            Field orderBy = null;
+            boolean descending = false;
+            int limit = NO_LIMIT;
+
+            acceptKeyword("where");
+            if (next < tokens.size() && !isKeyword("order") && !isKeyword("limit")) {
+                do {
+                    predicates.add(condition());
+                } while (acceptKeyword("and"));
+            }
+            if (acceptKeyword("order")) {
+                expectKeyword("by");
+                orderBy = field();
+                if (acceptKeyword("desc")) {
+                    descending = true;
+                } else {
+                    acceptKeyword("asc");
+                }
+            }
+            if (acceptKeyword("limit")) {
+                String value = value("limit");
+                try {
+                    limit = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Limit must be a whole number: " + value);
+                }
+                if (limit < 0) {
+                    throw new IllegalArgumentException("Limit cannot be negative");
+                }
+            }
+            if (next < tokens.size()) {
+                throw new IllegalArgumentException("Unexpected '" + tokens.get(next) + "'");
+            }
+            return new Query(predicates, orderBy, descending, limit);
+        }
+
+        private Predicate condition() {
+            Field field = field();
+            String symbol = next < tokens.size() && !quoted.get(next) ? tokens.get(next).toLowerCase(Locale.ROOT) : "";
+            Operator operator = null;
+            for (Operator candidate : Operator.values()) {
+                if (candidate.getSymbol().equals(symbol)) {
+                    operator = candidate;
+                }
+            }
+            if (operator == null) {
+                throw new IllegalArgumentException("Expected an operator after " + field.name().toLowerCase(Locale.ROOT)
+                        + (next < tokens.size() ? " instead of '" + tokens.get(next) + "'" : ""));
+            }
+            next++;
+            return new Predicate(field, operator, value(field.name().toLowerCase(Locale.ROOT)));
+        }
+
+        private Field field() {
+            if (next < tokens.size() && !quoted.get(next)) {
+                for (Field field : Field.values()) {
+                    if (field.name().equalsIgnoreCase(tokens.get(next))) {
+                        next++;
+                        return field;
+                    }
+                }
+            }
+            throw new IllegalArgumentException("Expected id, name, description or cost"
+                    + (next < tokens.size() ? " instead of '" + tokens.get(next) + "'" : ""));
+        }
+
+        private String value(String of) {
+            if (next >= tokens.size()) {
+                throw new IllegalArgumentException("Please enter a value for " + of);
+            }
+            return tokens.get(next++);
+        }
+
+        private boolean isKeyword(String keyword) {
+            return next < tokens.size() && !quoted.get(next) && tokens.get(next).equalsIgnoreCase(keyword);
+        }
+
+        private boolean acceptKeyword(String keyword) {
+            if (isKeyword(keyword)) {
+                next++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expectKeyword(String keyword) {
+            if (!acceptKeyword(keyword)) {
+                throw new IllegalArgumentException("Expected '" + keyword + "'"
+                        + (next < tokens.size() ? " instead of '" + tokens.get(next) + "'" : ""));
+            }
+        }
+    }
+}
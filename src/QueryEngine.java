@@ -0,0 +1,532 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plans and runs Queries against a store and whichever of its indexes are open.
+ *
+ * The planner estimates how many records each condition keeps from simple statistics: the exact
+ * number of records with an ID or in a cost range from the ID and cost indexes, or from a pass over
+ * the cost column, and for text conditions the shortest trigram posting list of the term. It then
+ * picks the cheapest way to find the candidate records: probing the ID, trigram or cost index,
+ * filtering the cost column, or scanning the whole file in parallel. A probe costs RANDOM_READ per
+ * record read against one per record for a scan, so an index is only used while it reads a small
+ * part of the file. Conditions the access path does not answer exactly are tested on the mapped
+ * record bytes through a ProductView, cheapest and most selective first, so costs are compared
+ * before any text is decoded and most records are rejected by their first test.
+ *
+ * ORDER BY with a LIMIT keeps the best rows in a bounded heap while the records stream past, and a
+ * LIMIT without an order stops reading as soon as enough rows are found.
+ *
+ * Usage: java QueryEngine [products.dat] query
+ * Prints the plan and the matching products as CSV.
+ */
+public class QueryEngine {
+    // Planner cost of reading one record by number, one is reading a record during a scan
+    public static final double RANDOM_READ = 4;
+    // Share of the records a text condition is assumed to keep when no index can tell
+    public static final double TEXT_SELECTIVITY = 0.1;
+
+    public enum Access { ID_INDEX, NAME_INDEX, DESCRIPTION_INDEX, COST_INDEX, COST_COLUMN, FULL_SCAN }
+
+    private final ProductStore store;
+    private final IdIndex idIndex;
+    private final TrigramIndex trigramIndex;
+    private final CostIndex costIndex;
+    private final CostColumn costColumn;
+    private final ParallelScanner scanner = new ParallelScanner();
+
+    /**
+     * Creates an engine over a store and its indexes, any of which may be null. The caller keeps
+     * the indexes caught up with the store before each query.
+     * @param store The store to query
+     * @param idIndex Probed for ID conditions
+     * @param trigramIndex Probed for name and description conditions
+     * @param costIndex Probed for cost conditions
+     * @param costColumn Filtered for cost conditions when there is no cost index
+     */
+    public QueryEngine(ProductStore store, IdIndex idIndex, TrigramIndex trigramIndex, CostIndex costIndex,
+                       CostColumn costColumn) {
+        this.store = store;
+        this.idIndex = idIndex;
+        this.trigramIndex = trigramIndex;
+        this.costIndex = costIndex;
+        this.costColumn = costColumn;
+    }
+
+    /**
+     * How a query is answered: the access path finding the candidate records and the conditions
+     * tested on each of them, in order
+     */
+    public static final class Plan {
+        private final Query query;
+        private final Access access;
+        private final Query.Predicate probe;
+        private final double minCost;
+        private final double maxCost;
+        private final List<Query.Predicate> filters;
+        private final double[] selectivities;
+        private final long records;
+        private final long reads;
+        private final double cost;
+        private final long rows;
+
+        private Plan(Query query, Access access, Query.Predicate probe, double minCost, double maxCost,
+                     List<Query.Predicate> filters, double[] selectivities, long records, long reads,
+                     double cost, long rows) {
+            this.query = query;
+            this.access = access;
+            this.probe = probe;
+            this.minCost = minCost;
+            this.maxCost = maxCost;
+            this.filters = filters;
+            this.selectivities = selectivities;
+            this.records = records;
+            this.reads = reads;
+            this.cost = cost;
+            this.rows = rows;
+        }
+
+        public Query getQuery() { return query; }
+        public Access getAccess() { return access; }
+
+        /** @return the conditions tested on every candidate record, in the order they are tested */
+        public List<Query.Predicate> getFilters() { return filters; }
+
+        /** @return the estimated number of records the access path reads */
+        public long getEstimatedReads() { return reads; }
+
+        /** @return the estimated number of matching records */
+        public long getEstimatedRows() { return rows; }
+
+        /** @return the estimated cost, in records read by a scan */
+        public double getEstimatedCost() { return cost; }
+
+        @Override
+        public String toString() {
+            StringBuilder s = new StringBuilder(access.name());
+            if (probe != null) {
+                s.append(' ').append(probe);
+            } else if (access == Access.COST_INDEX || access == Access.COST_COLUMN) {
+                String separator = " ";
+                for (Query.Predicate predicate : query.getPredicates()) {
+                    if (predicate.getField() == Query.Field.COST) {
+                        s.append(separator).append(predicate);
+                        separator = " and ";
+                    }
+                }
+            }
+            s.append(String.format(Locale.ROOT, ": reads ~%d of %d records, cost %.0f", reads, records, cost));
+            for (int i = 0; i < filters.size(); i++) {
+                s.append(String.format(Locale.ROOT, "\n  filter %s (selectivity %.4f)", filters.get(i), selectivities[i]));
+            }
+            if (query.getOrderBy() != null) {
+                s.append("\n  order by ").append(query.getOrderBy().name().toLowerCase(Locale.ROOT))
+                        .append(query.isDescending() ? " desc" : "")
+                        .append(query.getLimit() != Query.NO_LIMIT ? ", top " + query.getLimit() + " in a bounded heap" : "");
+            } else if (query.getLimit() != Query.NO_LIMIT) {
+                s.append("\n  stop after ").append(query.getLimit()).append(" rows");
+            }
+            return s.append("\n  estimated rows ").append(rows).toString();
+        }
+    }
+
+    /**
+     * The records matching a query
+     */
+    public static final class Result {
+        private final Plan plan;
+        private final long[] records;
+        private final long examined;
+
+        private Result(Plan plan, long[] records, long examined) {
+            this.plan = plan;
+            this.records = records;
+            this.examined = examined;
+        }
+
+        public Plan getPlan() { return plan; }
+
+        /** @return the matching record numbers, in the query's order or else in record order */
+        public long[] getRecords() { return records; }
+
+        /** @return the number of records read to answer the query */
+        public long getExamined() { return examined; }
+    }
+
+    /**
+     * Parses, plans and runs a query
+     * @param text The query in the query language
+     * @return the matching records
+     * @throws IllegalArgumentException if the text is not a valid query
+     */
+    public Result execute(String text) {
+        return execute(plan(Query.parse(text)));
+    }
+
+    /**
+     * Chooses how to answer a query
+     * @param query The query
+     * @return the cheapest plan found
+     */
+    public Plan plan(Query query) {
+        long records = store.getRecordCount();
+        double n = Math.max(1, records);
+        int recordSize = store.getFormat().getRecordSize();
+
+        // Every cost condition narrows one inclusive range, which the cost index and column answer at once
+        double minCost = Double.NEGATIVE_INFINITY;
+        double maxCost = Double.POSITIVE_INFINITY;
+        boolean hasCost = false;
+        for (Query.Predicate predicate : query.getPredicates()) {
+            if (predicate.getField() != Query.Field.COST) {
+                continue;
+            }
+            hasCost = true;
+            double value = predicate.getNumber();
+            switch (predicate.getOperator()) {
+                case LESS: maxCost = Math.min(maxCost, Math.nextDown(value)); break;
+                case LESS_OR_EQUAL: maxCost = Math.min(maxCost, value); break;
+                case GREATER: minCost = Math.max(minCost, Math.nextUp(value)); break;
+                case GREATER_OR_EQUAL: minCost = Math.max(minCost, value); break;
+                default: minCost = Math.max(minCost, value); maxCost = Math.min(maxCost, value); break;
+            }
+        }
+        long costRows = hasCost ? countCost(minCost, maxCost, records) : records;
+
+        // The candidates each access path reads, and what reading them costs
+        Access access = Access.FULL_SCAN;
+        Query.Predicate probe = null;
+        long reads = records;
+        double cost = records;
+        final double[] selectivity = new double[query.getPredicates().size()];
+        for (int i = 0; i < selectivity.length; i++) {
+            Query.Predicate predicate = query.getPredicates().get(i);
+            long estimate;
+            Access path;
+            switch (predicate.getField()) {
+                case COST:
+                    selectivity[i] = costRows / n;
+                    continue;
+                case ID:
+                    estimate = idIndex != null ? idIndex.lookupAll(predicate.getText()).length : -1;
+                    path = Access.ID_INDEX;
+                    break;
+                default:
+                    boolean description = predicate.getField() == Query.Field.DESCRIPTION;
+                    estimate = trigramIndex != null ? trigramIndex.estimate(predicate.getText(), description) : -1;
+                    path = description ? Access.DESCRIPTION_INDEX : Access.NAME_INDEX;
+                    break;
+            }
+            if (estimate < 0) {
+                selectivity[i] = predicate.getField() == Query.Field.ID ? 1 / n : TEXT_SELECTIVITY;
+                continue;
+            }
+            selectivity[i] = Math.min(1, estimate / n);
+            if (estimate * RANDOM_READ < cost) {
+                access = path;
+                probe = predicate;
+                reads = estimate;
+                cost = estimate * RANDOM_READ;
+            }
+        }
+        if (hasCost && costIndex != null && costRows * RANDOM_READ < cost) {
+            access = Access.COST_INDEX;
+            probe = null;
+            reads = costRows;
+            cost = costRows * RANDOM_READ;
+        }
+        if (hasCost && costIndex == null && costColumn != null && n * 8 / recordSize + costRows * RANDOM_READ < cost) {
+            access = Access.COST_COLUMN;
+            probe = null;
+            reads = costRows;
+            cost = n * 8 / recordSize + costRows * RANDOM_READ;
+        }
+
+        // Conditions the access path answers exactly are not tested again; trigrams only narrow names down
+        List<Integer> kept = new ArrayList<>();
+        double rows = n;
+        for (int i = 0; i < selectivity.length; i++) {
+            Query.Predicate predicate = query.getPredicates().get(i);
+            rows *= selectivity[i];
+            boolean answered = predicate == probe && access == Access.ID_INDEX
+                    || predicate.getField() == Query.Field.COST && (access == Access.COST_INDEX || access == Access.COST_COLUMN);
+            if (!answered) {
+                kept.add(i);
+            }
+        }
+        // Cheapest to test and most likely to reject first: rank by test cost over the share rejected
+        final List<Query.Predicate> predicates = query.getPredicates();
+        kept.sort(new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(rank(predicates.get(a), selectivity[a]), rank(predicates.get(b), selectivity[b]));
+            }
+        });
+        List<Query.Predicate> filters = new ArrayList<>();
+        double[] filterSelectivity = new double[kept.size()];
+        for (int i = 0; i < kept.size(); i++) {
+            filters.add(predicates.get(kept.get(i)));
+            filterSelectivity[i] = selectivity[kept.get(i)];
+        }
+        return new Plan(query, access, probe, minCost, maxCost, Collections.unmodifiableList(filters),
+                filterSelectivity, records, reads, cost, Math.round(Math.min(rows, reads)));
+    }
+
+    // Testing a field costs about the number of characters it can hold, the cost only its 8 bytes
+    private static double rank(Query.Predicate predicate, double selectivity) {
+        double test;
+        switch (predicate.getField()) {
+            case COST: test = 1; break;
+            case ID: test = ProductStore.ID_LENGTH; break;
+            case NAME: test = ProductStore.NAME_LENGTH; break;
+            default: test = ProductStore.DESCRIPTION_LENGTH; break;
+        }
+        return test / Math.max(1e-9, 1 - selectivity);
+    }
+
+    // The number of records with a cost in a range, exact when an index or the column can tell
+    private long countCost(double min, double max, long records) {
+        if (min > max) {
+            return 0;
+        }
+        if (costIndex != null) {
+            return costIndex.count(min, max);
+        }
+        if (costColumn != null) {
+            return costColumn.aggregate(min, max).getCount();
+        }
+        return records / 3;
+    }
+
+    /**
+     * Runs a plan against the records committed now
+     * @param plan The plan of the query
+     * @return the matching records
+     */
+    public Result execute(final Plan plan) {
+        Query query = plan.getQuery();
+        final ProductStore.Snapshot snapshot = store.snapshot();
+        StoreMetrics.SearchEvent event = store.getMetrics().beginSearch("query");
+        final Collector collector = new Collector(query, snapshot);
+        long examined;
+        if (query.getLimit() == 0) {
+            examined = 0;
+        } else if (plan.getAccess() == Access.FULL_SCAN) {
+            examined = scan(snapshot, plan.getFilters(), collector);
+        } else {
+            examined = filter(snapshot, candidates(plan), plan.getFilters(), collector);
+        }
+        long[] records = collector.finish();
+        store.getMetrics().endSearch(event, examined, examined * store.getFormat().getRecordSize(), records.length);
+        return new Result(plan, records, examined);
+    }
+
+    // The records the access path reads, in ascending order
+    private long[] candidates(Plan plan) {
+        switch (plan.getAccess()) {
+            case ID_INDEX:
+                return idIndex.lookupAll(plan.probe.getText());
+            case NAME_INDEX:
+                return trigramIndex.candidates(plan.probe.getText(), false);
+            case DESCRIPTION_INDEX:
+                return trigramIndex.candidates(plan.probe.getText(), true);
+            case COST_INDEX:
+                // Sorted back into record order so the reads move forward through the file
+                long[] records = costIndex.range(plan.minCost, plan.maxCost);
+                Arrays.sort(records);
+                return records;
+            default:
+                return costColumn.range(plan.minCost, plan.maxCost);
+        }
+    }
+
+    private static boolean test(List<Query.Predicate> filters, ProductView view) {
+        for (int i = 0; i < filters.size(); i++) {
+            if (!filters.get(i).test(view)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long filter(ProductStore.Snapshot snapshot, long[] candidates, List<Query.Predicate> filters,
+                               Collector collector) {
+        ProductView view = new ProductView(snapshot);
+        long examined = 0;
+        for (long record : candidates) {
+            // Indexes can hold records appended after the snapshot was taken
+            if (record >= snapshot.getRecordCount()) {
+                break;
+            }
+            examined++;
+            if (!view.moveTo(record).isDeleted() && test(filters, view)) {
+                collector.add(view);
+                if (collector.isFull()) {
+                    break;
+                }
+            }
+        }
+        return examined;
+    }
+
+    // The filters run on the scanning threads, the collector on this one as the chunks complete in order
+    private long scan(ProductStore.Snapshot snapshot, final List<Query.Predicate> filters, final Collector collector) {
+        final AtomicLong scanned = new AtomicLong();
+        final ProductView view = new ProductView(snapshot);
+        scanner.scan(snapshot, 0, snapshot.getRecordCount(), new ParallelScanner.Filter() {
+            @Override
+            public boolean test(ProductView record) {
+                return QueryEngine.test(filters, record);
+            }
+        }, new ParallelScanner.Progress() {
+            @Override
+            public void progress(long done, long total) {
+                // Chunks finish out of order, keep the highest count reported
+                long seen = scanned.get();
+                while (done > seen && !scanned.compareAndSet(seen, done)) {
+                    seen = scanned.get();
+                }
+            }
+        }, new ParallelScanner.Matches() {
+            @Override
+            public boolean matched(long[] records) {
+                for (long record : records) {
+                    collector.add(view.moveTo(record));
+                    if (collector.isFull()) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+        return scanned.get();
+    }
+
+    /**
+     * Gathers the matching rows: in record order up to the limit, or sorted, keeping only the best
+     * limit rows in a heap whose root is the worst row kept
+     */
+    private static class Collector {
+        private final Query.Field orderBy;
+        private final int limit;
+        private final Comparator<Row> order;
+        private final PriorityQueue<Row> heap;
+        private final List<Row> rows = new ArrayList<>();
+        private long[] records = new long[16];
+        private int size;
+
+        Collector(Query query, ProductStore.Snapshot snapshot) {
+            this.orderBy = query.getOrderBy();
+            this.limit = query.getLimit();
+            final boolean descending = query.isDescending();
+            this.order = new Comparator<Row>() {
+                @Override
+                public int compare(Row a, Row b) {
+                    int c = a.text != null ? String.CASE_INSENSITIVE_ORDER.compare(a.text, b.text) : Double.compare(a.cost, b.cost);
+                    if (descending) {
+                        c = -c;
+                    }
+                    // Equal values stay in record order
+                    return c != 0 ? c : Long.compare(a.record, b.record);
+                }
+            };
+            this.heap = orderBy != null && limit != Query.NO_LIMIT
+                    ? new PriorityQueue<Row>(Math.max(1, Math.min(limit, 1 << 16)), Collections.reverseOrder(order)) : null;
+        }
+
+        void add(ProductView view) {
+            if (orderBy == null) {
+                if (size == records.length) {
+                    records = Arrays.copyOf(records, size * 2);
+                }
+                records[size++] = view.getRecord();
+                return;
+            }
+            Row row = new Row(view.getRecord(), orderBy == Query.Field.COST ? view.cost() : 0,
+                    orderBy == Query.Field.COST ? null : key(view));
+            if (heap == null) {
+                rows.add(row);
+            } else if (heap.size() < limit) {
+                heap.add(row);
+            } else if (order.compare(row, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(row);
+            }
+        }
+
+        private String key(ProductView view) {
+            switch (orderBy) {
+                case ID: return view.id().toString();
+                case NAME: return view.name().toString();
+                default: return view.description().toString();
+            }
+        }
+
+        // Only a query without an order can stop early, an ordered one has to see every match
+        boolean isFull() {
+            return orderBy == null && limit != Query.NO_LIMIT && size >= limit;
+        }
+
+        long[] finish() {
+            if (orderBy == null) {
+                return Arrays.copyOf(records, size);
+            }
+            List<Row> sorted = heap != null ? new ArrayList<>(heap) : rows;
+            sorted.sort(order);
+            long[] result = new long[sorted.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = sorted.get(i).record;
+            }
+            return result;
+        }
+    }
+
+    private static final class Row {
+        final long record;
+        final double cost;
+        final String text;
+
+        Row(long record, double cost, String text) {
+            this.record = record;
+            this.cost = cost;
+            this.text = text;
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: java QueryEngine [products.dat] query");
+            System.exit(2);
+        }
+        Path path = args.length > 1 ? Paths.get(args[0]) : ProductStore.defaultPath();
+        try (ProductCatalog catalog = ProductCatalog.openReadOnly(path)) {
+            long start = System.nanoTime();
+            Result result = catalog.query(args[args.length - 1]);
+            long micros = (System.nanoTime() - start) / 1000;
+            System.err.println(result.getPlan());
+            System.err.println(result.getRecords().length + " rows, " + result.getExamined() + " records read, "
+                    + micros + " us");
+            for (long record : result.getRecords()) {
+                Product product = catalog.get(record);
+                if (product != null) {
+                    System.out.println(product.toCSV());
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid query: " + e.getMessage());
+            System.exit(2);
+        } catch (IOException e) {
+            System.err.println("Error reading products: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,558 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local HTTP service answering product queries from one shared ProductCatalog.
+ * Connections are multiplexed by the server's selector thread and every request runs on a virtual
+ * thread of its own, so thousands of clients can wait on the disk at once without a thread pool to
+ * size. The server only listens on the loopback address.
+ *
+ *   GET  /products?name=term[&limit=n]  products whose name contains the term, as JSON
+ *   GET  /products/{id}                 products with the ID, 404 if there is none
+ *   POST /products                      adds a product from the form fields id, name, description
+ *                                       and cost, answers 201 with its record number
+ *   POST /search[?description=true&limit=n]
+ *                                       answers every term of the body, one per line, in a single
+ *                                       pass over the file, as a JSON array in the order of the terms
+ *   GET  /query?q=query[&limit=n]     products matching a query such as "name contains lamp and
+ *                                       cost < 20 order by cost limit 50", as JSON with the plan
+ *   GET  /complete?prefix=text[&limit=n]
+ *                                       names starting with the text, ignoring case, as a JSON array
+ *   GET  /changes?from=n[&limit=n&wait=ms]
+ *                                       products appended from record n on, waiting up to wait
+ *                                       milliseconds for one if there is none yet, as JSON with the
+ *                                       token to pass as from next time. The token also holds the
+ *                                       store's compaction count, 410 if it was compacted since
+ *   GET  /stats[?min=x&max=y]           count, total, lowest, highest and average cost of the
+ *                                       products with a cost in the range, as JSON
+ *   GET  /metrics                       the store metrics as one line of text
+ *
+ * Usage: java QueryServer [port] [products.dat] [--read-only]
+ */
+public class QueryServer implements Closeable {
+    public static final int DEFAULT_PORT = 8080;
+    public static final int DEFAULT_LIMIT = 100;
+    public static final int MAX_LIMIT = 10000;
+
+    // Pending connections the operating system queues before the server accepts them
+    private static final int BACKLOG = 4096;
+    private static final int MAX_BODY = 64 * 1024;
+    private static final long MAX_WAIT_MILLIS = 60000;
+
+    private final ProductCatalog catalog;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ChangeFeed changes;
+
+    /**
+     * Creates a server, not yet started
+     * @param catalog The catalog to query, shared by every request and not closed by the server
+     * @param port The port on the loopback address, 0 for any free port
+     * @throws IOException if the port cannot be bound
+     */
+    public QueryServer(ProductCatalog catalog, int port) throws IOException {
+        this.catalog = catalog;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), BACKLOG);
+        this.executor = Executors.newVirtualThreadPerTaskExecutor();
+        this.changes = ChangeFeed.open(catalog.getStore());
+        server.setExecutor(executor);
+        server.createContext("/products", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleProducts(exchange);
+            }
+        });
+        server.createContext("/search", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleBatchSearch(exchange);
+            }
+        });
+        server.createContext("/query", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleQuery(exchange);
+            }
+        });
+        server.createContext("/complete", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleComplete(exchange);
+            }
+        });
+        server.createContext("/changes", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleChanges(exchange);
+            }
+        });
+        server.createContext("/stats", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleStats(exchange);
+            }
+        });
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    if (!exchange.getRequestMethod().equals("GET")) {
+                        sendMethodNotAllowed(exchange, "GET");
+                        return;
+                    }
+                    send(exchange, 200, "text/plain", catalog.getStore().getMetrics() + "\n");
+                } catch (RuntimeException e) {
+                    sendInternalError(exchange, e);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    public void start() { server.start(); }
+    public int getPort() { return server.getAddress().getPort(); }
+
+    private void handleProducts(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            if (path.equals("/products") || path.equals("/products/")) {
+                if (method.equals("GET")) {
+                    search(exchange);
+                } else if (method.equals("POST")) {
+                    add(exchange);
+                } else {
+                    sendMethodNotAllowed(exchange, "GET, POST");
+                }
+            } else if (method.equals("GET")) {
+                lookupById(exchange, path.substring("/products/".length()));
+            } else {
+                sendMethodNotAllowed(exchange, "GET");
+            }
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+        } catch (IOException e) {
+            sendError(exchange, 500, "Error reading products: " + e.getMessage());
+        } catch (RuntimeException e) {
+            sendInternalError(exchange, e);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleBatchSearch(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                sendMethodNotAllowed(exchange, "POST");
+                return;
+            }
+            Map<String, String> query = parseForm(exchange.getRequestURI().getRawQuery());
+            int limit = parseLimit(query);
+            byte[] body = exchange.getRequestBody().readNBytes(MAX_BODY + 1);
+            if (body.length > MAX_BODY) {
+                sendError(exchange, 413, "Request body is larger than " + MAX_BODY + " bytes");
+                return;
+            }
+            List<String> terms = new ArrayList<>();
+            for (String line : new String(body, StandardCharsets.UTF_8).split("\r?\n")) {
+                if (!line.trim().isEmpty()) {
+                    terms.add(line);
+                }
+            }
+            long[][] results = catalog.searchNames(terms, "true".equals(query.get("description")));
+
+            StringBuilder json = new StringBuilder("[");
+            for (int i = 0; i < results.length; i++) {
+                json.append(i > 0 ? ",\n" : "").append("{\"term\":");
+                appendString(json, terms.get(i));
+                json.append(',');
+                appendProducts(json, results[i], limit);
+                json.append('}');
+            }
+            send(exchange, 200, "application/json", json.append("]\n").toString());
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+        } catch (IOException e) {
+            sendError(exchange, 500, "Error reading products: " + e.getMessage());
+        } catch (RuntimeException e) {
+            sendInternalError(exchange, e);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleQuery(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                sendMethodNotAllowed(exchange, "GET");
+                return;
+            }
+            Map<String, String> query = parseForm(exchange.getRequestURI().getRawQuery());
+            int limit = parseLimit(query);
+            QueryEngine.Result result = catalog.query(query.get("q"));
+
+            StringBuilder json = new StringBuilder("{\"plan\":");
+            appendString(json, result.getPlan().toString());
+            json.append(",\"examined\":").append(result.getExamined()).append(',');
+            appendProducts(json, result.getRecords(), limit);
+            send(exchange, 200, "application/json", json.append("}\n").toString());
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+        } catch (IOException e) {
+            sendError(exchange, 500, "Error reading products: " + e.getMessage());
+        } catch (RuntimeException e) {
+            sendInternalError(exchange, e);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleComplete(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                sendMethodNotAllowed(exchange, "GET");
+                return;
+            }
+            Map<String, String> query = parseForm(exchange.getRequestURI().getRawQuery());
+            String prefix = query.get("prefix");
+            if (prefix == null || prefix.trim().isEmpty()) {
+                throw new IllegalArgumentException("Please enter a prefix");
+            }
+            StringBuilder json = new StringBuilder("[");
+            for (String name : catalog.complete(prefix.trim(), parseLimit(query))) {
+                if (json.length() > 1) {
+                    json.append(',');
+                }
+                appendString(json, name);
+            }
+            send(exchange, 200, "application/json", json.append("]\n").toString());
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+        } catch (IOException e) {
+            sendError(exchange, 500, "Error reading products: " + e.getMessage());
+        } catch (RuntimeException e) {
+            sendInternalError(exchange, e);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // A long poll, the request's virtual thread waits for new records without holding a platform thread
+    private void handleChanges(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                sendMethodNotAllowed(exchange, "GET");
+                return;
+            }
+            Map<String, String> query = parseForm(exchange.getRequestURI().getRawQuery());
+            // A record number starts from the store as it is now, a token from next resumes where it was taken
+            String token = query.containsKey("from") ? query.get("from") : "";
+            int separator = token.indexOf(':');
+            long compactions;
+            long from;
+            long wait;
+            try {
+                compactions = separator < 0 ? catalog.getStore().getCompactionCount()
+                        : Long.parseLong(token.substring(0, separator));
+                from = Long.parseLong(token.substring(separator + 1));
+                wait = query.containsKey("wait") ? Long.parseLong(query.get("wait")) : 0;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("from must be a record number or a next token and wait a number");
+            }
+            if (from < 0 || wait < 0 || wait > MAX_WAIT_MILLIS) {
+                throw new IllegalArgumentException("from must not be negative and wait must be between 0 and "
+                        + MAX_WAIT_MILLIS);
+            }
+            ChangeFeed.Subscription subscription = changes.subscribe(from, compactions);
+            List<ChangeFeed.Change> found;
+            try {
+                found = subscription.poll(Math.max(1, parseLimit(query)), wait, TimeUnit.MILLISECONDS);
+            } catch (IOException e) {
+                if (subscription.isCompacted()) {
+                    sendError(exchange, 410, "The store was compacted, start again from record 0");
+                    return;
+                }
+                throw e;
+            }
+
+            StringBuilder json = new StringBuilder("{\"next\":\"").append(subscription.getCompactions())
+                    .append(':').append(subscription.getPosition()).append('"');
+            json.append(",\"changes\":[");
+            for (int i = 0; i < found.size(); i++) {
+                if (i > 0) {
+                    json.append(',');
+                }
+                appendProduct(json, found.get(i).getRecord(), found.get(i).getProduct());
+            }
+            send(exchange, 200, "application/json", json.append("]}\n").toString());
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+        } catch (IOException e) {
+            sendError(exchange, 500, "Error reading products: " + e.getMessage());
+        } catch (InterruptedException e) {
+            sendError(exchange, 503, "The server is stopping");
+        } catch (RuntimeException e) {
+            sendInternalError(exchange, e);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleStats(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                sendMethodNotAllowed(exchange, "GET");
+                return;
+            }
+            Map<String, String> query = parseForm(exchange.getRequestURI().getRawQuery());
+            double min = parseCost(query, "min", Double.NEGATIVE_INFINITY);
+            double max = parseCost(query, "max", Double.POSITIVE_INFINITY);
+            CostColumn.Aggregate aggregate = catalog.aggregateCost(min, max);
+            String json = "{\"count\":" + aggregate.getCount()
+                    + (aggregate.getCount() == 0 ? "" : String.format(Locale.ROOT,
+                    ",\"sum\":%.2f,\"min\":%.2f,\"max\":%.2f,\"average\":%.4f",
+                    aggregate.getSum(), aggregate.getMin(), aggregate.getMax(), aggregate.getAverage()))
+                    + "}\n";
+            send(exchange, 200, "application/json", json);
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+        } catch (IOException e) {
+            sendError(exchange, 500, "Error reading products: " + e.getMessage());
+        } catch (RuntimeException e) {
+            sendInternalError(exchange, e);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static double parseCost(Map<String, String> query, String name, double missing) {
+        if (!query.containsKey(name)) {
+            return missing;
+        }
+        try {
+            return Double.parseDouble(query.get(name));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a number");
+        }
+    }
+
+    private void search(HttpExchange exchange) throws IOException {
+        Map<String, String> query = parseForm(exchange.getRequestURI().getRawQuery());
+        int limit = parseLimit(query);
+        long[] records = catalog.searchName(query.get("name"), null);
+        send(exchange, 200, "application/json", toJson(records, limit));
+    }
+
+    private void lookupById(HttpExchange exchange, String encodedId) throws IOException {
+        String id = URLDecoder.decode(encodedId, StandardCharsets.UTF_8);
+        long[] records = catalog.lookupById(id);
+        if (records.length == 0) {
+            sendError(exchange, 404, "No product with ID " + id);
+            return;
+        }
+        send(exchange, 200, "application/json", toJson(records, MAX_LIMIT));
+    }
+
+    private void add(HttpExchange exchange) throws IOException {
+        if (!catalog.isWritable()) {
+            sendError(exchange, 403, "The catalog is read-only");
+            return;
+        }
+        byte[] body = exchange.getRequestBody().readNBytes(MAX_BODY + 1);
+        if (body.length > MAX_BODY) {
+            sendError(exchange, 413, "Request body is larger than " + MAX_BODY + " bytes");
+            return;
+        }
+        Map<String, String> form = parseForm(new String(body, StandardCharsets.UTF_8));
+        long record = catalog.add(form.get("id"), form.get("name"), form.get("description"), form.get("cost"));
+        send(exchange, 201, "application/json", "{\"record\":" + record + "}\n");
+    }
+
+    private static int parseLimit(Map<String, String> query) {
+        if (!query.containsKey("limit")) {
+            return DEFAULT_LIMIT;
+        }
+        int limit;
+        try {
+            limit = Integer.parseInt(query.get("limit"));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("limit must be a number");
+        }
+        if (limit < 0 || limit > MAX_LIMIT) {
+            throw new IllegalArgumentException("limit must be between 0 and " + MAX_LIMIT);
+        }
+        return limit;
+    }
+
+    private String toJson(long[] records, int limit) {
+        StringBuilder json = new StringBuilder(64 + Math.min(records.length, limit) * 160);
+        json.append('{');
+        appendProducts(json, records, limit);
+        return json.append("}\n").toString();
+    }
+
+    // Formats the first records found, skipping any deleted since the search
+    private void appendProducts(StringBuilder json, long[] records, int limit) {
+        json.append("\"count\":").append(records.length).append(",\"products\":[");
+        int written = 0;
+        for (int i = 0; i < records.length && written < limit; i++) {
+            Product product = catalog.get(records[i]);
+            if (product == null) {
+                continue;
+            }
+            if (written++ > 0) {
+                json.append(',');
+            }
+            appendProduct(json, records[i], product);
+        }
+        json.append(']');
+    }
+
+    private static void appendProduct(StringBuilder json, long record, Product product) {
+        json.append("{\"record\":").append(record);
+        json.append(",\"ID\":");
+        appendString(json, product.getID());
+        json.append(",\"name\":");
+        appendString(json, product.getName());
+        json.append(",\"description\":");
+        appendString(json, product.getDescription());
+        json.append(",\"cost\":").append(String.format(Locale.ROOT, "%.2f", product.getCost())).append('}');
+    }
+
+    private static void appendString(StringBuilder json, String s) {
+        json.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    // Decodes application/x-www-form-urlencoded text, a query string uses the same encoding
+    private static Map<String, String> parseForm(String form) {
+        Map<String, String> fields = new HashMap<>();
+        if (form == null || form.isEmpty()) {
+            return fields;
+        }
+        for (String pair : form.split("&")) {
+            int equals = pair.indexOf('=');
+            String key = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            fields.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return fields;
+    }
+
+    private static void sendMethodNotAllowed(HttpExchange exchange, String allowed) throws IOException {
+        exchange.getResponseHeaders().set("Allow", allowed);
+        sendError(exchange, 405, "Method not allowed");
+    }
+
+    // A failure no handler expects still gets an answer rather than a dropped connection
+    private static void sendInternalError(HttpExchange exchange, RuntimeException e) throws IOException {
+        System.err.println("Error answering " + exchange.getRequestURI());
+        e.printStackTrace();
+        sendError(exchange, 500, "Internal error");
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        StringBuilder json = new StringBuilder("{\"error\":");
+        appendString(json, message == null ? "" : message);
+        send(exchange, status, "application/json", json.append("}\n").toString());
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Stops accepting requests, waits a moment for running ones and stops the request threads.
+     * The catalog stays open.
+     */
+    @Override
+    public void close() {
+        changes.close();
+        server.stop(1);
+        executor.shutdown();
+    }
+
+    public static void main(String[] args) {
+        int port = DEFAULT_PORT;
+        Path path = ProductStore.defaultPath();
+        boolean readOnly = false;
+        int positional = 0;
+        try {
+            for (String arg : args) {
+                if (arg.equals("--read-only")) {
+                    readOnly = true;
+                } else if (positional == 0) {
+                    port = Integer.parseInt(arg);
+                    positional++;
+                } else if (positional == 1) {
+                    path = Paths.get(arg);
+                    positional++;
+                } else {
+                    throw new IllegalArgumentException("Unexpected argument " + arg);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Usage: java QueryServer [port] [products.dat] [--read-only]");
+            System.exit(2);
+        }
+
+        try {
+            final ProductCatalog catalog = readOnly
+                    ? ProductCatalog.openReadOnly(path) : ProductCatalog.openReadWrite(path);
+            final QueryServer server = new QueryServer(catalog, port);
+            // Closing the catalog on exit saves the indexes and empties the write-ahead log
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    server.close();
+                    try {
+                        catalog.close();
+                    } catch (IOException e) {
+                        System.err.println("Error closing file: " + e.getMessage());
+                    }
+                }
+            }, "QueryServer shutdown"));
+            server.start();
+            System.out.println("Serving " + path + " on http://" + InetAddress.getLoopbackAddress().getHostAddress()
+                    + ":" + server.getPort() + "/products" + (readOnly ? " (read-only)" : ""));
+        } catch (IOException e) {
+            System.err.println("Error starting server: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
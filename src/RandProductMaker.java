@@ -5,17 +5,14 @@ import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 
 public class RandProductMaker extends JFrame {
-    private static final int RECORD_SIZE = 232; // 6*2 + 35*2 + 75*2 + 8 = 232 bytes
-
     private JTextField idField, nameField, descriptionField, costField, recordCountField;
     private JButton addButton, clearButton, quitButton, returnToMainButton;
     private JLabel statusLabel;
 
-    private RandomAccessFile randomFile;
-    private int recordCount = 0;
+    private ProductCatalog catalog;
+    private long recordCount = 0;
 
     public RandProductMaker() {
         super("Random Access Product Maker");
@@ -115,7 +112,7 @@ public class RandProductMaker extends JFrame {
 
     private void openFile() {
         try {
-            randomFile = new RandomAccessFile("products.dat", "rw");
+            catalog = ProductCatalog.openReadWrite(ProductStore.defaultPath());
             countExistingRecords();
         } catch (IOException e) {
             JOptionPane.showMessageDialog(this,
@@ -127,8 +124,7 @@ public class RandProductMaker extends JFrame {
 
     private void countExistingRecords() {
         try {
-            long fileLength = randomFile.length();
-            recordCount = (int) (fileLength / RECORD_SIZE);
+            recordCount = catalog.getRecordCount();
             recordCountField.setText(String.valueOf(recordCount));
         } catch (IOException e) {
             showStatus("Error counting records: " + e.getMessage());
@@ -137,8 +133,8 @@ public class RandProductMaker extends JFrame {
 
     private void closeFile() {
         try {
-            if (randomFile != null) {
-                randomFile.close();
+            if (catalog != null) {
+                catalog.close();
             }
         } catch (IOException e) {
             JOptionPane.showMessageDialog(this,
@@ -161,13 +157,8 @@ public class RandProductMaker extends JFrame {
 
             Product product = new Product(id, name, description, cost);
 
-            // Position at the end of the file
-            randomFile.seek(randomFile.length());
-
-            // Write the fixed-length record
-            writeFixedLengthRecord(product);
-
-            recordCount++;
+            // Append the fixed-length record at the end of the file
+            recordCount = catalog.add(product) + 1;
             recordCountField.setText(String.valueOf(recordCount));
 
             showStatus("Record added successfully!");
@@ -181,62 +172,22 @@ public class RandProductMaker extends JFrame {
         }
     }
 
-    private void writeFixedLengthRecord(Product product) throws IOException {
-        // Write ID (6 chars)
-        writeFixedString(product.getID(), 6);
-
-        // Write name (35 chars)
-        writeFixedString(product.getName(), 35);
-
-        // Write description (75 chars)
-        writeFixedString(product.getDescription(), 75);
-
-        // Write cost (8 bytes)
-        randomFile.writeDouble(product.getCost());
-    }
-
-    private void writeFixedString(String s, int length) throws IOException {
-        StringBuilder sb = new StringBuilder(s);
-        sb.setLength(length);
-        randomFile.writeChars(sb.toString());
-    }
-
     private boolean validateFields() {
-        if (idField.getText().trim().isEmpty() ||
-                nameField.getText().trim().isEmpty() ||
-                descriptionField.getText().trim().isEmpty() ||
-                costField.getText().trim().isEmpty()) {
-
-            showStatus("All fields are required!");
-            return false;
-        }
-
-        if (idField.getText().length() != 6) {
-            showStatus("ID must be exactly 6 characters!");
-            return false;
-        }
-
-        if (nameField.getText().length() > 35) {
-            showStatus("Name cannot exceed 35 characters!");
-            return false;
-        }
-
-        if (descriptionField.getText().length() > 75) {
-            showStatus("Description cannot exceed 75 characters!");
+        String error = ProductValidator.validate(idField.getText(), nameField.getText(),
+                descriptionField.getText(), costField.getText());
+        if (error != null) {
+            showStatus(error);
             return false;
         }
-
         try {
-            double cost = Double.parseDouble(costField.getText());
-            if (cost < 0) {
-                showStatus("Cost cannot be negative!");
+            if (catalog.containsId(idField.getText())) {
+                showStatus("A product with ID " + idField.getText() + " already exists!");
                 return false;
             }
-        } catch (NumberFormatException e) {
-            showStatus("Invalid cost format!");
+        } catch (IOException e) {
+            showStatus("Error reading file: " + e.getMessage());
             return false;
         }
-
         return true;
     }
 
@@ -1,28 +1,40 @@
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 public class RandProductSearch extends JFrame {
-    private static final int RECORD_SIZE = 232; // 6*2 + 35*2 + 75*2 + 8 = 232 bytes
-    private static final int ID_LENGTH = 6;
-    private static final int NAME_LENGTH = 35;
-    private static final int DESCRIPTION_LENGTH = 75;
+    private static final int SUGGESTIONS = 10;
+    // Suggestions are looked up once typing pauses for this long
+    private static final int SUGGESTION_DELAY_MILLIS = 150;
 
     private JTextField searchField;
-    private JTextArea resultsArea;
-    private JButton searchButton, clearButton, quitButton, returnToMainButton;
+    private JPopupMenu suggestions;
+    private Timer suggestionTimer;
+    private transient SwingWorker<List<String>, Void> suggestionLookup;
+    private boolean choosingSuggestion;
+    private JTable resultsTable;
+    private SearchResultsModel results;
+    private JProgressBar progressBar;
+    private JButton searchButton, idSearchButton, cancelButton, clearButton, quitButton, returnToMainButton;
 
-    private RandomAccessFile randomFile;
+    private ProductCatalog catalog;
+    private transient SwingWorker<Long, long[]> search;
 
     public RandProductSearch() {
         super("Random Access Product Search");
-        setupGUI();
+        // The results table reads its rows from the catalog, so the file is opened first
         openFile();
+        setupGUI();
     }
 
     private void setupGUI() {
@@ -41,10 +53,36 @@ public class RandProductSearch extends JFrame {
 
         // Search panel
         JPanel searchPanel = new JPanel(new BorderLayout(5, 0));
-        searchPanel.add(new JLabel("Enter partial product name:"), BorderLayout.WEST);
+        searchPanel.add(new JLabel("Enter partial product name or ID:"), BorderLayout.WEST);
         searchField = new JTextField(20);
         searchPanel.add(searchField, BorderLayout.CENTER);
 
+        // Names starting with the text typed so far, looked up when typing pauses
+        suggestions = new JPopupMenu();
+        suggestions.setFocusable(false);
+        suggestionTimer = new Timer(SUGGESTION_DELAY_MILLIS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                lookUpSuggestions();
+            }
+        });
+        suggestionTimer.setRepeats(false);
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                scheduleSuggestions();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                scheduleSuggestions();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+            }
+        });
+
         searchButton = new JButton("Search");
         searchButton.addActionListener(new ActionListener() {
             @Override
@@ -52,12 +90,44 @@ public class RandProductSearch extends JFrame {
                 searchProducts();
             }
         });
-        searchPanel.add(searchButton, BorderLayout.EAST);
 
-        // Results area
-        resultsArea = new JTextArea(20, 50);
-        resultsArea.setEditable(false);
-        JScrollPane scrollPane = new JScrollPane(resultsArea);
+        idSearchButton = new JButton("Find by ID");
+        idSearchButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                searchById();
+            }
+        });
+
+        cancelButton = new JButton("Cancel");
+        cancelButton.setEnabled(false);
+        cancelButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                // Not interrupted: an interrupt closes the store's file channel, the scan stops
+                // at its next chunk instead
+                if (search != null) {
+                    search.cancel(false);
+                }
+            }
+        });
+
+        JPanel searchButtonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT, 5, 0));
+        searchButtonPanel.add(searchButton);
+        searchButtonPanel.add(idSearchButton);
+        searchButtonPanel.add(cancelButton);
+        searchPanel.add(searchButtonPanel, BorderLayout.EAST);
+
+        // Results table, only the rows scrolled into view are read from the file
+        results = new SearchResultsModel(catalog);
+        resultsTable = new JTable(results);
+        resultsTable.setFillsViewportHeight(true);
+        resultsTable.getColumnModel().getColumn(0).setPreferredWidth(70);
+        resultsTable.getColumnModel().getColumn(1).setPreferredWidth(60);
+        resultsTable.getColumnModel().getColumn(2).setPreferredWidth(200);
+        resultsTable.getColumnModel().getColumn(3).setPreferredWidth(300);
+        resultsTable.getColumnModel().getColumn(4).setPreferredWidth(70);
+        JScrollPane scrollPane = new JScrollPane(resultsTable);
 
         // Button panel
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.CENTER, 10, 0));
@@ -67,7 +137,8 @@ public class RandProductSearch extends JFrame {
             @Override
             public void actionPerformed(ActionEvent e) {
                 searchField.setText("");
-                resultsArea.setText("");
+                results.clear();
+                progressBar.setString(" ");
                 searchField.requestFocus();
             }
         });
@@ -86,10 +157,19 @@ public class RandProductSearch extends JFrame {
         returnToMainButton = new JButton("Return to Main Menu");
         buttonPanel.add(returnToMainButton);
 
+        // Progress of a running search
+        progressBar = new JProgressBar(0, 100);
+        progressBar.setStringPainted(true);
+        progressBar.setString(" ");
+
+        JPanel bottomPanel = new JPanel(new BorderLayout(0, 10));
+        bottomPanel.add(progressBar, BorderLayout.NORTH);
+        bottomPanel.add(buttonPanel, BorderLayout.CENTER);
+
         // Add components to main panel
         mainPanel.add(searchPanel, BorderLayout.NORTH);
         mainPanel.add(scrollPane, BorderLayout.CENTER);
-        mainPanel.add(buttonPanel, BorderLayout.SOUTH);
+        mainPanel.add(bottomPanel, BorderLayout.SOUTH);
 
         add(mainPanel);
         setLocationRelativeTo(null);
@@ -101,7 +181,7 @@ public class RandProductSearch extends JFrame {
 
     private void openFile() {
         try {
-            randomFile = new RandomAccessFile("products.dat", "r");
+            catalog = ProductCatalog.openReadOnly(ProductStore.defaultPath());
         } catch (IOException e) {
             JOptionPane.showMessageDialog(this,
                     "Error opening file: " + e.getMessage(),
@@ -111,9 +191,13 @@ public class RandProductSearch extends JFrame {
     }
 
     private void closeFile() {
+        if (search != null) {
+            search.cancel(false);
+        }
+        hideSuggestions();
         try {
-            if (randomFile != null) {
-                randomFile.close();
+            if (catalog != null) {
+                catalog.close();
             }
         } catch (IOException e) {
             JOptionPane.showMessageDialog(this,
@@ -124,7 +208,8 @@ public class RandProductSearch extends JFrame {
     }
 
     private void searchProducts() {
-        String searchTerm = searchField.getText().trim().toLowerCase();
+        hideSuggestions();
+        final String searchTerm = searchField.getText().trim();
         if (searchTerm.isEmpty()) {
             JOptionPane.showMessageDialog(this,
                     "Please enter a search term",
@@ -133,40 +218,173 @@ public class RandProductSearch extends JFrame {
             return;
         }
 
-        resultsArea.setText("");
-        try {
-            randomFile.seek(0);
-            long fileLength = randomFile.length();
-            int recordCount = (int) (fileLength / RECORD_SIZE);
-
-            StringBuilder result = new StringBuilder();
-
-            for (int i = 0; i < recordCount; i++) {
-                // Position to the start of the record
-                randomFile.seek(i * RECORD_SIZE);
-
-                // Read the record
-                String id = readFixedString(ID_LENGTH);
-                String name = readFixedString(NAME_LENGTH);
-                String description = readFixedString(DESCRIPTION_LENGTH);
-                double cost = randomFile.readDouble();
-
-                // Check if name contains search term
-                if (name.toLowerCase().contains(searchTerm)) {
-                    result.append("Record #").append(i + 1).append("\n");
-                    result.append("ID: ").append(id.trim()).append("\n");
-                    result.append("Name: ").append(name.trim()).append("\n");
-                    result.append("Description: ").append(description.trim()).append("\n");
-                    result.append("Cost: $").append(String.format("%.2f", cost)).append("\n\n");
+        results.clear();
+        setSearching(true);
+
+        // The search runs off the event thread and streams its matches into the table as chunks
+        // of the file are done, so the first rows show long before a full scan ends
+        final long start = System.nanoTime();
+        search = new SwingWorker<Long, long[]>() {
+            @Override
+            protected Long doInBackground() throws IOException {
+                return catalog.searchName(searchTerm, new ParallelScanner.Progress() {
+                    @Override
+                    public void progress(long scanned, long total) {
+                        setProgress((int) (scanned * 100 / total));
+                    }
+                }, new ParallelScanner.Matches() {
+                    @Override
+                    public boolean matched(long[] records) {
+                        if (records.length > 0) {
+                            publish(records);
+                        }
+                        return !isCancelled();
+                    }
+                });
+            }
+
+            @Override
+            protected void process(List<long[]> chunks) {
+                // Chunks published before a cancel can arrive after it
+                if (isCancelled()) {
+                    return;
+                }
+                for (long[] records : chunks) {
+                    results.add(records);
+                }
+            }
+
+            @Override
+            protected void done() {
+                setSearching(false);
+                long millis = (System.nanoTime() - start) / 1000000;
+                if (isCancelled()) {
+                    progressBar.setString("Search cancelled after " + results.getTotal() + " matches");
+                    return;
+                }
+                try {
+                    long found = get();
+                    if (found == 0) {
+                        progressBar.setString("No matching products found");
+                    } else if (results.isTruncated()) {
+                        progressBar.setString(found + " matches in " + millis + " ms, showing the first "
+                                + results.getRowCount());
+                    } else {
+                        progressBar.setString(found + " matches in " + millis + " ms");
+                    }
+                } catch (InterruptedException | ExecutionException e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    JOptionPane.showMessageDialog(RandProductSearch.this,
+                            "Error searching products: " + cause.getMessage(),
+                            "Search Error",
+                            JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        };
+        search.addPropertyChangeListener(new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                if ("progress".equals(evt.getPropertyName()) && !((SwingWorker<?, ?>) evt.getSource()).isDone()) {
+                    progressBar.setIndeterminate(false);
+                    progressBar.setValue((Integer) evt.getNewValue());
+                    progressBar.setString(results.getTotal() + " matches, " + evt.getNewValue() + "%");
                 }
             }
+        });
+        search.execute();
+    }
+
+    // Hides the suggestions and restarts the delay before the next lookup
+    private void scheduleSuggestions() {
+        hideSuggestions();
+        if (!choosingSuggestion) {
+            suggestionTimer.restart();
+        }
+    }
+
+    private void hideSuggestions() {
+        suggestionTimer.stop();
+        if (suggestionLookup != null) {
+            suggestionLookup.cancel(false);
+            suggestionLookup = null;
+        }
+        suggestions.setVisible(false);
+        suggestions.removeAll();
+    }
+
+    // Reads the suggestions off the event thread, a lookup may wait for the prefix index to catch up
+    private void lookUpSuggestions() {
+        final String prefix = searchField.getText().trim();
+        if (prefix.isEmpty() || catalog == null) {
+            return;
+        }
+        suggestionLookup = new SwingWorker<List<String>, Void>() {
+            @Override
+            protected List<String> doInBackground() throws IOException {
+                return catalog.complete(prefix, SUGGESTIONS);
+            }
 
-            if (result.length() > 0) {
-                resultsArea.setText(result.toString());
-            } else {
-                resultsArea.setText("No matching products found.");
+            @Override
+            protected void done() {
+                // A lookup overtaken by more typing or a search is cancelled and shows nothing
+                if (isCancelled() || suggestionLookup != this) {
+                    return;
+                }
+                suggestionLookup = null;
+                try {
+                    showSuggestions(get());
+                } catch (InterruptedException | ExecutionException e) {
+                    // Suggestions are optional, the search itself reports the error
+                }
             }
+        };
+        suggestionLookup.execute();
+    }
+
+    private void showSuggestions(List<String> names) {
+        for (final String name : names) {
+            JMenuItem item = new JMenuItem(name);
+            item.addActionListener(new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    choosingSuggestion = true;
+                    searchField.setText(name);
+                    choosingSuggestion = false;
+                    searchProducts();
+                }
+            });
+            suggestions.add(item);
+        }
+        if (!names.isEmpty() && searchField.isShowing()) {
+            suggestions.show(searchField, 0, searchField.getHeight());
+        }
+    }
+
+    // Disables the search buttons while a search runs
+    private void setSearching(boolean searching) {
+        searchButton.setEnabled(!searching);
+        idSearchButton.setEnabled(!searching);
+        cancelButton.setEnabled(searching);
+        progressBar.setIndeterminate(searching);
+        progressBar.setValue(0);
+        progressBar.setString(searching ? "Searching..." : " ");
+    }
 
+    private void searchById() {
+        String id = searchField.getText().trim();
+        if (id.length() != ProductStore.ID_LENGTH) {
+            JOptionPane.showMessageDialog(this,
+                    "ID must be exactly " + ProductStore.ID_LENGTH + " characters",
+                    "Search Error",
+                    JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+
+        results.clear();
+        try {
+            long[] records = catalog.lookupById(id);
+            results.add(records);
+            progressBar.setString(records.length > 0 ? records.length + " matches" : "No product with ID " + id + " found");
         } catch (IOException e) {
             JOptionPane.showMessageDialog(this,
                     "Error searching products: " + e.getMessage(),
@@ -175,14 +393,6 @@ public class RandProductSearch extends JFrame {
         }
     }
 
-    private String readFixedString(int length) throws IOException {
-        StringBuilder sb = new StringBuilder(length);
-        for (int i = 0; i < length; i++) {
-            sb.append(randomFile.readChar());
-        }
-        return sb.toString();
-    }
-
     public static void main(String[] args) {
         SwingUtilities.invokeLater(new Runnable() {
             @Override
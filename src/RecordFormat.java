@@ -0,0 +1,350 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Layout of the records in a products file.
+ * Version 1 files have no header and store every character as 2 bytes (UTF-16),
+ * padded with NUL characters, which is what RandomAccessFile.writeChars produced.
+ * Version 2 files start with a HEADER_SIZE byte header holding a magic number, the version
+ * and the schema (character encoding and field lengths). Each v2 record starts with a
+ * status byte holding record flags, and ISO-8859-1 files store one byte per character,
+ * roughly halving the file compared to version 1.
+ * The v2 header also holds the committed record count, which the writer updates after the bytes
+ * of new records are written, so readers never count a record that is still being written.
+ * A deleted record is a tombstone: v2 sets FLAG_DELETED in the status byte, v1 has no spare
+ * byte and clears the ID field instead, which no valid product can have.
+ */
+public final class RecordFormat {
+    public static final int HEADER_SIZE = 32;
+
+    // Bits of the v2 status byte
+    public static final int FLAG_DELETED = 1;
+
+    // Bits of the header flags byte, HEADER_COMMITTED marks that COMMITTED_OFFSET holds the record count
+    private static final int HEADER_COMMITTED = 1;
+    private static final int FLAGS_OFFSET = 11;
+    private static final int COMMITTED_OFFSET = 24;
+
+    public static final int ENCODING_LATIN1 = 1;
+    public static final int ENCODING_UTF16 = 2;
+
+    // 0x89 "PDAT" CR LF 0x1A, the high first byte cannot start a v1 record holding ASCII IDs
+    private static final byte[] MAGIC = {(byte) 0x89, 'P', 'D', 'A', 'T', '\r', '\n', 0x1A};
+
+    public static final RecordFormat V1 = new RecordFormat(1, ENCODING_UTF16);
+    public static final RecordFormat V2_LATIN1 = new RecordFormat(2, ENCODING_LATIN1);
+    public static final RecordFormat V2_UTF16 = new RecordFormat(2, ENCODING_UTF16);
+
+    /**
+     * Format used for newly created files. Latin-1 takes one byte per character; a store converts
+     * its file to V2_UTF16 when a product first needs characters outside Latin-1.
+     */
+    public static final RecordFormat DEFAULT = V2_LATIN1;
+
+    private final int version;
+    private final int encoding;
+    private final int bytesPerChar;
+    private final int headerSize;
+    private final int idOffset;
+    private final int nameOffset;
+    private final int descriptionOffset;
+    private final int costOffset;
+    private final int recordSize;
+
+    private RecordFormat(int version, int encoding) {
+        this.version = version;
+        this.encoding = encoding;
+        this.bytesPerChar = encoding == ENCODING_LATIN1 ? 1 : 2;
+        this.headerSize = version == 1 ? 0 : HEADER_SIZE;
+        this.idOffset = version == 1 ? 0 : 1;
+        this.nameOffset = idOffset + ProductStore.ID_LENGTH * bytesPerChar;
+        this.descriptionOffset = nameOffset + ProductStore.NAME_LENGTH * bytesPerChar;
+        this.costOffset = descriptionOffset + ProductStore.DESCRIPTION_LENGTH * bytesPerChar;
+        this.recordSize = costOffset + 8; // v1: 6*2 + 35*2 + 75*2 + 8 = 240 bytes, v2 Latin-1: 1 + 6 + 35 + 75 + 8 = 125 bytes
+    }
+
+    public int getVersion() { return version; }
+    public int getEncoding() { return encoding; }
+    public int getHeaderSize() { return headerSize; }
+    public int getIdOffset() { return idOffset; }
+    public int getNameOffset() { return nameOffset; }
+    public int getDescriptionOffset() { return descriptionOffset; }
+    public int getCostOffset() { return costOffset; }
+    public int getRecordSize() { return recordSize; }
+
+    /**
+     * Reads the format of an existing file, files without a header are version 1
+     * @param channel The open file
+     * @return the format of the file
+     * @throws IOException if the header cannot be read or describes an unsupported schema
+     */
+    public static RecordFormat read(FileChannel channel) throws IOException {
+        if (channel.size() < HEADER_SIZE) {
+            return V1;
+        }
+        ByteBuffer header = readHeader(channel);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header.get(i) != MAGIC[i]) {
+                return V1;
+            }
+        }
+
+        int version = header.getShort(8);
+        int encoding = header.get(10);
+        if (version != 2) {
+            throw new IOException("Unsupported file version " + version);
+        }
+        if (encoding != ENCODING_LATIN1 && encoding != ENCODING_UTF16) {
+            throw new IOException("Unsupported character encoding " + encoding);
+        }
+        RecordFormat format = encoding == ENCODING_LATIN1 ? V2_LATIN1 : V2_UTF16;
+        if (header.getShort(12) != ProductStore.ID_LENGTH
+                || header.getShort(14) != ProductStore.NAME_LENGTH
+                || header.getShort(16) != ProductStore.DESCRIPTION_LENGTH
+                || header.getShort(18) != format.recordSize) {
+            throw new IOException("Unsupported record schema");
+        }
+        return format;
+    }
+
+    private static ByteBuffer readHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                throw new IOException("Unexpected end of file reading the header");
+            }
+        }
+        return header;
+    }
+
+    /**
+     * Writes the header of a new file, version 1 has none
+     * @param channel The open file
+     * @throws IOException if the header cannot be written
+     */
+    public void writeHeader(FileChannel channel) throws IOException {
+        writeHeader(channel, 0);
+    }
+
+    /**
+     * Writes the header of a file, version 1 has none
+     * @param channel The open file
+     * @param committed The number of committed records
+     * @throws IOException if the header cannot be written
+     */
+    public void writeHeader(FileChannel channel, long committed) throws IOException {
+        if (headerSize == 0) {
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC);
+        header.putShort((short) version);
+        header.put((byte) encoding);
+        header.put((byte) HEADER_COMMITTED);
+        header.putShort((short) ProductStore.ID_LENGTH);
+        header.putShort((short) ProductStore.NAME_LENGTH);
+        header.putShort((short) ProductStore.DESCRIPTION_LENGTH);
+        header.putShort((short) recordSize);
+        header.putLong(COMMITTED_OFFSET, committed);
+        header.clear();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+    }
+
+    /**
+     * Reads the committed record count published by the writer
+     * @param channel The open file
+     * @return the number of committed records, or -1 if the file does not record it
+     * @throws IOException if the header cannot be read
+     */
+    public long readCommitted(FileChannel channel) throws IOException {
+        if (headerSize == 0) {
+            return -1;
+        }
+        ByteBuffer header = readHeader(channel);
+        return (header.get(FLAGS_OFFSET) & HEADER_COMMITTED) != 0 ? header.getLong(COMMITTED_OFFSET) : -1;
+    }
+
+    /**
+     * Publishes the committed record count, once the records themselves have been written.
+     * Files whose header has no committed count yet get it with writeHeader.
+     * @param channel The open file
+     * @param committed The number of committed records
+     * @throws IOException if the header cannot be written
+     */
+    public void writeCommitted(FileChannel channel, long committed) throws IOException {
+        if (headerSize == 0) {
+            return;
+        }
+        ByteBuffer count = ByteBuffer.allocate(8);
+        count.putLong(0, committed);
+        while (count.hasRemaining()) {
+            channel.write(count, COMMITTED_OFFSET + count.position());
+        }
+    }
+
+    /**
+     * Reads one character of a field
+     * @param buffer The buffer holding the record
+     * @param fieldStart The absolute offset of the field
+     * @param i The character index within the field
+     * @return the character
+     */
+    public char getChar(ByteBuffer buffer, int fieldStart, int i) {
+        if (bytesPerChar == 1) {
+            return (char) (buffer.get(fieldStart + i) & 0xFF);
+        }
+        return buffer.getChar(fieldStart + i * 2);
+    }
+
+    /**
+     * Tests the tombstone of a record
+     * @param buffer The buffer holding the record
+     * @param recordStart The absolute offset of the record
+     * @return true if the record has been deleted
+     */
+    public boolean isDeleted(ByteBuffer buffer, int recordStart) {
+        if (version > 1) {
+            return (buffer.get(recordStart) & FLAG_DELETED) != 0;
+        }
+        for (int i = 0; i < ProductStore.ID_LENGTH; i++) {
+            if (getChar(buffer, recordStart + idOffset, i) != '\0') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the bytes that turn a record into a tombstone when written at its start
+     * @return a buffer ready to be written
+     */
+    public ByteBuffer tombstone() {
+        if (version > 1) {
+            ByteBuffer status = ByteBuffer.allocate(1);
+            status.put(0, (byte) FLAG_DELETED);
+            return status;
+        }
+        return ByteBuffer.allocate(idOffset + ProductStore.ID_LENGTH * bytesPerChar);
+    }
+
+    /**
+     * Turns an encoded record into a tombstone
+     * @param buffer The buffer holding the record
+     * @param recordStart The absolute offset of the record
+     */
+    public void markDeleted(ByteBuffer buffer, int recordStart) {
+        ByteBuffer tombstone = tombstone();
+        for (int i = 0; i < tombstone.limit(); i++) {
+            buffer.put(recordStart + i, tombstone.get(i));
+        }
+    }
+
+    /**
+     * @param s The text to store
+     * @return true if every character of the text can be stored in this format
+     */
+    public boolean canEncode(String s) {
+        if (bytesPerChar == 2) {
+            return true;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) > 0xFF) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param product The product to store
+     * @return true if every field of the product can be stored in this format
+     */
+    public boolean canEncode(Product product) {
+        return canEncode(product.getID()) && canEncode(product.getName()) && canEncode(product.getDescription());
+    }
+
+    /**
+     * Encodes a product into this record layout
+     * @param product The product to encode
+     * @param buffer The buffer to write getRecordSize() bytes into
+     * @throws IllegalArgumentException if a field contains characters this format cannot store
+     */
+    public void encode(Product product, ByteBuffer buffer) {
+        encode(product.getID(), product.getName(), product.getDescription(), product.getCost(), buffer);
+    }
+
+    /**
+     * Encodes the fields of a record into this layout
+     * @param id The product ID
+     * @param name The product name
+     * @param description The product description
+     * @param cost The product cost
+     * @param buffer The buffer to write getRecordSize() bytes into
+     * @throws IllegalArgumentException if a field contains characters this format cannot store
+     */
+    public void encode(String id, String name, String description, double cost, ByteBuffer buffer) {
+        if (!canEncode(id) || !canEncode(name) || !canEncode(description)) {
+            throw new IllegalArgumentException("Text contains characters that cannot be stored in this file");
+        }
+        if (version > 1) {
+            buffer.put((byte) 0);
+        }
+        putFixedString(buffer, id, ProductStore.ID_LENGTH);
+        putFixedString(buffer, name, ProductStore.NAME_LENGTH);
+        putFixedString(buffer, description, ProductStore.DESCRIPTION_LENGTH);
+        buffer.putDouble(cost);
+    }
+
+    // Writes the string truncated or NUL-padded to the given number of characters
+    private void putFixedString(ByteBuffer buffer, String s, int length) {
+        int count = Math.min(s.length(), length);
+        for (int i = 0; i < count; i++) {
+            if (bytesPerChar == 1) {
+                buffer.put((byte) s.charAt(i));
+            } else {
+                buffer.putChar(s.charAt(i));
+            }
+        }
+        for (int i = count; i < length; i++) {
+            if (bytesPerChar == 1) {
+                buffer.put((byte) 0);
+            } else {
+                buffer.putChar('\0');
+            }
+        }
+    }
+
+    /**
+     * Decodes a record stored in this layout, the same way ProductStore.readProduct does
+     * @param buffer The buffer holding the record
+     * @param recordStart The absolute offset of the record
+     * @return a new Product holding the record's fields
+     */
+    public Product decode(ByteBuffer buffer, int recordStart) {
+        return new Product(getFixedString(buffer, recordStart + idOffset, ProductStore.ID_LENGTH),
+                getFixedString(buffer, recordStart + nameOffset, ProductStore.NAME_LENGTH),
+                getFixedString(buffer, recordStart + descriptionOffset, ProductStore.DESCRIPTION_LENGTH),
+                buffer.getDouble(recordStart + costOffset));
+    }
+
+    // Reads a field without its trailing NUL padding
+    private String getFixedString(ByteBuffer buffer, int fieldStart, int length) {
+        int end = length;
+        while (end > 0 && getChar(buffer, fieldStart, end - 1) == '\0') {
+            end--;
+        }
+        char[] chars = new char[end];
+        for (int i = 0; i < end; i++) {
+            chars[i] = getChar(buffer, fieldStart, i);
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public String toString() {
+        return "v" + version + (encoding == ENCODING_LATIN1 ? " ISO-8859-1" : " UTF-16");
+    }
+}
@@ -0,0 +1,147 @@
+import javax.swing.table.AbstractTableModel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Table model of search results that holds only the matching record numbers. Rows are read from
+ * the catalog a page at a time when the table first paints them, and a few recently shown pages
+ * are kept, so a result of a million rows costs 8 MB and scrolling reads only what comes into view.
+ * Beyond MAX_ROWS matches are counted but not kept, which bounds the memory of any search.
+ * Called on the event dispatch thread only.
+ */
+public class SearchResultsModel extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+
+    public static final int MAX_ROWS = 1 << 20;
+
+    private static final int PAGE_SIZE = 256;
+    private static final int CACHED_PAGES = 32;
+    private static final String[] COLUMNS = { "Record #", "ID", "Name", "Description", "Cost" };
+
+    // The model is never serialized, the rows only mean something to the open catalog
+    private final transient ProductCatalog catalog;
+    private long[] records = new long[1024];
+    private int rows;
+    private long total;
+
+    // Least recently shown pages are dropped first
+    private final transient Map<Integer, Product[]> pages = new LinkedHashMap<Integer, Product[]>(CACHED_PAGES, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Product[]> eldest) {
+            return size() > CACHED_PAGES;
+        }
+    };
+
+    /**
+     * @param catalog The catalog the rows are read from
+     */
+    public SearchResultsModel(ProductCatalog catalog) {
+        this.catalog = catalog;
+    }
+
+    /**
+     * Removes every row
+     */
+    public void clear() {
+        records = new long[1024];
+        rows = 0;
+        total = 0;
+        pages.clear();
+        fireTableDataChanged();
+    }
+
+    /**
+     * Adds matches after the current rows, counting but dropping those beyond MAX_ROWS
+     * @param found The record numbers to add
+     */
+    public void add(long[] found) {
+        total += found.length;
+        int added = Math.min(found.length, MAX_ROWS - rows);
+        if (added <= 0) {
+            return;
+        }
+        if (rows + added > records.length) {
+            records = Arrays.copyOf(records, Math.min(MAX_ROWS, Math.max(rows + added, records.length * 2)));
+        }
+        System.arraycopy(found, 0, records, rows, added);
+        int first = rows;
+        rows += added;
+        // The last page may have been loaded while it was partly filled
+        pages.remove(first / PAGE_SIZE);
+        fireTableRowsInserted(first, rows - 1);
+    }
+
+    /**
+     * @return the number of matches added, including those beyond MAX_ROWS that are not shown
+     */
+    public long getTotal() { return total; }
+
+    /**
+     * @return true if matches were dropped because there were more than MAX_ROWS
+     */
+    public boolean isTruncated() { return total > rows; }
+
+    /**
+     * @param row The row in the model
+     * @return the record number shown in the row
+     */
+    public long getRecord(int row) {
+        return records[row];
+    }
+
+    @Override
+    public int getRowCount() {
+        return rows;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        return column == 0 ? Long.class : String.class;
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        if (column == 0) {
+            return records[row] + 1;
+        }
+        Product product = product(row);
+        if (product == null) {
+            return column == 2 ? "(deleted)" : "";
+        }
+        switch (column) {
+            case 1: return product.getID();
+            case 2: return product.getName();
+            case 3: return product.getDescription();
+            default: return String.format("$%.2f", product.getCost());
+        }
+    }
+
+    // Reads the whole page holding the row the first time any of its rows is shown
+    private Product product(int row) {
+        int page = row / PAGE_SIZE;
+        Product[] products = pages.get(page);
+        if (products == null) {
+            int start = page * PAGE_SIZE;
+            products = new Product[Math.min(PAGE_SIZE, rows - start)];
+            for (int i = 0; i < products.length; i++) {
+                // Null if the record was deleted since the search
+                products[i] = catalog.get(records[start + i]);
+            }
+            pages.put(page, products);
+        }
+        return products[row % PAGE_SIZE];
+    }
+}
@@ -0,0 +1,230 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Base class for secondary indexes stored in a file next to products.dat.
+ * An index is derived data: on open it catches up with records appended while it was
+ * closed and is rebuilt from scratch if it no longer matches the data file. While open it
+ * listens to the store so appends, updates and deletes are indexed as they are written.
+ * The file records the store's modification count, so an index that missed an update, delete or
+ * compaction made while it was closed or by another process is rebuilt rather than trusted.
+ * Deleted records are never indexed. Only an index of a writable store saves its file: readers
+ * keep what they index in memory, so they never race the writer's saves with an older view.
+ */
+public abstract class SidecarIndex implements ProductStoreListener, Closeable {
+    protected final ProductStore store;
+    private final Path indexPath;
+    private final int magic;
+    private final int version;
+
+    protected long indexedRecords;
+    protected boolean dirty;
+
+    // The store's modification count the entries reflect
+    private long modifications;
+
+    /**
+     * @param store The store to index
+     * @param suffix The suffix of the sidecar file, e.g. ".idx"
+     * @param magic The number identifying the file type
+     * @param version The file format version, older files are rebuilt
+     */
+    protected SidecarIndex(ProductStore store, String suffix, int magic, int version) {
+        this.store = store;
+        this.indexPath = store.sidecar(suffix);
+        this.magic = magic;
+        this.version = version;
+    }
+
+    /**
+     * Loads the sidecar file, catches up with the data file and starts listening to the store.
+     * A sidecar file that cannot be read or fails validation is ignored and the index rebuilt.
+     * Subclasses call this from their open method.
+     * @throws IOException if the index cannot be built
+     */
+    protected synchronized void load() throws IOException {
+        if (Files.exists(indexPath)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath)))) {
+                if (in.readInt() == magic && in.readInt() == version) {
+                    modifications = in.readLong();
+                    indexedRecords = in.readLong();
+                    // The data file was replaced or truncated, so the stored entries cannot be trusted
+                    if (indexedRecords < 0 || indexedRecords > store.getRecordCount() || !readEntries(in)) {
+                        reset();
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // A truncated or corrupt file is only derived data, the index is rebuilt from the store
+                reset();
+            }
+        }
+        catchUp();
+        store.addListener(this);
+    }
+
+    private void reset() {
+        clear();
+        indexedRecords = 0;
+        modifications = store.getModificationCount();
+        dirty = true;
+    }
+
+    /**
+     * Indexes records appended to the data file by another process since the last call,
+     * or rebuilds the index if records were updated or deleted elsewhere
+     */
+    public synchronized void catchUp() {
+        if (modifications != store.getModificationCount()) {
+            reset();
+        }
+        long count = store.getRecordCount();
+        for (long record = indexedRecords; record < count; record++) {
+            if (!store.isDeleted(record)) {
+                indexRecord(record);
+            }
+            indexedRecords = record + 1;
+            dirty = true;
+        }
+    }
+
+    @Override
+    public synchronized void recordAppended(long record, Product product) {
+        // Records appended elsewhere in between are picked up first so the index stays complete
+        if (record > indexedRecords) {
+            catchUp();
+        }
+        if (record == indexedRecords) {
+            indexProduct(record, product);
+            indexedRecords = record + 1;
+            dirty = true;
+        }
+    }
+
+    @Override
+    public synchronized void recordUpdated(long record, Product before, Product after) {
+        if (!missedModification() && record < indexedRecords) {
+            updateEntry(record, before, after);
+        }
+    }
+
+    @Override
+    public synchronized void recordDeleted(long record, Product before) {
+        if (!missedModification() && record < indexedRecords) {
+            deleteEntry(record, before);
+        }
+    }
+
+    @Override
+    public synchronized void storeCompacted() {
+        // Every record number has moved, so the entries are rebuilt from the compacted file
+        reset();
+        catchUp();
+    }
+
+    // Accounts for the modification just made, rebuilding if one made elsewhere was missed
+    private boolean missedModification() {
+        dirty = true;
+        if (modifications + 1 == store.getModificationCount()) {
+            modifications++;
+            return false;
+        }
+        reset();
+        catchUp();
+        return true;
+    }
+
+    /**
+     * @return the number of records covered by the index
+     */
+    public synchronized long getIndexedRecords() {
+        return indexedRecords;
+    }
+
+    /**
+     * Writes the index to its sidecar file if it changed since it was loaded and the store is writable
+     * @throws IOException if the file cannot be written
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty || !store.isWritable()) {
+            return;
+        }
+
+        // Write a temporary file first so a crash never leaves a half-written index behind
+        Path temp = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(magic);
+            out.writeInt(version);
+            out.writeLong(modifications);
+            out.writeLong(indexedRecords);
+            writeEntries(out);
+        }
+        Files.move(temp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+
+    /**
+     * Saves the index and stops listening to the store
+     * @throws IOException if the index cannot be saved
+     */
+    @Override
+    public void close() throws IOException {
+        store.removeListener(this);
+        save();
+    }
+
+    /**
+     * Indexes a record that is read back from the store
+     * @param record The record number
+     */
+    protected abstract void indexRecord(long record);
+
+    /**
+     * Indexes a record that was just appended
+     * @param record The record number
+     * @param product The product that was written
+     */
+    protected abstract void indexProduct(long record, Product product);
+
+    /**
+     * Updates the entries of a record rewritten in place
+     * @param record The record number
+     * @param before The product the record held before
+     * @param after The product the record holds now
+     */
+    protected abstract void updateEntry(long record, Product before, Product after);
+
+    /**
+     * Removes or invalidates the entries of a deleted record
+     * @param record The record number
+     * @param before The product the record held before
+     */
+    protected abstract void deleteEntry(long record, Product before);
+
+    /**
+     * Drops every entry before the index is rebuilt
+     */
+    protected abstract void clear();
+
+    /**
+     * Reads the entries following the file header. Counts read from the file are checked before
+     * anything is allocated for them, so a corrupt file cannot exhaust the heap.
+     * @param in The sidecar file
+     * @return false if the entries do not fit this index and it has to be rebuilt
+     * @throws IOException if the file cannot be read, which also rebuilds the index
+     */
+    protected abstract boolean readEntries(DataInputStream in) throws IOException;
+
+    /**
+     * Writes the entries following the file header
+     * @param out The sidecar file
+     * @throws IOException if the file cannot be written
+     */
+    protected abstract void writeEntries(DataOutputStream out) throws IOException;
+}
@@ -0,0 +1,341 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of one ProductStore: searches, records scanned, bytes read and
+ * matches, appends, batch writes and fsyncs. Every ProductStore has one, see ProductStore.getMetrics().
+ *
+ * The metrics can be read three ways: through the getters, through JMX, where the store registers
+ * them while it is open, or through a Reporter called on a schedule. Each search and each batch
+ * write is also emitted as a JDK Flight Recorder event, filestreams.Search and filestreams.BatchWrite,
+ * which costs nothing unless a recording with those events enabled is running.
+ *
+ * Counters are LongAdders and histograms are lock-free, so recording costs a few uncontended
+ * atomic adds and the metrics are always on.
+ */
+public class StoreMetrics implements StoreMetricsMXBean, Closeable {
+    /**
+     * Receives the metrics on a schedule, e.g. to write them to a log or a monitoring system
+     */
+    public interface Reporter {
+        void report(StoreMetrics metrics);
+    }
+
+    private static final AtomicInteger instances = new AtomicInteger();
+    private static ScheduledExecutorService reporterThread;
+
+    private final String path;
+    private final LongAdder searches = new LongAdder();
+    private final LongAdder recordsScanned = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder matches = new LongAdder();
+    private final LongAdder appendedRecords = new LongAdder();
+    private final LongAdder batchWrites = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LatencyHistogram searchLatency = new LatencyHistogram();
+    private final LatencyHistogram appendLatency = new LatencyHistogram();
+    private final LatencyHistogram batchWriteLatency = new LatencyHistogram();
+    private final LatencyHistogram fsyncLatency = new LatencyHistogram();
+    private final Map<Reporter, ScheduledFuture<?>> reporters = new HashMap<>();
+    private ObjectName name;
+
+    /**
+     * @param path The data file the metrics describe
+     */
+    public StoreMetrics(Path path) {
+        this.path = path.toString();
+    }
+
+    /**
+     * Starts timing a search
+     * @param kind How the search finds its records, e.g. "scan" or "trigram"
+     * @return the search, passed to endSearch once it completes
+     */
+    SearchEvent beginSearch(String kind) {
+        SearchEvent event = new SearchEvent();
+        event.startNanos = System.nanoTime();
+        event.path = path;
+        event.kind = kind;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Records a completed search
+     * @param event The search returned by beginSearch
+     * @param scanned The number of records tested
+     * @param bytes The number of bytes read
+     * @param found The number of records that matched
+     */
+    void endSearch(SearchEvent event, long scanned, long bytes, long found) {
+        searchLatency.record(System.nanoTime() - event.startNanos);
+        searches.increment();
+        recordsScanned.add(scanned);
+        bytesRead.add(bytes);
+        matches.add(found);
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.recordsScanned = scanned;
+            event.bytesRead = bytes;
+            event.matches = found;
+            event.commit();
+        }
+    }
+
+    /**
+     * Records a single append, from the call until the record is durable
+     * @param nanos The time the append took
+     */
+    void recordAppend(long nanos) {
+        appendLatency.record(nanos);
+        appendedRecords.increment();
+    }
+
+    /**
+     * Starts timing a write of several records at once
+     * @param kind What writes the batch, e.g. "appendAll" or "wal"
+     * @return the write, passed to endBatchWrite once it is durable
+     */
+    BatchWriteEvent beginBatchWrite(String kind) {
+        BatchWriteEvent event = new BatchWriteEvent();
+        event.startNanos = System.nanoTime();
+        event.path = path;
+        event.kind = kind;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Records a completed batch write
+     * @param event The write returned by beginBatchWrite
+     * @param records The number of records written, or log entries for the write-ahead log
+     * @param bytes The number of bytes written
+     * @param fsyncNanos The part of the write spent forcing it to disk
+     */
+    void endBatchWrite(BatchWriteEvent event, long records, long bytes, long fsyncNanos) {
+        batchWriteLatency.record(System.nanoTime() - event.startNanos);
+        batchWrites.increment();
+        bytesWritten.add(bytes);
+        if (event.kind.equals("appendAll")) {
+            appendedRecords.add(records);
+        }
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.records = records;
+            event.bytes = bytes;
+            event.fsyncTime = fsyncNanos;
+            event.commit();
+        }
+    }
+
+    /**
+     * Records a FileChannel.force
+     * @param nanos The time the force took
+     */
+    void recordFsync(long nanos) {
+        fsyncLatency.record(nanos);
+    }
+
+    @Override public String getPath() { return path; }
+    @Override public long getSearches() { return searches.sum(); }
+    @Override public long getRecordsScanned() { return recordsScanned.sum(); }
+    @Override public long getBytesRead() { return bytesRead.sum(); }
+    @Override public long getMatches() { return matches.sum(); }
+    @Override public LatencyHistogram.Summary getSearchLatency() { return searchLatency.summary(); }
+    @Override public long getAppends() { return appendLatency.getCount(); }
+    @Override public long getAppendedRecords() { return appendedRecords.sum(); }
+    @Override public LatencyHistogram.Summary getAppendLatency() { return appendLatency.summary(); }
+    @Override public long getBatchWrites() { return batchWrites.sum(); }
+    @Override public long getBytesWritten() { return bytesWritten.sum(); }
+    @Override public LatencyHistogram.Summary getBatchWriteLatency() { return batchWriteLatency.summary(); }
+    @Override public long getFsyncs() { return fsyncLatency.getCount(); }
+    @Override public LatencyHistogram.Summary getFsyncLatency() { return fsyncLatency.summary(); }
+
+    /**
+     * Registers the metrics with the platform MBean server. A failure is ignored, the metrics
+     * stay readable through the getters and reporters.
+     */
+    synchronized void register() {
+        try {
+            // The id keeps stores of the same file apart, e.g. a writer and a reader in one process
+            ObjectName objectName = new ObjectName("FileStreams:type=StoreMetrics,name="
+                    + ObjectName.quote(path) + ",id=" + instances.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            name = objectName;
+        } catch (JMException | SecurityException e) {
+            // Monitoring is optional
+        }
+    }
+
+    /**
+     * Calls a reporter on a schedule until it is removed or the store is closed.
+     * Reporters run on one shared daemon thread and should return quickly.
+     * @param reporter The reporter
+     * @param period The time between reports
+     * @param unit The unit of the period
+     */
+    public synchronized void addReporter(final Reporter reporter, long period, TimeUnit unit) {
+        removeReporter(reporter);
+        ScheduledFuture<?> future = reporterThread().scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reporter.report(StoreMetrics.this);
+                } catch (RuntimeException e) {
+                    // An exception would cancel the schedule, a failing reporter only loses this report
+                }
+            }
+        }, period, period, unit);
+        reporters.put(reporter, future);
+    }
+
+    /**
+     * Stops calling a reporter
+     * @param reporter The reporter passed to addReporter
+     */
+    public synchronized void removeReporter(Reporter reporter) {
+        ScheduledFuture<?> future = reporters.remove(reporter);
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * Creates a reporter that prints toString() as one line per report
+     * @param out The stream to print to
+     * @return the reporter
+     */
+    public static Reporter printReporter(final PrintStream out) {
+        return new Reporter() {
+            @Override
+            public void report(StoreMetrics metrics) {
+                out.println(metrics);
+            }
+        };
+    }
+
+    private static synchronized ScheduledExecutorService reporterThread() {
+        if (reporterThread == null) {
+            reporterThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "StoreMetrics reporter");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return reporterThread;
+    }
+
+    /**
+     * Stops the reporters and unregisters the metrics from JMX, called when the store is closed
+     */
+    @Override
+    public synchronized void close() {
+        for (ScheduledFuture<?> future : reporters.values()) {
+            future.cancel(false);
+        }
+        reporters.clear();
+        if (name != null) {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                // Already unregistered
+            }
+            name = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return path + ": searches=" + getSearches() + " scanned=" + getRecordsScanned()
+                + " bytesRead=" + getBytesRead() + " matches=" + getMatches()
+                + " [" + searchLatency.summary() + "]"
+                + " appends=" + getAppends() + " [" + appendLatency.summary() + "]"
+                + " batchWrites=" + getBatchWrites() + " bytesWritten=" + getBytesWritten()
+                + " [" + batchWriteLatency.summary() + "]"
+                + " fsyncs=" + getFsyncs() + " [" + fsyncLatency.summary() + "]";
+    }
+
+    @Name("filestreams.Search")
+    @Label("Product Search")
+    @Category("FileStreams")
+    @Description("A search of a products file, by scan or through an index")
+    @StackTrace(false)
+    static class SearchEvent extends Event {
+        @Label("File")
+        String path;
+
+        @Label("Kind")
+        @Description("How the records were found, scan or trigram")
+        String kind;
+
+        @Label("Records Scanned")
+        long recordsScanned;
+
+        @Label("Bytes Read")
+        @DataAmount
+        long bytesRead;
+
+        @Label("Matches")
+        long matches;
+
+        // Not recorded, the event has its own clock
+        transient long startNanos;
+    }
+
+    @Name("filestreams.BatchWrite")
+    @Label("Product Batch Write")
+    @Category("FileStreams")
+    @Description("Records written and forced to disk together, by appendAll or a group commit of the write-ahead log")
+    @StackTrace(false)
+    static class BatchWriteEvent extends Event {
+        @Label("File")
+        String path;
+
+        @Label("Kind")
+        @Description("What wrote the batch, appendAll or wal")
+        String kind;
+
+        @Label("Records")
+        @Description("Records written, or log entries for the write-ahead log")
+        long records;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long bytes;
+
+        @Label("Fsync Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long fsyncTime;
+
+        transient long startNanos;
+    }
+}
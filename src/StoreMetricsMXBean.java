@@ -0,0 +1,25 @@
+/**
+ * Management interface of StoreMetrics, registered with the platform MBean server under
+ * FileStreams:type=StoreMetrics so JConsole, VisualVM or any JMX client can read it.
+ * Counters and histograms cover everything since the store was opened; latencies are in nanoseconds.
+ */
+public interface StoreMetricsMXBean {
+    String getPath();
+
+    long getSearches();
+    long getRecordsScanned();
+    long getBytesRead();
+    long getMatches();
+    LatencyHistogram.Summary getSearchLatency();
+
+    long getAppends();
+    long getAppendedRecords();
+    LatencyHistogram.Summary getAppendLatency();
+
+    long getBatchWrites();
+    long getBytesWritten();
+    LatencyHistogram.Summary getBatchWriteLatency();
+
+    long getFsyncs();
+    LatencyHistogram.Summary getFsyncLatency();
+}
@@ -0,0 +1,204 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * Streams a whole products file to CSV, JSON or XML.
+ * Records are read sequentially from the mapped file and each one is formatted into a single
+ * reused buffer, so no Product or intermediate String is built per record and memory stays
+ * constant for files of any size. Every record is formatted exactly like Product.toCSV(),
+ * toJSON() and toXML(). CSV output has one record per line, JSON output is an array with one
+ * record per line, and XML output wraps the records in a products element. Deleted records are skipped.
+ *
+ * Usage: java StreamingExporter csv|json|xml [products.dat] [output]
+ * Without an output file the export is written to standard output.
+ */
+public class StreamingExporter {
+
+    public enum Format { CSV, JSON, XML }
+
+    private final ProductStore store;
+    private final boolean fastCost;
+    private final StringBuilder line = new StringBuilder(512);
+    private char[] chars = new char[512];
+
+    /**
+     * @param store The store to export
+     */
+    public StreamingExporter(ProductStore store) {
+        this.store = store;
+
+        // String.format("%.2f") follows the default locale, the fast path only covers plain ASCII decimals
+        DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(Locale.getDefault(Locale.Category.FORMAT));
+        this.fastCost = symbols.getDecimalSeparator() == '.' && symbols.getZeroDigit() == '0';
+    }
+
+    /**
+     * Writes every record of the store
+     * @param format The output format
+     * @param out The destination, not closed by this method
+     * @return the number of records written
+     * @throws IOException if the output cannot be written
+     */
+    public long export(Format format, Writer out) throws IOException {
+        long records = store.getRecordCount();
+        long count = 0;
+        if (format == Format.JSON) {
+            out.write("[\n");
+        } else if (format == Format.XML) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<products>\n");
+        }
+
+        for (long record = 0; record < records; record++) {
+            if (store.isDeleted(record)) {
+                continue;
+            }
+            line.setLength(0);
+            // The separator goes before every record but the first, so skipped records need no look-ahead
+            if (format == Format.JSON && count > 0) {
+                out.write(",\n");
+            }
+            switch (format) {
+                case CSV: appendCsv(record); break;
+                case JSON: appendJson(record); break;
+                default: appendXml(record); break;
+            }
+            if (format != Format.JSON) {
+                line.append('\n');
+            }
+            write(out);
+            count++;
+        }
+
+        if (format == Format.JSON) {
+            out.write(count > 0 ? "\n]\n" : "]\n");
+        } else if (format == Format.XML) {
+            out.write("</products>\n");
+        }
+        out.flush();
+        return count;
+    }
+
+    // Same text as Product.toCSV()
+    private void appendCsv(long record) {
+        appendId(record);
+        line.append(',');
+        appendName(record);
+        line.append(',');
+        appendDescription(record);
+        line.append(',');
+        appendCost(record);
+    }
+
+    // Same text as Product.toJSON()
+    private void appendJson(long record) {
+        line.append("{\"ID\":\"");
+        appendId(record);
+        line.append("\",\"name\":\"");
+        appendName(record);
+        line.append("\",\"description\":\"");
+        appendDescription(record);
+        line.append("\",\"cost\":");
+        appendCost(record);
+        line.append('}');
+    }
+
+    // Same text as Product.toXML()
+    private void appendXml(long record) {
+        line.append("  <product>\n    <ID>");
+        appendId(record);
+        line.append("</ID>\n    <name>");
+        appendName(record);
+        line.append("</name>\n    <description>");
+        appendDescription(record);
+        line.append("</description>\n    <cost>");
+        appendCost(record);
+        line.append("</cost>\n  </product>");
+    }
+
+    private void appendId(long record) {
+        store.appendField(record, ProductStore.TextField.ID, false, line);
+    }
+
+    private void appendName(long record) {
+        store.appendField(record, ProductStore.TextField.NAME, true, line);
+    }
+
+    private void appendDescription(long record) {
+        store.appendField(record, ProductStore.TextField.DESCRIPTION, true, line);
+    }
+
+    private void appendCost(long record) {
+        appendCost(line, store.readCost(record), fastCost);
+    }
+
+    /**
+     * Appends a cost formatted like String.format("%.2f", cost)
+     * @param out The builder to append to
+     * @param cost The cost
+     * @param fastPath true if the default locale formats plain ASCII decimals
+     */
+    static void appendCost(StringBuilder out, double cost, boolean fastPath) {
+        // %.2f rounds the shortest decimal representation half-up. Scaling by 100 gives the same
+        // result unless the scaled value is close to a tie, where String.format decides.
+        // The sign bit test keeps -0.0 off the fast path, String.format prints it as -0.00
+        if (fastPath && Double.doubleToRawLongBits(cost) >= 0 && cost < 1e9) {
+            double scaled = cost * 100;
+            double fraction = scaled - Math.floor(scaled);
+            if (Math.abs(fraction - 0.5) > 1e-3) {
+                long cents = Math.round(scaled);
+                long units = cents / 100;
+                int rest = (int) (cents % 100);
+                out.append(units).append('.').append((char) ('0' + rest / 10)).append((char) ('0' + rest % 10));
+                return;
+            }
+        }
+        out.append(String.format("%.2f", cost));
+    }
+
+    private void write(Writer out) throws IOException {
+        int length = line.length();
+        if (length > chars.length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+        }
+        line.getChars(0, length, chars, 0);
+        out.write(chars, 0, length);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 3) {
+            System.err.println("Usage: java StreamingExporter csv|json|xml [products.dat] [output]");
+            System.exit(2);
+        }
+
+        Format format;
+        try {
+            format = Format.valueOf(args[0].toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown format " + args[0] + ", expected csv, json or xml");
+            System.exit(2);
+            return;
+        }
+        Path dataFile = args.length > 1 ? Paths.get(args[1]) : ProductStore.defaultPath();
+
+        try (ProductStore store = ProductStore.openReadOnly(dataFile);
+             OutputStream stream = args.length > 2 ? Files.newOutputStream(Paths.get(args[2])) : System.out;
+             Writer out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 1 << 16)) {
+            long count = new StreamingExporter(store).export(format, out);
+            if (args.length > 2) {
+                System.out.println("Exported " + count + " products to " + args[2]);
+            }
+        } catch (IOException e) {
+            System.err.println("Error exporting products: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
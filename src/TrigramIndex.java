@@ -0,0 +1,422 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Trigram inverted index over the lower-cased name, and optionally the description, stored next to
+ * the data file as products.dat.tri. A substring query intersects the posting lists of the query's
+ * trigrams and then checks only the candidate records with the same contains() test the full scan
+ * uses, so results are identical to a scan and come back in record order. Queries shorter than
+ * three characters have no trigram to look up and fall back to a parallel scan. Updates add the
+ * trigrams of the new text and leave the old ones behind, and deleted records stay in the lists;
+ * the check of the candidates drops both.
+ */
+public class TrigramIndex extends SidecarIndex {
+    public static final String SUFFIX = ".tri";
+
+    private static final int MAGIC = 0x54524958; // "TRIX"
+    private static final int VERSION = 2;
+    private static final int GRAM = 3;
+    // A streaming search checks the candidates and hands over their matches in pages of this many candidates
+    private static final int PAGE = 4096;
+
+    private final boolean indexDescription;
+    private final ParallelScanner scanner = new ParallelScanner();
+    private final Map<Long, Postings> namePostings = new HashMap<>();
+    private final Map<Long, Postings> descriptionPostings = new HashMap<>();
+
+    private TrigramIndex(ProductStore store, boolean indexDescription) {
+        super(store, SUFFIX, MAGIC, VERSION);
+        this.indexDescription = indexDescription;
+    }
+
+    /**
+     * Opens the name index of a store, loading, updating or rebuilding the sidecar file as needed,
+     * and registers it for appends made through the store
+     * @param store The store to index
+     * @return the opened index
+     * @throws IOException if the index file cannot be read
+     */
+    public static TrigramIndex open(ProductStore store) throws IOException {
+        return open(store, false);
+    }
+
+    /**
+     * Opens the index of a store
+     * @param store The store to index
+     * @param indexDescription true to index descriptions as well as names
+     * @return the opened index
+     * @throws IOException if the index file cannot be read
+     */
+    public static TrigramIndex open(ProductStore store, boolean indexDescription) throws IOException {
+        TrigramIndex index = new TrigramIndex(store, indexDescription);
+        index.load();
+        return index;
+    }
+
+    @Override
+    protected void indexRecord(long record) {
+        add(namePostings, store.readName(record), record);
+        if (indexDescription) {
+            add(descriptionPostings, store.readDescription(record), record);
+        }
+    }
+
+    @Override
+    protected void indexProduct(long record, Product product) {
+        add(namePostings, product.getName(), record);
+        if (indexDescription) {
+            add(descriptionPostings, product.getDescription(), record);
+        }
+    }
+
+    @Override
+    protected void updateEntry(long record, Product before, Product after) {
+        indexProduct(record, after);
+    }
+
+    @Override
+    protected void deleteEntry(long record, Product before) {
+        // Dropped when the candidates are checked
+    }
+
+    private static void add(Map<Long, Postings> postings, String text, long record) {
+        String lower = text.toLowerCase();
+        for (int i = 0; i + GRAM <= lower.length(); i++) {
+            Long key = trigram(lower, i);
+            Postings list = postings.get(key);
+            if (list == null) {
+                list = new Postings(4);
+                postings.put(key, list);
+            }
+            list.addOnce((int) record);
+        }
+    }
+
+    /**
+     * Finds the records whose name contains a term, like name.toLowerCase().contains(term)
+     * @param lowerTerm The lower-cased search term
+     * @return the matching record numbers in ascending order
+     */
+    public long[] searchName(String lowerTerm) {
+        return searchName(lowerTerm, null);
+    }
+
+    /**
+     * Finds the records whose name contains a term, reporting progress if a scan is needed
+     * @param lowerTerm The lower-cased search term
+     * @param progress Notified while a scan runs, may be null
+     * @return the matching record numbers in ascending order
+     */
+    public long[] searchName(String lowerTerm, ParallelScanner.Progress progress) {
+        return search(lowerTerm, true, progress);
+    }
+
+    /**
+     * Finds the records whose name contains a term and hands them over page by page in record order.
+     * The candidates from the index are read and checked one page at a time, each page's matches
+     * handed over as soon as they are checked, and terms too short for the index are answered by a
+     * streaming scan, so a broad search never collects every match in memory and stops reading
+     * records once the receiver returns false.
+     * @param lowerTerm The lower-cased search term
+     * @param progress Notified while a scan runs, may be null
+     * @param matches Receives the matches, can stop the search by returning false
+     * @return the number of matches handed over
+     */
+    public long searchName(final String lowerTerm, ParallelScanner.Progress progress,
+                           ParallelScanner.Matches matches) {
+        if (lowerTerm.length() < GRAM) {
+            // Scanned without holding the index, so appends are indexed meanwhile
+            return scanner.scan(store.snapshot(), 0, getIndexedRecords(), new ParallelScanner.Filter() {
+                @Override
+                public boolean test(ProductView view) {
+                    return view.nameContains(lowerTerm);
+                }
+            }, progress, matches);
+        }
+
+        int[] candidates;
+        ProductStore.Snapshot snapshot;
+        StoreMetrics.SearchEvent event;
+        synchronized (this) {
+            snapshot = store.snapshot();
+            event = store.getMetrics().beginSearch("trigram");
+            candidates = intersect(namePostings, lowerTerm);
+        }
+
+        ProductView view = new ProductView(snapshot);
+        long[] page = new long[PAGE];
+        long found = 0;
+        int checked = 0;
+        boolean wanted = true;
+        while (wanted && checked < candidates.length) {
+            int end = Math.min(candidates.length, checked + PAGE);
+            int count = 0;
+            for (; checked < end; checked++) {
+                if (contains(snapshot, view, candidates[checked], lowerTerm, true)) {
+                    page[count++] = candidates[checked];
+                }
+            }
+            found += count;
+            wanted = matches.matched(Arrays.copyOf(page, count));
+        }
+        store.getMetrics().endSearch(event, checked, (long) checked * snapshot.getFormat().getRecordSize(), found);
+        return found;
+    }
+
+    /**
+     * Finds the records whose description contains a term, like description.toLowerCase().contains(term)
+     * @param lowerTerm The lower-cased search term
+     * @return the matching record numbers in ascending order
+     */
+    public long[] searchDescription(String lowerTerm) {
+        return searchDescription(lowerTerm, null);
+    }
+
+    /**
+     * Finds the records whose description contains a term, reporting progress if a scan is needed
+     * @param lowerTerm The lower-cased search term
+     * @param progress Notified while a scan runs, may be null
+     * @return the matching record numbers in ascending order
+     */
+    public long[] searchDescription(String lowerTerm, ParallelScanner.Progress progress) {
+        return search(lowerTerm, false, progress);
+    }
+
+    // Only the candidates are collected while holding the index, the records are read after
+    // releasing it so appends are not held up by a search
+    private long[] search(String lowerTerm, boolean name, ParallelScanner.Progress progress) {
+        int[] candidates = null;
+        long records;
+        ProductStore.Snapshot snapshot;
+        StoreMetrics.SearchEvent event = null;
+        synchronized (this) {
+            records = indexedRecords;
+            snapshot = store.snapshot();
+            if (lowerTerm.length() >= GRAM && (name || indexDescription)) {
+                event = store.getMetrics().beginSearch("trigram");
+                candidates = intersect(name ? namePostings : descriptionPostings, lowerTerm);
+            }
+        }
+        if (candidates == null) {
+            return scan(snapshot, records, lowerTerm, name, progress);
+        }
+        int count = candidates.length;
+
+        ProductView view = new ProductView(snapshot);
+        long[] matches = new long[count];
+        int found = 0;
+        for (int i = 0; i < count; i++) {
+            if (contains(snapshot, view, candidates[i], lowerTerm, name)) {
+                matches[found++] = candidates[i];
+            }
+        }
+        store.getMetrics().endSearch(event, count, (long) count * snapshot.getFormat().getRecordSize(), found);
+        return Arrays.copyOf(matches, found);
+    }
+
+    // Trigrams only narrow the candidates down, the substring test on a view over the snapshot decides
+    private static boolean contains(ProductStore.Snapshot snapshot, ProductView view, int candidate,
+                                    String lowerTerm, boolean name) {
+        // A compaction may have renumbered the file before the index heard of it
+        if (candidate >= snapshot.getRecordCount() || view.moveTo(candidate).isDeleted()) {
+            return false;
+        }
+        return name ? view.nameContains(lowerTerm) : view.descriptionContains(lowerTerm);
+    }
+
+    /**
+     * Estimates the matches of a search without running it, from the shortest posting list among
+     * the trigrams of the term
+     * @param lowerTerm The lower-cased search term
+     * @param description true to estimate a description search, false a name search
+     * @return an upper bound on the number of matches, or -1 if the index cannot answer the term
+     */
+    public synchronized long estimate(String lowerTerm, boolean description) {
+        if (lowerTerm.length() < GRAM || (description && !indexDescription)) {
+            return -1;
+        }
+        Map<Long, Postings> postings = description ? descriptionPostings : namePostings;
+        long shortest = Long.MAX_VALUE;
+        for (int i = 0; i + GRAM <= lowerTerm.length(); i++) {
+            Postings list = postings.get(trigram(lowerTerm, i));
+            shortest = Math.min(shortest, list == null ? 0 : list.size);
+        }
+        return shortest;
+    }
+
+    /**
+     * Finds the records holding every trigram of a term without reading them. The candidates are a
+     * superset of the matches, including records deleted since they were indexed, so the caller
+     * tests each one.
+     * @param lowerTerm The lower-cased search term
+     * @param description true to search descriptions, false names
+     * @return the candidate record numbers in ascending order, or null if the index cannot answer the term
+     */
+    public synchronized long[] candidates(String lowerTerm, boolean description) {
+        if (lowerTerm.length() < GRAM || (description && !indexDescription)) {
+            return null;
+        }
+        int[] candidates = intersect(description ? descriptionPostings : namePostings, lowerTerm);
+        long[] records = new long[candidates.length];
+        for (int i = 0; i < candidates.length; i++) {
+            records[i] = candidates[i];
+        }
+        return records;
+    }
+
+    // The records holding every trigram of a term, the term has at least GRAM characters
+    private static int[] intersect(Map<Long, Postings> postings, String lowerTerm) {
+        // Every trigram of the term has to be present, so intersect starting from the shortest list
+        List<Postings> lists = new ArrayList<>();
+        for (int i = 0; i + GRAM <= lowerTerm.length(); i++) {
+            Postings list = postings.get(trigram(lowerTerm, i));
+            if (list == null) {
+                return new int[0];
+            }
+            if (!lists.contains(list)) {
+                lists.add(list);
+            }
+        }
+        lists.sort(new Comparator<Postings>() {
+            @Override
+            public int compare(Postings a, Postings b) {
+                return Integer.compare(a.size, b.size);
+            }
+        });
+
+        int[] candidates = Arrays.copyOf(lists.get(0).records, lists.get(0).size);
+        int count = candidates.length;
+        for (int l = 1; l < lists.size() && count > 0; l++) {
+            count = lists.get(l).retainAll(candidates, count);
+        }
+        return Arrays.copyOf(candidates, count);
+    }
+
+    private long[] scan(ProductStore.Snapshot snapshot, long records, final String lowerTerm, final boolean name,
+                        ParallelScanner.Progress progress) {
+        return scanner.scan(snapshot, 0, records, new ParallelScanner.Filter() {
+            @Override
+            public boolean test(ProductView view) {
+                return name ? view.nameContains(lowerTerm) : view.descriptionContains(lowerTerm);
+            }
+        }, progress);
+    }
+
+    private static Long trigram(String s, int i) {
+        return (long) s.charAt(i) << 32 | (long) s.charAt(i + 1) << 16 | s.charAt(i + 2);
+    }
+
+    @Override
+    protected void clear() {
+        namePostings.clear();
+        descriptionPostings.clear();
+    }
+
+    @Override
+    protected boolean readEntries(DataInputStream in) throws IOException {
+        if (in.readBoolean() != indexDescription) {
+            return false;
+        }
+        return readPostings(in, namePostings) && readPostings(in, descriptionPostings);
+    }
+
+    // Returns false if the lists cannot have been written by this index, so it is rebuilt
+    private boolean readPostings(DataInputStream in, Map<Long, Postings> postings) throws IOException {
+        int keys = in.readInt();
+        if (keys < 0) {
+            return false;
+        }
+        for (int k = 0; k < keys; k++) {
+            long key = in.readLong();
+            int size = in.readInt();
+            // A list holds each indexed record once at most, in ascending order
+            if (size < 0 || size > indexedRecords) {
+                return false;
+            }
+            Postings list = new Postings(size);
+            for (int i = 0; i < size; i++) {
+                int record = in.readInt();
+                if (record < 0 || record >= indexedRecords || (i > 0 && record <= list.records[i - 1])) {
+                    return false;
+                }
+                list.records[i] = record;
+            }
+            list.size = size;
+            postings.put(key, list);
+        }
+        return true;
+    }
+
+    @Override
+    protected void writeEntries(DataOutputStream out) throws IOException {
+        out.writeBoolean(indexDescription);
+        writePostings(out, namePostings);
+        writePostings(out, descriptionPostings);
+    }
+
+    private static void writePostings(DataOutputStream out, Map<Long, Postings> postings) throws IOException {
+        out.writeInt(postings.size());
+        for (Map.Entry<Long, Postings> entry : postings.entrySet()) {
+            Postings list = entry.getValue();
+            out.writeLong(entry.getKey());
+            out.writeInt(list.size);
+            for (int i = 0; i < list.size; i++) {
+                out.writeInt(list.records[i]);
+            }
+        }
+    }
+
+    /**
+     * Sorted, growable list of record numbers, stored as ints to halve the index size
+     */
+    private static class Postings {
+        int[] records;
+        int size;
+
+        Postings(int capacity) {
+            records = new int[Math.max(capacity, 1)];
+        }
+
+        // A trigram can occur several times in one name. Appended records arrive in ascending
+        // order and go to the end, updated records are inserted in place.
+        void addOnce(int record) {
+            int at = size;
+            if (size > 0 && records[size - 1] >= record) {
+                at = Arrays.binarySearch(records, 0, size, record);
+                if (at >= 0) {
+                    return;
+                }
+                at = -at - 1;
+            }
+            if (size == records.length) {
+                records = Arrays.copyOf(records, size * 2);
+            }
+            System.arraycopy(records, at, records, at + 1, size - at);
+            records[at] = record;
+            size++;
+        }
+
+        // Keeps the candidates that are also in this list, returning the new candidate count
+        int retainAll(int[] candidates, int count) {
+            int kept = 0;
+            int from = 0;
+            for (int i = 0; i < count; i++) {
+                int at = Arrays.binarySearch(records, from, size, candidates[i]);
+                if (at >= 0) {
+                    candidates[kept++] = candidates[i];
+                    from = at + 1;
+                } else {
+                    from = -at - 1;
+                }
+            }
+            return kept;
+        }
+    }
+}
@@ -0,0 +1,443 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of a writable ProductStore, stored next to the data file as products.dat.wal.
+ * Every append, update and delete is logged as an entry holding the bytes written to the data file
+ * and a CRC32 checksum. Entries collect in memory and a background thread writes and forces them
+ * in groups: it waits at most the commit delay for more entries to share one fsync, so many
+ * writers pay for one flush and no writer waits longer than the delay plus that flush. Writers and
+ * the flusher wait on a ReentrantLock rather than a monitor, so writers on virtual threads do not
+ * pin their carriers while they wait for a flush.
+ *
+ * When the store is opened the entries are replayed onto the data file, stopping at the first
+ * torn or corrupt entry, which can only belong to a write that was never acknowledged. Once the
+ * data file itself is forced the log is emptied again.
+ */
+public class WriteAheadLog implements Closeable {
+    public static final String SUFFIX = ".wal";
+
+    static final byte APPEND = 1;
+    static final byte UPDATE = 2;
+    static final byte DELETE = 3;
+
+    private static final int MAGIC = 0x5057414C; // "PWAL"
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 12;
+    // Payload length, checksum, type and record number
+    private static final int ENTRY_HEADER_SIZE = 17;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final Path path;
+    private final FileChannel channel;
+    // Changes only when the data file is converted to another format, with the log empty
+    private int recordSize;
+    private final CRC32 crc = new CRC32();
+    private final Thread flusher;
+    private final StoreMetrics metrics;
+    // Guards the buffers and counters below, changed is signalled whenever any of them changes
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    private ByteBuffer pending = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private ByteBuffer flushing = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private long fileSize;
+    private long commitDelayNanos;
+    private long firstPendingTime;
+    private long logged;
+    private long flushed;
+    private long durable;
+    private boolean flushInProgress;
+    private boolean closed;
+    private IOException failure;
+
+    private long recoveredRecords = -1;
+    private boolean recoveredModifications;
+
+    private WriteAheadLog(Path path, FileChannel channel, int recordSize, long commitDelayNanos,
+                          StoreMetrics metrics) {
+        this.path = path;
+        this.channel = channel;
+        this.recordSize = recordSize;
+        this.commitDelayNanos = commitDelayNanos;
+        this.metrics = metrics;
+        this.flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        }, "WriteAheadLog " + path.getFileName());
+        this.flusher.setDaemon(true);
+    }
+
+    /**
+     * Opens the log of a data file, replaying any entries left by a writer that did not close cleanly.
+     * The replayed records are written to the data file but not forced; the caller forces the data
+     * file and then calls reset().
+     * @param path The log file
+     * @param data The data file, opened for writing
+     * @param format The format of the data file
+     * @param commitDelay The longest time in nanoseconds an entry waits for others to share its flush
+     * @param metrics The metrics of the store, recording each group commit
+     * @return the opened log
+     * @throws IOException if the log cannot be read or the data file cannot be written
+     */
+    static WriteAheadLog open(Path path, FileChannel data, RecordFormat format, long commitDelay,
+                              StoreMetrics metrics) throws IOException {
+        FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        WriteAheadLog log = new WriteAheadLog(path, channel, format.getRecordSize(), commitDelay, metrics);
+        try {
+            log.replay(data, format);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        log.flusher.start();
+        return log;
+    }
+
+    /**
+     * @return one past the last record appended by the replayed entries, or -1 if none were appended
+     */
+    long getRecoveredRecords() { return recoveredRecords; }
+
+    /**
+     * @return true if the replayed entries updated or deleted records
+     */
+    boolean hasRecoveredModifications() { return recoveredModifications; }
+
+    private void replay(FileChannel data, RecordFormat format) throws IOException {
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        if (size < FILE_HEADER_SIZE || !readFully(header, 0)
+                || header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getInt(8) != recordSize) {
+            // A new log, or one that never got its header written
+            writeFileHeader();
+            return;
+        }
+
+        ByteBuffer entryHeader = ByteBuffer.allocate(ENTRY_HEADER_SIZE);
+        ByteBuffer payload = ByteBuffer.allocate(recordSize);
+        long position = FILE_HEADER_SIZE;
+        while (position + ENTRY_HEADER_SIZE <= size) {
+            entryHeader.clear();
+            if (!readFully(entryHeader, position)) {
+                break;
+            }
+            int length = entryHeader.getInt(0);
+            byte type = entryHeader.get(8);
+            long record = entryHeader.getLong(9);
+            if (length <= 0 || length > recordSize || record < 0 || type < APPEND || type > DELETE) {
+                break;
+            }
+            payload.clear().limit(length);
+            if (!readFully(payload, position + ENTRY_HEADER_SIZE)
+                    || checksum(entryHeader, payload) != entryHeader.getInt(4)) {
+                break;
+            }
+
+            // Entries hold the bytes written, so replaying one that already reached the data file is harmless
+            payload.flip();
+            long at = format.getHeaderSize() + record * recordSize;
+            while (payload.hasRemaining()) {
+                at += data.write(payload, at);
+            }
+            if (type == APPEND) {
+                recoveredRecords = Math.max(recoveredRecords, record + 1);
+            } else {
+                recoveredModifications = true;
+            }
+            position += ENTRY_HEADER_SIZE + length;
+        }
+        fileSize = position;
+    }
+
+    private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                return false;
+            }
+            position += read;
+        }
+        return true;
+    }
+
+    private void writeFileHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(recordSize).flip();
+        channel.truncate(0);
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        channel.force(true);
+        fileSize = FILE_HEADER_SIZE;
+    }
+
+    // Covers the type, record number and payload of an entry
+    private int checksum(ByteBuffer entryHeader, ByteBuffer payload) {
+        crc.reset();
+        crc.update(entryHeader.array(), 8, ENTRY_HEADER_SIZE - 8);
+        crc.update(payload.duplicate().flip());
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Sets how long an entry may wait for others to share its flush
+     * @param delay The longest wait, 0 to flush every entry as soon as the flusher is free
+     * @param unit The unit of the delay
+     */
+    public void setCommitDelay(long delay, TimeUnit unit) {
+        lock.lock();
+        try {
+            commitDelayNanos = unit.toNanos(delay);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Logs the bytes written at the start of a record. The entry is durable once sync returns for it.
+     * @param type APPEND, UPDATE or DELETE
+     * @param record The record number
+     * @param bytes The bytes written, at most one record
+     * @return the sequence number of the entry
+     * @throws IOException if the log can no longer be written
+     */
+    long log(byte type, long record, ByteBuffer bytes) throws IOException {
+        int size = ENTRY_HEADER_SIZE + bytes.remaining();
+        lock.lock();
+        try {
+            // The flusher empties the buffer, so a writer only waits here when writes outrun the disk
+            while (pending.remaining() < size) {
+                checkOpen();
+                changed.signalAll();
+                await();
+            }
+            checkOpen();
+            if (pending.position() == 0) {
+                firstPendingTime = System.nanoTime();
+            }
+
+            int start = pending.position();
+            pending.putInt(bytes.remaining()).putInt(0).put(type).putLong(record).put(bytes.duplicate());
+            crc.reset();
+            crc.update(pending.duplicate().position(start + 8).limit(pending.position()));
+            pending.putInt(start + 4, (int) crc.getValue());
+
+            logged++;
+            changed.signalAll();
+            return logged;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until an entry and every entry before it is on disk
+     * @param sequence The sequence number returned by log
+     * @throws IOException if the log could not be written
+     */
+    void sync(long sequence) throws IOException {
+        lock.lock();
+        try {
+            while (durable < sequence) {
+                if (failure != null) {
+                    throw new IOException("Error writing " + path + ": " + failure.getMessage(), failure);
+                }
+                await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the bytes the log holds, written or not
+     */
+    long size() {
+        lock.lock();
+        try {
+            return fileSize + pending.position();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Empties the log once everything it holds has been forced to the data file.
+     * Called while the store's lock is held, so no entry is logged meanwhile.
+     * @throws IOException if the log cannot be truncated
+     */
+    void reset() throws IOException {
+        lock.lock();
+        try {
+            while (flushInProgress) {
+                await();
+            }
+            checkOpen();
+            pending.clear();
+            channel.truncate(FILE_HEADER_SIZE);
+            long start = System.nanoTime();
+            channel.force(true);
+            metrics.recordFsync(System.nanoTime() - start);
+            fileSize = FILE_HEADER_SIZE;
+
+            // The entries are durable in the data file
+            durable = logged;
+            flushed = logged;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Empties the log and starts logging records of another size, after the data file was converted
+     * to another format. Called while the store's lock is held.
+     * @param recordSize The record size of the converted file
+     * @throws IOException if the log cannot be rewritten
+     */
+    void reset(int recordSize) throws IOException {
+        lock.lock();
+        try {
+            reset();
+            this.recordSize = recordSize;
+            writeFileHeader();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            long target;
+            long entries;
+            long position;
+            lock.lock();
+            try {
+                while (pending.position() == 0 && !closed) {
+                    changed.awaitUninterruptibly();
+                }
+                if (pending.position() == 0) {
+                    return;
+                }
+
+                // Give other writers until the deadline to join this flush, unless the buffer is filling up
+                long deadline = firstPendingTime + commitDelayNanos;
+                long now = System.nanoTime();
+                while (!closed && now < deadline && pending.position() < BUFFER_SIZE / 2) {
+                    try {
+                        changed.awaitNanos(deadline - now);
+                    } catch (InterruptedException e) {
+                        // The flusher is only stopped through close
+                    }
+                    now = System.nanoTime();
+                }
+
+                ByteBuffer full = pending;
+                pending = flushing;
+                flushing = full;
+                target = logged;
+                entries = target - flushed;
+                flushed = target;
+                position = fileSize;
+                fileSize += flushing.position();
+                flushInProgress = true;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            StoreMetrics.BatchWriteEvent event = metrics.beginBatchWrite("wal");
+            IOException error = null;
+            try {
+                flushing.flip();
+                long bytes = flushing.remaining();
+                while (flushing.hasRemaining()) {
+                    position += channel.write(flushing, position);
+                }
+                long start = System.nanoTime();
+                channel.force(false);
+                long fsync = System.nanoTime() - start;
+                metrics.recordFsync(fsync);
+                metrics.endBatchWrite(event, entries, bytes, fsync);
+            } catch (IOException e) {
+                error = e;
+            }
+            flushing.clear();
+
+            lock.lock();
+            try {
+                flushInProgress = false;
+                if (error != null) {
+                    failure = error;
+                } else {
+                    durable = Math.max(durable, target);
+                }
+                changed.signalAll();
+                if (error != null) {
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (failure != null) {
+            throw new IOException("Error writing " + path + ": " + failure.getMessage(), failure);
+        }
+        if (closed) {
+            throw new IOException(path + " is closed");
+        }
+    }
+
+    // Called with the lock held
+    private void await() throws InterruptedIOException {
+        try {
+            changed.await();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting for " + path);
+        }
+    }
+
+    /**
+     * Flushes the remaining entries, stops the flusher and deletes the log if it is empty.
+     * The store empties the log with a checkpoint first, so a clean close leaves no log behind.
+     * @throws IOException if the log cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        boolean empty = failure == null && fileSize <= FILE_HEADER_SIZE;
+        channel.close();
+        if (empty) {
+            Files.deleteIfExists(path);
+        }
+    }
+}
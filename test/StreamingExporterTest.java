@@ -0,0 +1,52 @@
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Checks that the cost fast path of StreamingExporter prints exactly what Product.toCSV prints.
+ * Runs without a test framework, from the module output directory:
+ *   javac -d out/test src/*.java test/*.java
+ *   java -cp out/test StreamingExporterTest
+ * Exits with status 1 if any cost differs.
+ */
+public class StreamingExporterTest {
+    private static int failures;
+
+    public static void main(String[] args) {
+        // The fast path is only taken for locales printing ASCII digits and a '.' separator
+        Locale.setDefault(Locale.ROOT);
+
+        double[] costs = {
+                0.0, -0.0, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                Double.MIN_VALUE, -Double.MIN_VALUE, Double.MAX_VALUE, -1.0, -0.004,
+                0.005, 0.015, 1.005, 2.675, 12.345, 19.99, 0.994999, 0.995,
+                999999999.99, 999999999.994, 999999999.996, 1e9, 1e9 + 0.005, 1e15, 1e300
+        };
+        for (double cost : costs) {
+            check(cost);
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < 1000000; i++) {
+            check(Math.round(random.nextDouble() * 100000) / 100.0);
+            check(random.nextDouble() * 1e10);
+        }
+
+        if (failures > 0) {
+            System.out.println(failures + " costs differ from toCSV");
+            System.exit(1);
+        }
+        System.out.println("All costs match toCSV");
+    }
+
+    private static void check(double cost) {
+        String csv = Product.restore("AAAAAA", "name", "description", cost).toCSV();
+        String expected = csv.substring(csv.lastIndexOf(',') + 1);
+        StringBuilder actual = new StringBuilder();
+        StreamingExporter.appendCost(actual, cost, true);
+        if (!expected.contentEquals(actual)) {
+            if (failures++ < 20) {
+                System.out.println("Cost " + cost + " (" + Long.toHexString(Double.doubleToRawLongBits(cost))
+                        + "): expected " + expected + ", got " + actual);
+            }
+        }
+    }
+}
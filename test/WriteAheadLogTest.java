@@ -0,0 +1,200 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Checks that a store opened after a crash recovers its acknowledged writes from the write-ahead
+ * log, and stops replaying at a torn or corrupt entry. A crash is simulated by copying the data
+ * file as it was at the last checkpoint next to the log a still open writer has written since.
+ * Runs without a test framework, from the module output directory:
+ *   javac -d out/test src/*.java test/*.java
+ *   java -cp out/test WriteAheadLogTest
+ * Exits with status 1 if any check fails.
+ */
+public class WriteAheadLogTest {
+    private static final RecordFormat FORMAT = RecordFormat.V2_LATIN1;
+    private static final int FILE_HEADER_SIZE = 12;
+    private static final int ENTRY_HEADER_SIZE = 17;
+
+    private static int failures;
+
+    public static void main(String[] args) throws IOException {
+        Path root = Files.createTempDirectory("wal-test");
+        try {
+            Path original = root.resolve("original").resolve(ProductStore.DEFAULT_FILE);
+            Files.createDirectories(original.getParent());
+            byte[] checkpointed;
+            byte[] modifications;
+            byte[] log;
+            byte[] applied;
+            try (ProductStore store = ProductStore.openReadWrite(original, FORMAT)) {
+                List<Product> products = new ArrayList<>();
+                for (int i = 0; i < 100; i++) {
+                    products.add(product(i, "original"));
+                }
+                store.appendAll(products);
+                store.checkpoint();
+                checkpointed = Files.readAllBytes(original);
+                modifications = readIfExists(store.sidecar(ProductStore.MODIFICATIONS_SUFFIX));
+
+                // Logged after the checkpoint, so only the log holds them if the writer crashes now
+                for (int i = 100; i < 103; i++) {
+                    store.append(product(i, "appended"));
+                }
+                store.update(5, product(5, "updated"));
+                store.delete(7);
+                log = Files.readAllBytes(store.sidecar(WriteAheadLog.SUFFIX));
+                applied = Files.readAllBytes(original);
+
+                // An update waiting for its log flush must not reach the data file, not even the page cache
+                store.setCommitDelay(500, TimeUnit.MILLISECONDS);
+                final ProductStore writer = store;
+                Thread update = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            writer.update(9, product(9, "delayed"));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                });
+                update.start();
+                sleep(100);
+                try (ProductStore reader = ProductStore.openReadOnly(original)) {
+                    check(reader.readName(9).equals("original 9"), "an update is invisible before its log entry is durable");
+                    join(update);
+                    check(reader.readName(9).equals("delayed 9"), "an update is visible once it returns");
+                }
+            }
+
+            int appendEntry = ENTRY_HEADER_SIZE + FORMAT.getRecordSize();
+            int deleteEntry = ENTRY_HEADER_SIZE + FORMAT.tombstone().remaining();
+            check(log.length == FILE_HEADER_SIZE + 4 * appendEntry + deleteEntry,
+                    "log holds three appends, an update and a delete, has " + log.length + " bytes");
+
+            // Replayed onto the data file as it was at the checkpoint
+            try (ProductStore store = crash(root, "replayed", checkpointed, modifications, log)) {
+                check(store.getRecordCount() == 103, "replayed appends are counted, got " + store.getRecordCount());
+                check(store.readName(102).equals("appended 102"), "replayed append is readable");
+                check(store.readName(5).equals("updated 5"), "replayed update overwrites the record, got "
+                        + store.readName(5));
+                check(store.isDeleted(7), "replayed delete leaves a tombstone");
+                check(!store.isDeleted(6) && store.readName(6).equals("original 6"), "other records are untouched");
+                check(store.getModificationCount() > 0, "replayed updates bump the modification count");
+            }
+
+            // Replaying entries that already reached the data file changes nothing
+            try (ProductStore store = crash(root, "reapplied", applied, modifications, log)) {
+                check(store.getRecordCount() == 103, "reapplied appends are counted once, got " + store.getRecordCount());
+                check(store.readName(5).equals("updated 5") && store.isDeleted(7), "reapplied writes are kept");
+            }
+
+            // The last entry was torn by the crash, so the delete was never acknowledged
+            byte[] torn = Arrays.copyOf(log, log.length - 1);
+            try (ProductStore store = crash(root, "torn", checkpointed, modifications, torn)) {
+                check(store.getRecordCount() == 103, "entries before a torn entry are replayed");
+                check(store.readName(5).equals("updated 5"), "update before a torn entry is replayed");
+                check(!store.isDeleted(7), "a torn delete is not replayed");
+            }
+
+            // Only the header of the last entry reached the disk
+            byte[] headerOnly = Arrays.copyOf(log, log.length - deleteEntry + ENTRY_HEADER_SIZE);
+            try (ProductStore store = crash(root, "header", checkpointed, modifications, headerOnly)) {
+                check(store.getRecordCount() == 103 && !store.isDeleted(7), "an entry without its payload is not replayed");
+            }
+
+            // A corrupt update stops the replay, the delete after it is dropped too
+            byte[] corrupt = log.clone();
+            int update = FILE_HEADER_SIZE + 3 * appendEntry;
+            corrupt[update + ENTRY_HEADER_SIZE + FORMAT.getNameOffset()] ^= 0x20;
+            try (ProductStore store = crash(root, "corrupt", checkpointed, modifications, corrupt)) {
+                check(store.getRecordCount() == 103, "appends before a corrupt entry are replayed");
+                check(store.readName(5).equals("original 5"), "a corrupt update is not replayed, got " + store.readName(5));
+                check(!store.isDeleted(7), "entries after a corrupt entry are not replayed");
+            }
+
+            // A log whose header never reached the disk holds nothing
+            try (ProductStore store = crash(root, "empty", checkpointed, modifications, new byte[5])) {
+                check(store.getRecordCount() == 100, "a log without a header replays nothing");
+            }
+
+            // The recovered store is checkpointed, so a clean reopen sees the same records
+            Path replayed = root.resolve("replayed").resolve(ProductStore.DEFAULT_FILE);
+            try (ProductStore store = ProductStore.openReadOnly(replayed)) {
+                check(store.getRecordCount() == 103 && store.readName(5).equals("updated 5") && store.isDeleted(7),
+                        "recovered writes are in the data file after a clean close");
+            }
+        } finally {
+            deleteRecursively(root);
+        }
+
+        if (failures > 0) {
+            System.out.println(failures + " checks failed");
+            System.exit(1);
+        }
+        System.out.println("All recovery checks passed");
+    }
+
+    private static Product product(int i, String name) {
+        return new Product(String.format("%06d", i), name + " " + i, "description " + i, i);
+    }
+
+    // Lays out the files a crashed writer left behind and opens them for writing, which replays the log
+    private static ProductStore crash(Path root, String name, byte[] data, byte[] modifications, byte[] log)
+            throws IOException {
+        Path file = root.resolve(name).resolve(ProductStore.DEFAULT_FILE);
+        Files.createDirectories(file.getParent());
+        Files.write(file, data);
+        if (modifications != null) {
+            Files.write(file.resolveSibling(file.getFileName() + ProductStore.MODIFICATIONS_SUFFIX), modifications);
+        }
+        Files.write(file.resolveSibling(file.getFileName() + WriteAheadLog.SUFFIX), log);
+        return ProductStore.openReadWrite(file);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void join(Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static byte[] readIfExists(Path path) throws IOException {
+        return Files.exists(path) ? Files.readAllBytes(path) : null;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            failures++;
+            System.out.println("Failed: " + message);
+        }
+    }
+
+    private static void deleteRecursively(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            // Children sort after their directory, so deleting in reverse order empties each directory first
+            Iterator<Path> reversed = paths.sorted(Comparator.reverseOrder()).iterator();
+            while (reversed.hasNext()) {
+                Files.delete(reversed.next());
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * CostColumn aggregation on the incubating Vector API, processing as many costs per instruction as
+ * the CPU's widest vector registers hold. Loaded by CostColumn when it is on the class path; the JVM
+ * has to run with --add-modules jdk.incubator.vector, otherwise CostColumn uses its scalar loop.
+ */
+public class VectorCostAggregator implements CostColumn.Aggregator {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public void aggregate(double[] costs, int length, double min, double max, CostColumn.Aggregate into) {
+        DoubleVector sums = DoubleVector.zero(SPECIES);
+        DoubleVector lows = DoubleVector.broadcast(SPECIES, Double.POSITIVE_INFINITY);
+        DoubleVector highs = DoubleVector.broadcast(SPECIES, Double.NEGATIVE_INFINITY);
+        long count = 0;
+
+        int i = 0;
+        int bound = SPECIES.loopBound(length);
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector v = DoubleVector.fromArray(SPECIES, costs, i);
+            // Comparisons with NaN are false, so deleted records are never in range
+            VectorMask<Double> inRange = v.compare(VectorOperators.GE, min).and(v.compare(VectorOperators.LE, max));
+            count += inRange.trueCount();
+            sums = sums.add(v, inRange);
+            lows = lows.lanewise(VectorOperators.MIN, v, inRange);
+            highs = highs.lanewise(VectorOperators.MAX, v, inRange);
+        }
+
+        double sum = sums.reduceLanes(VectorOperators.ADD);
+        double low = lows.reduceLanes(VectorOperators.MIN);
+        double high = highs.reduceLanes(VectorOperators.MAX);
+        // The tail shorter than a vector
+        for (; i < length; i++) {
+            double cost = costs[i];
+            if (cost >= min && cost <= max) {
+                count++;
+                sum += cost;
+                low = Math.min(low, cost);
+                high = Math.max(high, cost);
+            }
+        }
+        into.add(count, sum, low, high);
+    }
+}